@@ -0,0 +1,153 @@
+package kafka.async;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.async.futures.Wakeable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves broker host names on a separate pool of threads, so that a slow DNS
+ * lookup never blocks the IO processing thread. Resolved addresses are cached
+ * for a fixed time. Failed lookups are cached as unresolved addresses for a
+ * shorter time, so that connections to an unknown host fail quickly instead of
+ * repeatedly waiting on the resolver. A failed connect also limits how long the
+ * broker's address stays cached (see {@link #invalidate(KafkaBrokerIdentity)}),
+ * so that a broker whose address changed is looked up again.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public class BrokerResolver {
+
+	static Logger logger = LoggerFactory.getLogger(BrokerResolver.class);
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	private static class Resolution {
+		private final InetSocketAddress address;
+		private final long resolved;
+		private final long expires;
+
+		private Resolution(InetSocketAddress address, long resolved, long expires) {
+			this.address = address;
+			this.resolved = resolved;
+			this.expires = expires;
+		}
+	}
+
+	private final ConcurrentHashMap<KafkaBrokerIdentity,Resolution> cache = new ConcurrentHashMap<KafkaBrokerIdentity,Resolution>();
+	private final ConcurrentHashMap<KafkaBrokerIdentity,Boolean> pending = new ConcurrentHashMap<KafkaBrokerIdentity,Boolean>();
+	private final ThreadPoolExecutor executor;
+	private final Wakeable listener;
+	private final long ttlNanos;
+	private final long failureTtlNanos;
+
+	/**
+	 * @param listener Woken up each time a lookup completes
+	 */
+	public BrokerResolver(Wakeable listener) {
+		this(listener, 2, 60, 5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param listener Woken up each time a lookup completes
+	 * @param threads The maximum number of concurrent lookups
+	 * @param ttl How long a resolved address is cached
+	 * @param failureTtl How long a failed lookup is cached
+	 * @param unit
+	 */
+	public BrokerResolver(Wakeable listener, int threads, long ttl, long failureTtl, TimeUnit unit) {
+		this.listener = listener;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.failureTtlNanos = unit.toNanos(failureTtl);
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kafka-resolver-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the address of the specified broker without blocking. If the cached
+	 * address is missing or expired, a lookup is started in the background. An
+	 * expired address continues to be returned until the lookup completes.
+	 * @param broker
+	 * @return The address of the broker (which may be unresolved if the lookup
+	 * failed), or null if no lookup has completed yet
+	 */
+	public InetSocketAddress resolve(KafkaBrokerIdentity broker) {
+		Resolution resolution = cache.get(broker);
+		if (resolution == null || System.nanoTime() - resolution.expires > 0) {
+			startLookup(broker);
+		}
+		return resolution == null ? null : resolution.address;
+	}
+
+	/**
+	 * Called when a connect to the broker fails. The cached address expires once
+	 * it is as old as the failure TTL, so the next call to
+	 * {@link #resolve(KafkaBrokerIdentity)} after that starts a new lookup, while
+	 * still returning the cached address until the lookup completes. Repeated
+	 * connect failures therefore cause at most one lookup per failure TTL.
+	 * @param broker
+	 */
+	public void invalidate(KafkaBrokerIdentity broker) {
+		Resolution resolution = cache.get(broker);
+		if (resolution != null && resolution.expires - (resolution.resolved + failureTtlNanos) > 0) {
+			cache.replace(broker, resolution, new Resolution(resolution.address, resolution.resolved, resolution.resolved + failureTtlNanos));
+		}
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void startLookup(final KafkaBrokerIdentity broker) {
+		if (pending.putIfAbsent(broker, Boolean.TRUE) != null) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						InetSocketAddress address = lookup(broker);
+						long ttl = address.isUnresolved() ? failureTtlNanos : ttlNanos;
+						if (logger.isDebugEnabled()) {
+							logger.debug("Resolved "+broker+" to "+address);
+						}
+						long now = System.nanoTime();
+						cache.put(broker, new Resolution(address, now, now + ttl));
+					} finally {
+						pending.remove(broker);
+					}
+					listener.wakeup();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(broker);
+		}
+	}
+
+	/**
+	 * Looks up the address of a broker, blocking until the lookup completes.
+	 * Runs on the resolver's threads.
+	 * @return The address, which is unresolved if the lookup failed
+	 */
+	InetSocketAddress lookup(KafkaBrokerIdentity broker) {
+		return new InetSocketAddress(broker.host, broker.port);
+	}
+}
@@ -52,6 +52,28 @@ public interface ConnectionManager {
 	 */
 	public KafkaOperation getNextOperationFor(ChannelContext connection);
 
+	/**
+	 * Notifies the connection manager that a particular connection has finished
+	 * connecting to its broker.<p>
+	 * 
+	 * <b>Note:</b> Will be invoked by the connection processor.
+	 * @param connection
+	 */
+	public void connectionOpened(ChannelContext connection);
+	
+	/**
+	 * Notifies the connection manager that a complete response has been read
+	 * on a particular connection.<p>
+	 * 
+	 * <b>Note:</b> Will be invoked by the connection processor.
+	 * @param connection
+	 * @param latencyNanos The time between the request being written and the
+	 * response being processed
+	 * @param errorCode The Kafka error code of the response (of the first
+	 * response, if the operation read several), or 0 if there was no error
+	 */
+	public void responseReceived(ChannelContext connection, long latencyNanos, int errorCode);
+	
 	/**
 	 * Notifies the connection manager that a particular connection has been
 	 * closed. If necessary, the connection manager should create another
@@ -1,14 +1,16 @@
 package kafka.async;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -35,10 +37,26 @@ public class KafkaAsyncProcessor implements Wakeable {
 	private int managersRev = 0;
 	private List<ConnectionManager> allManagers = new ArrayList<ConnectionManager>();
 	private AtomicInteger allManagersRev = new AtomicInteger(0);
+	private AtomicBoolean connectRequested = new AtomicBoolean(false);
+	private BrokerResolver resolver;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
 	
 	public KafkaAsyncProcessor() {
 	}
 	
+	/**
+	 * Runs a task on the processing thread before its next select (or while it
+	 * shuts down). Tasks are run in the order they were submitted, without
+	 * holding any lock, and must be short since they delay all IO.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+	
 	@Override
 	public void wakeup() {
 		selector.wakeup();
@@ -55,14 +73,39 @@ public class KafkaAsyncProcessor implements Wakeable {
 		return open.get();
 	}
 	
+	/**
+	 * Adds a connection manager to this processor. The new manager's pending
+	 * connections are started on the next pass of the processing thread, without
+	 * waiting for the usual reconnect interval.
+	 * @param manager
+	 */
 	public void addConnectionManager(ConnectionManager manager) {
 		synchronized (lock) {
 			allManagers.add(manager);
 			allManagersRev.incrementAndGet();
+			connectRequested.set(true);
 			selector.wakeup();
 		}
 	}
 	
+	/**
+	 * Removes a connection manager from this processor. Any connections belonging
+	 * to the manager are closed by the processing thread, and the manager is
+	 * detached from this processor. The processor continues to serve its other
+	 * connection managers.
+	 * @param manager
+	 */
+	public void removeConnectionManager(ConnectionManager manager) {
+		synchronized (lock) {
+			if (allManagers.remove(manager)) {
+				allManagersRev.incrementAndGet();
+				if (selector != null) {
+					selector.wakeup();
+				}
+			}
+		}
+	}
+	
 	public void open() throws IOException {
 		synchronized (lock) {
 			if (open.get()) {
@@ -70,9 +113,21 @@ public class KafkaAsyncProcessor implements Wakeable {
 			}
 			open.set(true);
 			selector = Selector.open();
+			resolver = new BrokerResolver(new Wakeable() {
+				@Override
+				public void wakeup() {
+					// Register connections that were waiting for this address
+					connectRequested.set(true);
+					selector.wakeup();
+				}
+			});
 		}
 		
 		new Thread(new Runnable() {
+			// Connections whose broker address is still being resolved. Only
+			// accessed by the processing thread.
+			private List<ChannelContext> unresolved = new ArrayList<ChannelContext>();
+			
 			public void processSelectionKey(SelectionKey key) {
 				SocketChannel socket = (SocketChannel)key.channel();
 				ChannelContext context = (ChannelContext)key.attachment();
@@ -86,7 +141,15 @@ public class KafkaAsyncProcessor implements Wakeable {
 					try {
 						if (key.isConnectable()) {
 							logger.trace("Socket is ready to connect");
-							if (socket.finishConnect()) {
+							boolean connected;
+							try {
+								connected = socket.finishConnect();
+							} catch (IOException e) {
+								// The broker may have moved to a different address
+								resolver.invalidate(context.broker());
+								throw e;
+							}
+							if (connected) {
 								logger.trace("Socket finished connect");
 								context.doConnect();
 							}
@@ -110,41 +173,108 @@ public class KafkaAsyncProcessor implements Wakeable {
 			
 			public void processPendingConnections() {
 				if (allManagersRev.get() != managersRev) {
+					ConnectionManager[] oldManagers = managers;
 					synchronized (lock) {
-						int newIndex = managers.length;
 						managers = allManagers.toArray(new ConnectionManager[allManagers.size()]);
 						managersRev = allManagersRev.get();
-						
-						for (; newIndex < managers.length; ++newIndex) {
-							managers[newIndex].attach(KafkaAsyncProcessor.this);
+					}
+					
+					List<ConnectionManager> current = Arrays.asList(managers);
+					List<ConnectionManager> previous = Arrays.asList(oldManagers);
+					for (ConnectionManager manager : managers) {
+						if (!previous.contains(manager)) {
+							manager.attach(KafkaAsyncProcessor.this);
+						}
+					}
+					for (ConnectionManager manager : oldManagers) {
+						if (!current.contains(manager)) {
+							closeConnectionsFor(manager);
+							manager.detach(KafkaAsyncProcessor.this);
 						}
 					}
 				}
 				
+				List<ChannelContext> waiting = unresolved;
+				unresolved = new ArrayList<ChannelContext>();
+				for (ChannelContext connection : waiting) {
+					registerConnection(connection);
+				}
+				
 				for (ConnectionManager manager : managers) {
 					List<ChannelContext> connections = manager.takeNewConnections();
 					if (connections != null) {
 						for (ChannelContext connection : connections) {
-							KafkaBrokerIdentity broker = connection.broker();
 							if (logger.isDebugEnabled()) {
-								logger.debug("Adding connection to "+broker);
-							}
-							SocketAddress address = new InetSocketAddress(broker.host, broker.port);
-							try {
-								connection.initAndRegister(address, selector);
-							} catch (IOException e) {
-								connection.closedWithException(e);
+								logger.debug("Adding connection to "+connection.broker());
 							}
-							
+							registerConnection(connection);
 						}
 					}
 				}
 			}
 			
+			/**
+			 * Registers a connection with the selector once the address of its broker
+			 * has been resolved. Until then, the connection is held in the unresolved
+			 * list. Host names are never resolved on this thread.
+			 */
+			public void registerConnection(ChannelContext connection) {
+				SocketAddress address = resolver.resolve(connection.broker());
+				if (address == null) {
+					if (logger.isTraceEnabled()) {
+						logger.trace("Waiting for address of "+connection.broker());
+					}
+					unresolved.add(connection);
+					return;
+				}
+				try {
+					connection.initAndRegister(address, selector);
+				} catch (IOException e) {
+					resolver.invalidate(connection.broker());
+					connection.closedWithException(e);
+				}
+			}
+			
+			/**
+			 * Closes every registered connection that belongs to the specified
+			 * connection manager.
+			 */
+			public void closeConnectionsFor(ConnectionManager manager) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Closing connections for removed connection manager "+manager);
+				}
+				IOException reason = new IOException("Connection manager was removed from processor");
+				Iterator<ChannelContext> waiting = unresolved.iterator();
+				while (waiting.hasNext()) {
+					ChannelContext context = waiting.next();
+					if (context.manager() == manager) {
+						waiting.remove();
+						context.closedWithException(reason);
+					}
+				}
+				for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+					ChannelContext context = (ChannelContext)key.attachment();
+					if (context != null && context.manager() == manager) {
+						context.closedWithException(reason);
+					}
+				}
+			}
+			
 			public int select() throws IOException {
 				return selector.select(100);
 			}
 			
+			public void runTasks() {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.warn("Error while running task on processing thread", e);
+					}
+				}
+			}
+			
 			@Override
 			public void run() {
 				
@@ -161,11 +291,14 @@ public class KafkaAsyncProcessor implements Wakeable {
 						long elapsed = System.nanoTime() - lastPendingCheck;
 						// Only check for new connections every 250ms
 						// (This prevents a bad connection from spamming reconnect attempts)
-						if (elapsed > RECONNECT_TIME_NANOS) {
+						// (A newly added connection manager is allowed to connect immediately)
+						if (elapsed > RECONNECT_TIME_NANOS || connectRequested.getAndSet(false)) {
 							processPendingConnections();
 							lastPendingCheck = System.nanoTime();
 						}
 						
+						runTasks();
+						
 						logger.trace("Beginning select");
 						int changed = 0;
 						changed = select();
@@ -194,6 +327,12 @@ public class KafkaAsyncProcessor implements Wakeable {
 						ChannelContext context = (ChannelContext)key.attachment();
 						context.closedWithException(shutdownReason);
 					}
+					for (ChannelContext context : unresolved) {
+						context.closedWithException(shutdownReason);
+					}
+					unresolved.clear();
+					resolver.close();
+					runTasks();
 					
 					try {
 						selector.close();
@@ -2,7 +2,9 @@ package kafka.async;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -10,6 +12,10 @@ import java.nio.channels.UnresolvedAddressException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -22,6 +28,23 @@ import kafka.async.futures.ValueFuture;
 public class KafkaChannelContext implements ChannelContext {
 	
 	static Logger logger = LoggerFactory.getLogger(KafkaChannelContext.class);
+	
+	private static final int RESPONSE_HEADER_SIZE = KafkaAsyncProcessor.SIZEOF_INT32 + KafkaAsyncProcessor.SIZEOF_INT16;
+	
+	/**
+	 * Wakes lingering connections once their linger time has elapsed. Shared by
+	 * all connections; the tasks only update interest ops and wake the selector.
+	 */
+	private static final class LingerTimer {
+		static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kafka-linger-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
 
 	private SelectionKey selectionKey;
 	private AtomicInteger interestOps = new AtomicInteger();
@@ -29,8 +52,25 @@ public class KafkaChannelContext implements ChannelContext {
 	private ByteBuffer readBuffer;
 	private ByteBuffer writeBuffer;
 	
-	KafkaOperation currentWriteOp;
+	private LinkedList<KafkaOperation> currentWriteOps = new LinkedList<KafkaOperation>();
+	private KafkaOperation carriedWriteOp;
+	private boolean filling = true;
+	private long lingerDeadline;
+	private final long lingerNanos;
+	private final int lingerBytes;
+	private ScheduledFuture<?> lingerWakeup;
+	private final Runnable lingerElapsed = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				wakeup();
+			} catch (CancelledKeyException e) {
+				logger.trace("Connection was closed while lingering");
+			}
+		}
+	};
 	private LinkedList<KafkaOperation> readQueue = new LinkedList<KafkaOperation>();
+	private LinkedList<Long> readQueueTimes = new LinkedList<Long>();
 	
 	private SocketChannel socket;
 	
@@ -40,11 +80,26 @@ public class KafkaChannelContext implements ChannelContext {
 	private final ConnectionManager connectionManager;
 	
 	public KafkaChannelContext(KafkaBrokerIdentity brokerIdentity, ConnectionManager connectionManager, int maxRequestSize, int maxResponseSize) {
+		this(brokerIdentity, connectionManager, maxRequestSize, maxResponseSize, 0, 0);
+	}
+	
+	/**
+	 * @param brokerIdentity
+	 * @param connectionManager
+	 * @param maxRequestSize
+	 * @param maxResponseSize
+	 * @param lingerNanos The maximum time to hold a partially filled write buffer
+	 * while waiting for more operations
+	 * @param lingerBytes The number of buffered bytes after which the write buffer
+	 * is sent without waiting for more operations
+	 */
+	public KafkaChannelContext(KafkaBrokerIdentity brokerIdentity, ConnectionManager connectionManager, int maxRequestSize, int maxResponseSize, long lingerNanos, int lingerBytes) {
 		this.brokerIdentity = brokerIdentity;
 		this.connectionManager = connectionManager;
+		this.lingerNanos = lingerNanos;
+		this.lingerBytes = lingerBytes;
 		
 		writeBuffer = ByteBuffer.allocate(maxRequestSize);
-		writeBuffer.flip();
 		readBuffer = ByteBuffer.allocate(maxResponseSize);
 		
 		connected = new ValueFuture<Boolean>();
@@ -144,6 +199,7 @@ public class KafkaChannelContext implements ChannelContext {
 	@Override
 	public void doConnect() {
 		connected.completeWithValue(true);
+		connectionManager.connectionOpened(this);
 		logger.trace("Connection complete. Queuing first operation");
 		removeSelectionKeyInterestOps(SelectionKey.OP_CONNECT);
 		addSelectionKeyInterestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
@@ -177,12 +233,20 @@ public class KafkaChannelContext implements ChannelContext {
 					throw new IOException("Response is "+totalResponseSize+" bytes. Maximum response is "+readBuffer.capacity()+" bytes");
 				}
 			}
+			// Every response starts with its size and error code
+			int errorCode = readBuffer.position() >= RESPONSE_HEADER_SIZE ? readBuffer.getShort(KafkaAsyncProcessor.SIZEOF_INT32) : 0;
 			if (readQueue.getFirst().executeRead(readBuffer)) {
 				if (logger.isTraceEnabled()) {
 					logger.trace("Response complete, removing 1 of "+readQueue.size()+" responses");
 				}
+				if (readBuffer.position() < RESPONSE_HEADER_SIZE) {
+					// The operation completed without consuming a response (it is
+					// confirmed by the next one), so the error code is not its own
+					errorCode = 0;
+				}
 				readQueue.removeFirst();
 				readBuffer.compact();
+				connectionManager.responseReceived(this, System.nanoTime() - readQueueTimes.removeFirst(), errorCode);
 			} else {
 				break;
 			}
@@ -199,44 +263,120 @@ public class KafkaChannelContext implements ChannelContext {
 	
 	@Override
 	public void doWrite(SocketChannel channel) throws IOException {
-		if (writeBuffer.hasRemaining()) {
+		if (!filling && writeBuffer.hasRemaining()) {
 			int bytes = channel.write(writeBuffer);
 			if (logger.isTraceEnabled()) {
 				logger.trace("Wrote "+bytes+" bytes. "+writeBuffer.remaining()+" bytes left");
 			}
 		}
 		
-		if (!writeBuffer.hasRemaining()) {
-			if (currentWriteOp != null) {
+		if (!filling && !writeBuffer.hasRemaining()) {
+			if (!currentWriteOps.isEmpty()) {
 				logger.trace("Write for operation is complete");
-				currentWriteOp.writeComplete();
-				currentWriteOp = null;
-			}
-			
-			logger.trace("No write pending. Socket removing OP_WRITE from interest ops");
-			removeSelectionKeyInterestOps(SelectionKey.OP_WRITE);
-			
-			KafkaOperation nextOp = connectionManager.getNextOperationFor(this);
-
-			if (nextOp != null) {
-				logger.trace("Next operation is ready. Socket adding OP_WRITE to interest ops");
-				addSelectionKeyInterestOps(SelectionKey.OP_WRITE);
-				currentWriteOp = nextOp;
-				
-				writeBuffer.clear();
-				if (nextOp.canRead()) {
-					readQueue.add(nextOp);
-					logger.trace("Next operation requires a response. Socket adding OP_READ to interest ops");
-					addSelectionKeyInterestOps(SelectionKey.OP_READ);
+				for (KafkaOperation op : currentWriteOps) {
+					op.writeComplete();
 				}
-				logger.trace("Filling buffer with next write request");
-				nextOp.executeWrite(writeBuffer);
-				writeBuffer.flip();
-			} else {
+				currentWriteOps.clear();
+			}
+			writeBuffer.clear();
+			filling = true;
+		}
+		
+		if (filling) {
+			fillWriteBuffer();
+		}
+	}
+	
+	/**
+	 * Adds queued operations to the write buffer. Operations are added until the
+	 * buffer holds at least the linger byte threshold, the buffer is full, or no
+	 * more operations are waiting. If operations run out before the threshold is
+	 * reached, the buffer is held until the linger time has elapsed. While it is
+	 * held, OP_WRITE is left out of the interest ops so that the selector does
+	 * not spin on the writable socket. The connection is woken (and this method
+	 * called again) when another operation is queued for it, which may reach the
+	 * byte threshold, or by the linger timer once the deadline has passed.<p>
+	 * 
+	 * With the default linger settings, exactly one operation is buffered at a
+	 * time and it is flushed immediately.
+	 */
+	private void fillWriteBuffer() {
+		logger.trace("No write pending. Socket removing OP_WRITE from interest ops");
+		removeSelectionKeyInterestOps(SelectionKey.OP_WRITE);
+		
+		boolean full = false;
+		while (writeBuffer.position() == 0 || writeBuffer.position() < lingerBytes) {
+			KafkaOperation nextOp = carriedWriteOp;
+			carriedWriteOp = null;
+			if (nextOp == null) {
+				nextOp = connectionManager.getNextOperationFor(this);
+			}
+			if (nextOp == null) {
 				logger.trace("No operations waiting");
+				break;
+			}
+			
+			if (writeBuffer.position() == 0) {
+				lingerDeadline = System.nanoTime() + lingerNanos;
+			}
+			logger.trace("Filling buffer with next write request");
+			if (!appendOperation(nextOp)) {
+				logger.trace("Next operation does not fit in the write buffer. Holding it for the next write");
+				carriedWriteOp = nextOp;
+				full = true;
+				break;
+			}
+		}
+		
+		if (writeBuffer.position() == 0) {
+			return;
+		}
+		
+		long remaining = lingerDeadline - System.nanoTime();
+		if (full || writeBuffer.position() >= lingerBytes || remaining <= 0) {
+			if (lingerWakeup != null) {
+				lingerWakeup.cancel(false);
+				lingerWakeup = null;
 			}
+			logger.trace("Next operation is ready. Socket adding OP_WRITE to interest ops");
+			addSelectionKeyInterestOps(SelectionKey.OP_WRITE);
+			writeBuffer.flip();
+			filling = false;
+		} else if (lingerWakeup == null || lingerWakeup.isDone()) {
+			if (logger.isTraceEnabled()) {
+				logger.trace("Lingering with "+writeBuffer.position()+" buffered bytes for up to "+remaining+"ns");
+			}
+			lingerWakeup = LingerTimer.timer.schedule(lingerElapsed, remaining, TimeUnit.NANOSECONDS);
 		}
 	}
+	
+	/**
+	 * Encodes an operation into the write buffer.
+	 * @param op
+	 * @return false if the operation did not fit into the remaining space of a
+	 * partially filled buffer. The buffer is left as it was before the call.
+	 */
+	private boolean appendOperation(KafkaOperation op) {
+		int mark = writeBuffer.position();
+		try {
+			op.executeWrite(writeBuffer);
+		} catch (BufferOverflowException e) {
+			if (mark == 0) {
+				throw e;
+			}
+			writeBuffer.position(mark);
+			return false;
+		}
+		
+		currentWriteOps.add(op);
+		if (op.canRead()) {
+			readQueue.add(op);
+			readQueueTimes.add(System.nanoTime());
+			logger.trace("Next operation requires a response. Socket adding OP_READ to interest ops");
+			addSelectionKeyInterestOps(SelectionKey.OP_READ);
+		}
+		return true;
+	}
 
 	@Override
 	public synchronized void closedWithException(Exception e) {
@@ -249,6 +389,15 @@ public class KafkaChannelContext implements ChannelContext {
 			pendingReads.remove();
 			op.responseFailed(e);
 		}
+		readQueueTimes.clear();
+		if (lingerWakeup != null) {
+			lingerWakeup.cancel(false);
+			lingerWakeup = null;
+		}
+		if (carriedWriteOp != null) {
+			carriedWriteOp.requestFailed(e);
+			carriedWriteOp = null;
+		}
 		if (selectionKey != null) {
 			selectionKey.cancel();
 			selectionKey.attach(null);
@@ -17,6 +17,15 @@ public interface KafkaOperation {
 	 */
 	public KafkaBrokerIdentity getTargetBroker();
 	
+	/**
+	 * Notifies the operation that it has been placed in the queue for its broker.
+	 * If the operation is cancelled before it is started, it should run the
+	 * provided handle so that it is removed from the queue immediately. Operations
+	 * that cannot be cancelled may ignore the handle.
+	 * @param dequeue
+	 */
+	public void enqueued(Runnable dequeue);
+	
 	/**
 	 * Notifies the operation that execution is starting. The operation should return
 	 * false if the operation should no longer be executed (e.g. if it has been
@@ -27,7 +36,10 @@ public interface KafkaOperation {
 	
 	/**
 	 * Fills the provided ByteBuffer with the data of this request. It is expected
-	 * that this method will be called exactly once for each KafkaOperation.
+	 * that this method will be called once for each KafkaOperation. However, if
+	 * the request does not fit in the space remaining after other requests, the
+	 * buffer is reset and the method is called again later with a fresh buffer,
+	 * so each call must write the complete request.
 	 * @return
 	 */
 	public void executeWrite(ByteBuffer buffer);
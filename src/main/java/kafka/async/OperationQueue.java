@@ -0,0 +1,131 @@
+package kafka.async;
+
+/**
+ * A FIFO queue of operations waiting for a connection to a particular broker.<p>
+ *
+ * Each queued operation is held by an intrusive {@link Node}, which can unlink
+ * itself from the queue in constant time. This allows an operation that has
+ * been cancelled by the caller to leave the queue immediately, rather than
+ * waiting for the IO thread to reach it and discover that it can no longer be
+ * started.<p>
+ *
+ * This class is thread-safe. It uses its own lock, so that nodes can be removed
+ * without acquiring any of the locks held by the connection manager.<p>
+ * @author tbrown
+ */
+public class OperationQueue {
+
+	private final Object lock = new Object();
+
+	private Node head;
+	private Node tail;
+	private int size = 0;
+
+	/**
+	 * A handle to a single queued operation. Running the node removes it from
+	 * its queue (if it has not already been removed).
+	 */
+	public final class Node implements Runnable {
+		private final KafkaOperation operation;
+		private Node prev;
+		private Node next;
+		private boolean linked;
+
+		private Node(KafkaOperation operation) {
+			this.operation = operation;
+		}
+
+		public KafkaOperation operation() {
+			return operation;
+		}
+
+		@Override
+		public void run() {
+			remove(this);
+		}
+	}
+
+	/**
+	 * Adds an operation to the end of the queue.
+	 * @param operation
+	 * @return The node that can be used to remove the operation from the queue
+	 */
+	public Node add(KafkaOperation operation) {
+		Node node = new Node(operation);
+		synchronized (lock) {
+			node.prev = tail;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+			node.linked = true;
+			size++;
+		}
+		return node;
+	}
+
+	/**
+	 * Removes and returns the operation at the front of the queue.
+	 * @return The first operation, or null if the queue is empty
+	 */
+	public KafkaOperation poll() {
+		synchronized (lock) {
+			Node node = head;
+			if (node == null) {
+				return null;
+			}
+			unlink(node);
+			return node.operation;
+		}
+	}
+
+	/**
+	 * Removes a node from the queue in constant time.
+	 * @param node
+	 * @return true if the node was removed, false if it had already been removed
+	 */
+	public boolean remove(Node node) {
+		synchronized (lock) {
+			if (!node.linked) {
+				return false;
+			}
+			unlink(node);
+			return true;
+		}
+	}
+
+	public int size() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	public boolean isEmpty() {
+		synchronized (lock) {
+			return size == 0;
+		}
+	}
+
+	/**
+	 * <b>Note:</b> Must be called within a synchronized section for this queue
+	 * @param node
+	 */
+	private void unlink(Node node) {
+		if (node.prev == null) {
+			head = node.next;
+		} else {
+			node.prev.next = node.next;
+		}
+		if (node.next == null) {
+			tail = node.prev;
+		} else {
+			node.next.prev = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+		node.linked = false;
+		size--;
+	}
+}
@@ -0,0 +1,32 @@
+package kafka.async.client;
+
+import kafka.async.KafkaPartitionIdentity;
+
+/**
+ * Receives the progress of messages produced with
+ * {@link PartitionProducer#produceSequenced(KafkaPartitionIdentity, byte[])}.
+ * Listeners are called on the thread that completes a batch (usually the IO
+ * thread), so they must return quickly and must not block.
+ * @author tbrown
+ */
+public interface AcknowledgmentListener {
+
+	/**
+	 * Called when the acknowledged watermark of a partition advances: every
+	 * sequenced message of the partition up to and including the watermark has
+	 * either been acknowledged or has failed.
+	 * @param partition
+	 * @param watermark
+	 */
+	public void acknowledged(KafkaPartitionIdentity partition, long watermark);
+
+	/**
+	 * Called when sequenced messages have failed permanently, before the
+	 * watermark advances past them.
+	 * @param partition
+	 * @param firstSequence
+	 * @param lastSequence
+	 * @param reason
+	 */
+	public void failed(KafkaPartitionIdentity partition, long firstSequence, long lastSequence, Exception reason);
+}
@@ -0,0 +1,210 @@
+package kafka.async.client;
+
+import kafka.async.KafkaBrokerIdentity;
+
+/**
+ * Tracks the recent history of a single broker: connection failures, successful
+ * connects, responses and error responses, and response latency.<p>
+ *
+ * The score is an exponentially weighted average of the outcomes of recent
+ * events, where 1.0 means every recent event succeeded and 0.0 means every
+ * recent event failed. A failed connection and a response carrying a Kafka
+ * error code are failed events. A response slower than the slow response
+ * latency counts as partly failed, in proportion to how slow it was.<p>
+ *
+ * The broker's circuit opens as soon as the score drops below the score
+ * threshold. While it is open, operations for the broker should fail fast or
+ * be sent elsewhere. Once the retry delay has passed, the circuit is half
+ * open: a single probe operation is allowed through (see {@link #allowRequest()}),
+ * and the next outcome decides whether the circuit closes again, with the
+ * score reset, or stays open for another retry delay. If no outcome arrives
+ * within the retry delay, another probe is allowed.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public class BrokerHealth {
+
+	private final static double WEIGHT = 0.2;
+
+	private enum Circuit { CLOSED, OPEN, HALF_OPEN }
+
+	public final KafkaBrokerIdentity broker;
+	private double scoreThreshold;
+	private long retryDelayNanos;
+	private long slowLatencyNanos;
+
+	private double score = 1.0;
+	private long latencyNanos = 0;
+	private int consecutiveFailures = 0;
+	private long totalFailures = 0;
+	private long errorResponses = 0;
+	private Circuit circuit = Circuit.CLOSED;
+	private long openedNanos;
+
+	/**
+	 * @param broker
+	 * @param scoreThreshold The score below which the circuit opens. A value of
+	 * 0 means never.
+	 * @param retryDelayNanos How long the circuit stays open before a probe is
+	 * allowed through
+	 * @param slowLatencyNanos The response latency above which responses lower
+	 * the score. A value of 0 means latency does not affect the score.
+	 */
+	public BrokerHealth(KafkaBrokerIdentity broker, double scoreThreshold, long retryDelayNanos, long slowLatencyNanos) {
+		this.broker = broker;
+		this.scoreThreshold = scoreThreshold;
+		this.retryDelayNanos = retryDelayNanos;
+		this.slowLatencyNanos = slowLatencyNanos;
+	}
+
+	/**
+	 * Records that a connection to the broker has finished connecting.
+	 */
+	public synchronized void connectSucceeded() {
+		consecutiveFailures = 0;
+		outcome(1.0);
+	}
+
+	/**
+	 * Records that a connection to the broker failed, either while connecting or
+	 * after it had been established.
+	 */
+	public synchronized void connectionFailed() {
+		consecutiveFailures++;
+		totalFailures++;
+		outcome(0.0);
+	}
+
+	/**
+	 * Records a complete response from the broker.
+	 * @param latency The time between the request being queued for a response
+	 * and the response being processed
+	 * @param errorCode The Kafka error code of the response, or 0 if none
+	 */
+	public synchronized void responseReceived(long latency, int errorCode) {
+		if (latencyNanos == 0) {
+			latencyNanos = latency;
+		} else {
+			latencyNanos += (long)(WEIGHT * (latency - latencyNanos));
+		}
+		if (errorCode != 0) {
+			errorResponses++;
+			outcome(0.0);
+		} else if (slowLatencyNanos > 0 && latency > slowLatencyNanos) {
+			outcome((double)slowLatencyNanos / latency);
+		} else {
+			outcome(1.0);
+		}
+	}
+
+	/**
+	 * Folds the outcome of an event (between 0.0 for a failure and 1.0 for a
+	 * success) into the score, and opens or closes the circuit accordingly.
+	 */
+	private void outcome(double outcome) {
+		score += WEIGHT * (outcome - score);
+		if (scoreThreshold <= 0) {
+			circuit = Circuit.CLOSED;
+			return;
+		}
+		switch (circuit) {
+		case CLOSED:
+			if (score < scoreThreshold) {
+				circuit = Circuit.OPEN;
+				openedNanos = System.nanoTime();
+			}
+			break;
+		case HALF_OPEN:
+			if (outcome >= scoreThreshold) {
+				circuit = Circuit.CLOSED;
+				score = 1.0;
+			} else {
+				circuit = Circuit.OPEN;
+				openedNanos = System.nanoTime();
+			}
+			break;
+		case OPEN:
+			// Stays open until the retry delay has passed and a probe decides
+			break;
+		}
+	}
+
+	public synchronized void setScoreThreshold(double scoreThreshold) {
+		this.scoreThreshold = scoreThreshold;
+		if (scoreThreshold <= 0) {
+			circuit = Circuit.CLOSED;
+		}
+	}
+
+	public synchronized void setRetryDelay(long retryDelayNanos) {
+		this.retryDelayNanos = retryDelayNanos;
+	}
+
+	public synchronized void setSlowLatency(long slowLatencyNanos) {
+		this.slowLatencyNanos = slowLatencyNanos;
+	}
+
+	public synchronized double getScore() {
+		return score;
+	}
+
+	/**
+	 * Returns the weighted average response latency, or 0 if no responses have
+	 * been received.
+	 */
+	public synchronized long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	public synchronized long getTotalFailures() {
+		return totalFailures;
+	}
+
+	/**
+	 * Returns the number of responses that carried a Kafka error code
+	 */
+	public synchronized long getErrorResponses() {
+		return errorResponses;
+	}
+
+	/**
+	 * Returns false if the circuit for this broker is open, in which case new
+	 * operations for the broker should fail fast or be sent elsewhere. Returns
+	 * true once a probe is due, so that work is routed to the broker again
+	 * while the circuit is half open.
+	 */
+	public synchronized boolean isAvailable() {
+		return circuit == Circuit.CLOSED || probeDue();
+	}
+
+	/**
+	 * Returns true if an operation may be sent to the broker. While the circuit
+	 * is open, this returns true once per retry delay, for the operation that
+	 * probes whether the broker has recovered.
+	 */
+	public synchronized boolean allowRequest() {
+		if (circuit == Circuit.CLOSED) {
+			return true;
+		}
+		if (!probeDue()) {
+			return false;
+		}
+		circuit = Circuit.HALF_OPEN;
+		openedNanos = System.nanoTime();
+		return true;
+	}
+
+	private boolean probeDue() {
+		return System.nanoTime() - openedNanos >= retryDelayNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return broker+" score="+score+" circuit="+circuit+" latency="+latencyNanos+"ns consecutiveFailures="+consecutiveFailures+" errorResponses="+errorResponses;
+	}
+}
@@ -0,0 +1,206 @@
+package kafka.async.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Controls how the checksums of fetched messages are verified. Verification
+ * always happens on the thread that consumes the message set (never the IO
+ * thread):
+ * <ul>
+ * <li>{@link #NONE}: checksums are only verified if the application calls
+ * {@link Message#validateChecksum()}.</li>
+ * <li>{@link #LAZY}: each message is verified the first time its contents are
+ * accessed through {@link Message#getContents()},
+ * {@link Message#getUncompressedContents()} or {@link Message#asMessageSet()}.
+ * Messages that are skipped are never verified.</li>
+ * <li>{@link #eager(Executor)}: every message is verified when the message set
+ * is first iterated, with regions of the set verified in parallel on the
+ * executor.</li>
+ * <li>{@link #sample(double)}: a random fraction of the messages is verified
+ * when the message set is first iterated.</li>
+ * </ul>
+ * The checksum of a compressed message covers its compressed contents, so
+ * eager and sampled verification do not decompress messages to verify the
+ * messages nested within them.<p>
+ *
+ * A corrupt message causes a RuntimeException to be thrown.<p>
+ *
+ * This class is immutable.
+ * @author tbrown
+ */
+public final class ChecksumVerification {
+
+	public static enum Mode {
+		NONE,
+		LAZY,
+		EAGER,
+		SAMPLE,
+	}
+
+	/**
+	 * The number of bytes of a message set verified by each parallel task
+	 */
+	public static final int EAGER_REGION_SIZE = 256 * 1024;
+
+	public static final ChecksumVerification NONE = new ChecksumVerification(Mode.NONE, null, 0);
+	public static final ChecksumVerification LAZY = new ChecksumVerification(Mode.LAZY, null, 0);
+
+	private final Mode mode;
+	private final Executor executor;
+	private final double fraction;
+
+	private ChecksumVerification(Mode mode, Executor executor, double fraction) {
+		this.mode = mode;
+		this.executor = executor;
+		this.fraction = fraction;
+	}
+
+	/**
+	 * Verifies every message when the message set is first iterated.
+	 * @param executor Verifies regions of large message sets in parallel with the
+	 * consuming thread. If null, the consuming thread verifies every message.
+	 */
+	public static ChecksumVerification eager(Executor executor) {
+		return new ChecksumVerification(Mode.EAGER, executor, 0);
+	}
+
+	/**
+	 * Verifies a random sample of the messages when the message set is first
+	 * iterated.
+	 * @param fraction The fraction of messages to verify (greater than 0, and at
+	 * most 1)
+	 */
+	public static ChecksumVerification sample(double fraction) {
+		if (!(fraction > 0 && fraction <= 1)) {
+			throw new IllegalArgumentException("Fraction must be greater than 0 and at most 1");
+		}
+		return new ChecksumVerification(Mode.SAMPLE, null, fraction);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public double getSampleFraction() {
+		return fraction;
+	}
+
+	/**
+	 * Verifies the complete messages of a (top level) message set according to
+	 * this policy. Does nothing for NONE and LAZY.
+	 * @param offset The offset of the first byte of the buffer within the partition
+	 * @param buffer The messages, from position to limit
+	 */
+	void verify(final long offset, final ByteBuffer buffer) {
+		switch (mode) {
+		case EAGER:
+			verifyParallel(offset, buffer);
+			break;
+		case SAMPLE:
+			verifyRegion(offset, buffer, 0, buffer.remaining(), fraction, System.nanoTime());
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void verifyParallel(final long offset, final ByteBuffer buffer) {
+		if (executor == null || buffer.remaining() <= EAGER_REGION_SIZE) {
+			verifyRegion(offset, buffer, 0, buffer.remaining(), 1, 0);
+			return;
+		}
+
+		// Split the message set at message boundaries into regions of about
+		// EAGER_REGION_SIZE bytes
+		ArrayList<FutureTask<Void>> regions = new ArrayList<FutureTask<Void>>();
+		int limit = buffer.remaining();
+		int regionStart = 0;
+		int position = 0;
+		while (limit - position >= 4) {
+			int length = buffer.getInt(buffer.position() + position);
+			if (length < 0 || limit - position - 4 < length) {
+				break;
+			}
+			position += 4 + length;
+			if (position - regionStart >= EAGER_REGION_SIZE) {
+				regions.add(submit(offset, buffer, regionStart, position, regions.isEmpty()));
+				regionStart = position;
+			}
+		}
+		if (position > regionStart) {
+			regions.add(submit(offset, buffer, regionStart, position, regions.isEmpty()));
+		}
+
+		RuntimeException failure = null;
+		for (FutureTask<Void> region : regions) {
+			// Does nothing if the executor has already started the task
+			region.run();
+			try {
+				region.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while verifying checksums", e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = (e.getCause() instanceof RuntimeException)
+							? (RuntimeException)e.getCause()
+							: new RuntimeException("Error occurred while verifying checksums", e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private FutureTask<Void> submit(final long offset, final ByteBuffer buffer, final int start, final int end, boolean first) {
+		FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				verifyRegion(offset, buffer, start, end, 1, 0);
+			}
+		}, null);
+		if (!first) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				// The region will be verified by the calling thread
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * Verifies the complete messages between the specified positions (relative
+	 * to the buffer's position).
+	 * @param fraction The fraction of messages to verify
+	 * @param seed Seeds the choice of messages when sampling
+	 */
+	private static void verifyRegion(long offset, ByteBuffer buffer, int start, int end, double fraction, long seed) {
+		ByteBuffer copy = buffer.slice();
+		copy.limit(end);
+		copy.position(start);
+		// Messages are chosen by comparing a xorshift sequence with the fraction
+		long threshold = (long)(fraction * Long.MAX_VALUE);
+		long random = seed | 1;
+		int position = start;
+		while (Message.hasCompleteMessage(copy)) {
+			Message message = Message.createMessage(offset + position, position, copy);
+			position = message.endOffset;
+			if (fraction < 1) {
+				random ^= random << 13;
+				random ^= random >>> 7;
+				random ^= random << 17;
+				if ((random >>> 1) >= threshold) {
+					continue;
+				}
+			}
+			message.validateChecksum();
+		}
+	}
+}
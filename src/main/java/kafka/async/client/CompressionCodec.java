@@ -0,0 +1,50 @@
+package kafka.async.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses and uncompresses the contents of kafka wrapper messages for one of
+ * the Message.COMPRESSION_* codecs. Codecs are looked up with
+ * {@link CompressionCodecs#forId(int)}.<p>
+ *
+ * Implementations must be thread-safe. They are expected to keep expensive
+ * state (such as native zlib streams and scratch buffers) in per-thread pools,
+ * so that compressing or uncompressing a message does not allocate it again.
+ * @author tbrown
+ */
+public interface CompressionCodec {
+
+	/**
+	 * The value of the compression byte in messages that use this codec.
+	 */
+	public int id();
+
+	public String name();
+
+	/**
+	 * Returns a stream that compresses everything written to it into the
+	 * specified stream. Closing the returned stream finishes the compressed data
+	 * and closes the underlying stream.<p>
+	 *
+	 * A thread may only have one open compressing stream per codec. Opening
+	 * another stream on the same thread invalidates the first one.
+	 * @param out
+	 */
+	public OutputStream compressingStream(OutputStream out) throws IOException;
+
+	/**
+	 * Uncompresses the remaining bytes of the buffer. The position of the buffer
+	 * is not changed.
+	 * @param compressed
+	 * @return A new buffer containing the uncompressed bytes
+	 */
+	public ByteBuffer uncompress(ByteBuffer compressed);
+
+	/**
+	 * Returns the counters for everything compressed and uncompressed by this
+	 * codec.
+	 */
+	public CompressionStats getStats();
+}
@@ -0,0 +1,50 @@
+package kafka.async.client;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The registry of compression codecs, indexed by the compression byte of a
+ * message (see Message.COMPRESSION_*). The gzip and snappy codecs are
+ * registered by default; either can be replaced, or a codec added for another
+ * id, with {@link #register(CompressionCodec)}.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public final class CompressionCodecs {
+
+	private static final AtomicReferenceArray<CompressionCodec> codecs = new AtomicReferenceArray<CompressionCodec>(256);
+
+	static {
+		register(new GzipCodec());
+		register(new SnappyCodec());
+	}
+
+	private CompressionCodecs() {
+	}
+
+	/**
+	 * Returns the codec for a message compression id, or null if there is none
+	 * (including for Message.COMPRESSION_NONE).
+	 * @param id
+	 */
+	public static CompressionCodec forId(int id) {
+		if (id <= 0 || id >= codecs.length()) {
+			return null;
+		}
+		return codecs.get(id);
+	}
+
+	/**
+	 * Registers a codec, replacing any codec previously registered with the same
+	 * id.
+	 * @param codec
+	 */
+	public static void register(CompressionCodec codec) {
+		int id = codec.id();
+		if (id <= 0 || id >= codecs.length()) {
+			throw new IllegalArgumentException("Codec id must be between 1 and "+(codecs.length()-1)+": "+id);
+		}
+		codecs.set(id, codec);
+	}
+}
@@ -0,0 +1,123 @@
+package kafka.async.client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes processed by a compression codec and the CPU time spent
+ * doing so. CPU time is measured per thread where the JVM supports it, and
+ * falls back to elapsed time otherwise.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public class CompressionStats {
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+
+	private final AtomicLong compressCalls = new AtomicLong();
+	private final AtomicLong compressBytesIn = new AtomicLong();
+	private final AtomicLong compressBytesOut = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+
+	private final AtomicLong uncompressCalls = new AtomicLong();
+	private final AtomicLong uncompressBytesIn = new AtomicLong();
+	private final AtomicLong uncompressBytesOut = new AtomicLong();
+	private final AtomicLong uncompressNanos = new AtomicLong();
+
+	/**
+	 * Returns the CPU time of the current thread, for measuring the time spent
+	 * in a codec.
+	 */
+	static long threadTime() {
+		return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	void recordCompression(long uncompressedBytes, long compressedBytes, long startTime) {
+		compressCalls.incrementAndGet();
+		compressBytesIn.addAndGet(uncompressedBytes);
+		compressBytesOut.addAndGet(compressedBytes);
+		compressNanos.addAndGet(threadTime() - startTime);
+	}
+
+	void recordUncompression(long compressedBytes, long uncompressedBytes, long startTime) {
+		recordUncompression(compressedBytes, uncompressedBytes);
+		recordUncompressTime(startTime);
+	}
+
+	/**
+	 * Records a completed uncompression whose time was recorded separately (for
+	 * data uncompressed incrementally)
+	 */
+	void recordUncompression(long compressedBytes, long uncompressedBytes) {
+		uncompressCalls.incrementAndGet();
+		uncompressBytesIn.addAndGet(compressedBytes);
+		uncompressBytesOut.addAndGet(uncompressedBytes);
+	}
+
+	void recordUncompressTime(long startTime) {
+		uncompressNanos.addAndGet(threadTime() - startTime);
+	}
+
+	public long getCompressCalls() {
+		return compressCalls.get();
+	}
+
+	/**
+	 * The number of uncompressed bytes that have been compressed.
+	 */
+	public long getCompressBytesIn() {
+		return compressBytesIn.get();
+	}
+
+	/**
+	 * The number of compressed bytes produced by compression.
+	 */
+	public long getCompressBytesOut() {
+		return compressBytesOut.get();
+	}
+
+	public long getCompressTime(TimeUnit unit) {
+		return unit.convert(compressNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * The compressed size divided by the uncompressed size of everything that has
+	 * been compressed, or 1 if nothing has been compressed yet.
+	 */
+	public double getCompressionRatio() {
+		long in = compressBytesIn.get();
+		return in == 0 ? 1.0 : (double)compressBytesOut.get() / in;
+	}
+
+	public long getUncompressCalls() {
+		return uncompressCalls.get();
+	}
+
+	/**
+	 * The number of compressed bytes that have been uncompressed.
+	 */
+	public long getUncompressBytesIn() {
+		return uncompressBytesIn.get();
+	}
+
+	/**
+	 * The number of bytes produced by uncompressing.
+	 */
+	public long getUncompressBytesOut() {
+		return uncompressBytesOut.get();
+	}
+
+	public long getUncompressTime(TimeUnit unit) {
+		return unit.convert(uncompressNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "compressed "+getCompressBytesIn()+" -> "+getCompressBytesOut()+" bytes in "+getCompressTime(TimeUnit.MILLISECONDS)+"ms, "+
+			"uncompressed "+getUncompressBytesIn()+" -> "+getUncompressBytesOut()+" bytes in "+getUncompressTime(TimeUnit.MILLISECONDS)+"ms";
+	}
+}
@@ -0,0 +1,163 @@
+package kafka.async.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kafka.async.futures.SettableFuture;
+
+/**
+ * The confirmations owed for a list of messages, in the same order as the
+ * messages. A message is confirmed either through its own future, or (if it
+ * was produced with a sequence number) by advancing the acknowledged
+ * watermark of the partition that assigned the sequence. Consecutive
+ * sequenced messages are held as a single range, so queueing and confirming
+ * them does not allocate per message.<p>
+ *
+ * This class is not thread-safe. It is guarded by the lock of the partition
+ * queue that holds it, or owned by a single request.
+ * @author tbrown
+ */
+public final class Confirmations {
+
+	/**
+	 * Consecutive sequences assigned by a single watermark
+	 */
+	private static final class Range {
+		final SequenceWatermark watermark;
+		final long first;
+		int count;
+
+		Range(SequenceWatermark watermark, long first, int count) {
+			this.watermark = watermark;
+			this.first = first;
+			this.count = count;
+		}
+	}
+
+	// Each entry is a SettableFuture<Boolean> (one message) or a Range
+	private final ArrayList<Object> entries;
+	private int size = 0;
+
+	public Confirmations() {
+		entries = new ArrayList<Object>();
+	}
+
+	/**
+	 * Creates confirmations for messages that each have a future
+	 * @param futures
+	 */
+	public Confirmations(List<SettableFuture<Boolean>> futures) {
+		entries = new ArrayList<Object>(futures);
+		size = futures.size();
+	}
+
+	/**
+	 * The number of messages confirmed
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	void add(SettableFuture<Boolean> future) {
+		entries.add(future);
+		size++;
+	}
+
+	void add(SequenceWatermark watermark, long sequence) {
+		if (!entries.isEmpty()) {
+			Object last = entries.get(entries.size() - 1);
+			if (last instanceof Range) {
+				Range range = (Range)last;
+				if (range.watermark == watermark && range.first + range.count == sequence) {
+					range.count++;
+					size++;
+					return;
+				}
+			}
+		}
+		entries.add(new Range(watermark, sequence, 1));
+		size++;
+	}
+
+	void addAll(Confirmations other) {
+		entries.addAll(other.entries);
+		size += other.size;
+	}
+
+	void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Removes the confirmations of the first messages.
+	 * @param count The number of messages
+	 * @return The removed confirmations
+	 */
+	Confirmations take(int count) {
+		Confirmations taken = new Confirmations();
+		if (count >= size) {
+			taken.addAll(this);
+			clear();
+			return taken;
+		}
+		int entryCount = 0;
+		int remaining = count;
+		while (remaining > 0) {
+			Object entry = entries.get(entryCount);
+			if (entry instanceof Range) {
+				Range range = (Range)entry;
+				if (range.count > remaining) {
+					// Split the range between the batch and the queue
+					taken.entries.add(new Range(range.watermark, range.first, remaining));
+					entries.set(entryCount, new Range(range.watermark, range.first + remaining, range.count - remaining));
+					break;
+				}
+				remaining -= range.count;
+			} else {
+				remaining--;
+			}
+			taken.entries.add(entry);
+			entryCount++;
+		}
+		entries.subList(0, entryCount).clear();
+		taken.size = count;
+		size -= count;
+		return taken;
+	}
+
+	/**
+	 * Confirms every message.
+	 */
+	@SuppressWarnings("unchecked")
+	public void succeeded() {
+		for (Object entry : entries) {
+			if (entry instanceof Range) {
+				Range range = (Range)entry;
+				range.watermark.acknowledged(range.first, range.first + range.count - 1);
+			} else {
+				((SettableFuture<Boolean>)entry).completeWithValue(true);
+			}
+		}
+	}
+
+	/**
+	 * Fails every message.
+	 * @param reason
+	 */
+	@SuppressWarnings("unchecked")
+	public void failed(Exception reason) {
+		for (Object entry : entries) {
+			if (entry instanceof Range) {
+				Range range = (Range)entry;
+				range.watermark.failed(range.first, range.first + range.count - 1, reason);
+			} else {
+				((SettableFuture<Boolean>)entry).completeWithException(reason);
+			}
+		}
+	}
+}
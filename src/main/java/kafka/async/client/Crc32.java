@@ -0,0 +1,137 @@
+package kafka.async.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the CRC32 of a whole region in one call, rather than updating a
+ * checksum as each piece is written. Heap buffers and arrays are checksummed
+ * in place. Direct buffers are checksummed in place when the JDK supports
+ * CRC32.update(ByteBuffer) (Java 8 and later, where it is an intrinsic), and
+ * are otherwise copied through a per-thread scratch array.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public final class Crc32 {
+
+	static Logger logger = LoggerFactory.getLogger(Crc32.class);
+
+	private static final int SCRATCH_SIZE = 8192;
+
+	private static final BufferUpdater UPDATE_BUFFER = findUpdateBuffer();
+
+	/**
+	 * Checksums the remaining bytes of a buffer in place
+	 */
+	interface BufferUpdater {
+		void update(CRC32 crc, ByteBuffer buffer);
+	}
+
+	/**
+	 * Calls CRC32.update(ByteBuffer) directly. It is only loaded (by name) once
+	 * that method is known to exist, so this class still runs on JDKs without it.
+	 */
+	static final class DirectBufferUpdater implements BufferUpdater {
+		@Override
+		public void update(CRC32 crc, ByteBuffer buffer) {
+			crc.update(buffer);
+		}
+	}
+
+	private static final class Resources {
+		final CRC32 crc = new CRC32();
+		byte[] scratch;
+	}
+
+	private static final ThreadLocal<Resources> resources = new ThreadLocal<Resources>() {
+		@Override
+		protected Resources initialValue() {
+			return new Resources();
+		}
+	};
+
+	private Crc32() {
+	}
+
+	private static BufferUpdater findUpdateBuffer() {
+		try {
+			CRC32.class.getMethod("update", ByteBuffer.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		try {
+			BufferUpdater updater = (BufferUpdater)Class.forName(Crc32.class.getName()+"$DirectBufferUpdater").getDeclaredConstructor().newInstance();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Checksumming direct buffers with CRC32.update(ByteBuffer)");
+			}
+			return updater;
+		} catch (ClassNotFoundException e) {
+			return updaterUnavailable(e);
+		} catch (NoSuchMethodException e) {
+			return updaterUnavailable(e);
+		} catch (InstantiationException e) {
+			return updaterUnavailable(e);
+		} catch (IllegalAccessException e) {
+			return updaterUnavailable(e);
+		} catch (InvocationTargetException e) {
+			return updaterUnavailable(e);
+		} catch (LinkageError e) {
+			return updaterUnavailable(e);
+		}
+	}
+
+	private static BufferUpdater updaterUnavailable(Throwable reason) {
+		logger.debug("Unable to load the direct buffer checksum, so direct buffers will be copied", reason);
+		return null;
+	}
+
+	/**
+	 * Returns the CRC32 of the specified bytes, as stored in a message header.
+	 */
+	public static int compute(byte[] bytes, int offset, int length) {
+		CRC32 crc = resources.get().crc;
+		crc.reset();
+		crc.update(bytes, offset, length);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Returns the CRC32 of the bytes between the specified absolute positions of
+	 * the buffer, as stored in a message header. The buffer's position and limit
+	 * are not changed.
+	 * @param buffer
+	 * @param start
+	 * @param length
+	 */
+	public static int compute(ByteBuffer buffer, int start, int length) {
+		if (buffer.hasArray()) {
+			return compute(buffer.array(), buffer.arrayOffset() + start, length);
+		}
+
+		Resources r = resources.get();
+		CRC32 crc = r.crc;
+		crc.reset();
+		ByteBuffer region = buffer.duplicate();
+		region.limit(start + length);
+		region.position(start);
+		if (UPDATE_BUFFER != null) {
+			UPDATE_BUFFER.update(crc, region);
+			return (int)crc.getValue();
+		}
+		if (r.scratch == null) {
+			r.scratch = new byte[SCRATCH_SIZE];
+		}
+		byte[] scratch = r.scratch;
+		while (region.hasRemaining()) {
+			int chunk = Math.min(scratch.length, region.remaining());
+			region.get(scratch, 0, chunk);
+			crc.update(scratch, 0, chunk);
+		}
+		return (int)crc.getValue();
+	}
+}
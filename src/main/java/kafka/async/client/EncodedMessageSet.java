@@ -0,0 +1,224 @@
+package kafka.async.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import kafka.async.client.Message.ByteBufferBackedMessageOutputStream;
+import kafka.async.client.Message.MessageStream;
+
+/**
+ * An immutable, fully encoded message section (sizes, headers and checksums,
+ * and compression if requested) that can be sent by any number of produce
+ * requests. This allows a batch that is sent to several partitions or clusters
+ * to be encoded and compressed once, rather than once per destination.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public final class EncodedMessageSet {
+
+	private final ByteBuffer contents;
+	private final int messageCount;
+
+	private EncodedMessageSet(ByteBuffer contents, int messageCount) {
+		this.contents = contents;
+		this.messageCount = messageCount;
+	}
+
+	/**
+	 * Encodes a list of messages.
+	 * @param compression The compression codec (see Message.COMPRESSION_*)
+	 * @param compress If true, the messages are compressed together into a single
+	 * wrapper message. If false, each message is assumed to be already compressed.
+	 * @param messages
+	 */
+	public static EncodedMessageSet encode(int compression, boolean compress, List<byte[]> messages) {
+		return encodeChunk(compression, compress, messages);
+	}
+
+	/**
+	 * Encodes the remaining bytes of each buffer as a message. See
+	 * {@link #encode(int, boolean, List)}.
+	 */
+	public static EncodedMessageSet encodeBuffers(int compression, boolean compress, List<ByteBuffer> messages) {
+		return encodeChunk(compression, compress, messages);
+	}
+
+	/**
+	 * Encodes a list containing any mix of byte[] and ByteBuffer messages. See
+	 * {@link #encode(int, boolean, List)}.
+	 */
+	public static EncodedMessageSet encodePayloads(int compression, boolean compress, List<?> messages) {
+		return encodeChunk(compression, compress, messages);
+	}
+
+	/**
+	 * Compresses a list of byte[] and/or ByteBuffer messages into several wrapper
+	 * messages of at most messagesPerWrapper messages each. The wrapper messages
+	 * are compressed concurrently using the executor; the calling thread
+	 * compresses the first wrapper itself, and also compresses any wrapper the
+	 * executor has not yet started, so this never waits on a busy executor.<p>
+	 *
+	 * Consumers see the same messages in the same order as if they had been
+	 * compressed into a single wrapper message.
+	 * @param compression The compression codec (see Message.COMPRESSION_*)
+	 * @param messages
+	 * @param messagesPerWrapper The maximum number of messages in each wrapper
+	 * @param executor Used to compress wrappers in parallel, or null to compress
+	 * every wrapper on the calling thread
+	 */
+	public static EncodedMessageSet encodeParallel(final int compression, List<?> messages, int messagesPerWrapper, Executor executor) {
+		if (messagesPerWrapper <= 0) {
+			throw new IllegalArgumentException("Messages per wrapper must be an integer greater than 0");
+		}
+		if (compression == Message.COMPRESSION_NONE || messages.size() <= messagesPerWrapper) {
+			return encodeChunk(compression, true, messages);
+		}
+
+		ArrayList<FutureTask<EncodedMessageSet>> chunks = new ArrayList<FutureTask<EncodedMessageSet>>();
+		for (int start=0; start<messages.size(); start+=messagesPerWrapper) {
+			final List<?> chunk = messages.subList(start, Math.min(messages.size(), start+messagesPerWrapper));
+			FutureTask<EncodedMessageSet> task = new FutureTask<EncodedMessageSet>(new Callable<EncodedMessageSet>() {
+				@Override
+				public EncodedMessageSet call() {
+					return encodeChunk(compression, true, chunk);
+				}
+			});
+			if (executor != null && !chunks.isEmpty()) {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					// The chunk will be compressed by the calling thread
+				}
+			}
+			chunks.add(task);
+		}
+
+		int size = 0;
+		ArrayList<EncodedMessageSet> encoded = new ArrayList<EncodedMessageSet>(chunks.size());
+		for (FutureTask<EncodedMessageSet> task : chunks) {
+			// Does nothing if the executor has already started the task
+			task.run();
+			EncodedMessageSet chunk;
+			try {
+				chunk = task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while compressing messages", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException)e.getCause();
+				}
+				throw new RuntimeException("Error occurred while compressing messages", e.getCause());
+			}
+			encoded.add(chunk);
+			size += chunk.size();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (EncodedMessageSet chunk : encoded) {
+			chunk.writeTo(buffer);
+		}
+		buffer.flip();
+		return new EncodedMessageSet(buffer.asReadOnlyBuffer(), messages.size());
+	}
+
+	private static EncodedMessageSet encodeChunk(int compression, boolean compress, List<?> messages) {
+		int size = 0;
+		for (Object message : messages) {
+			size += Payloads.encodedSize(message);
+		}
+		if (compression != Message.COMPRESSION_NONE && compress) {
+			// Allow for a wrapper message and incompressible data
+			size += MessageStream.FULL_HEADER_SIZE + size / 8 + 1024;
+		}
+
+		while (true) {
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			try {
+				writeMessages(buffer, compression, compress, messages);
+			} catch (BufferOverflowException e) {
+				size *= 2;
+				continue;
+			}
+			buffer.flip();
+			return new EncodedMessageSet(buffer.asReadOnlyBuffer(), messages.size());
+		}
+	}
+
+	/**
+	 * The size in bytes of the encoded message section.
+	 */
+	public int size() {
+		return contents.limit();
+	}
+
+	/**
+	 * The number of messages that were encoded (before any compression).
+	 */
+	public int messageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * Returns a read-only view of the encoded bytes.
+	 */
+	public ByteBuffer contents() {
+		return contents.duplicate();
+	}
+
+	/**
+	 * Copies the encoded bytes into the buffer.
+	 * @param buffer
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(contents.duplicate());
+	}
+
+	/**
+	 * Encodes a list of byte[] and/or ByteBuffer messages into the buffer at its
+	 * current position. When compress is false the list may also contain
+	 * EncodedMessageSets, which are copied into the buffer unchanged.
+	 * @param buffer
+	 * @param compression The compression codec (see Message.COMPRESSION_*)
+	 * @param compress If true, the messages are compressed together into a single
+	 * wrapper message. If false, each message is assumed to be already compressed.
+	 * @param messages
+	 */
+	public static void writeMessages(ByteBuffer buffer, int compression, boolean compress, List<?> messages) {
+		ByteBufferBackedMessageOutputStream wrapper = new ByteBufferBackedMessageOutputStream(buffer);
+		try {
+			if (compression == Message.COMPRESSION_NONE || !compress) {
+				for (Object message : messages) {
+					Payloads.writeTo(wrapper, buffer, compression, message);
+				}
+			} else if (CompressionCodecs.forId(compression) != null) {
+				try {
+					wrapper.startMessage(compression);
+					OutputStream stream = CompressionCodecs.forId(compression).compressingStream(wrapper);
+					MessageStream out = new MessageStream(stream);
+					for (Object message : messages) {
+						Payloads.writeMessage(out, message);
+					}
+					out.close();
+					wrapper.finishMessage();
+				} catch (IOException e) {
+					throw new RuntimeException("Error occurred while compressing with codec "+compression, e);
+				}
+			} else {
+				throw new UnsupportedOperationException("Unknown compression specified: "+compression);
+			}
+		} finally {
+			wrapper.close();
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package kafka.async.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The gzip codec. The output is the same as that of java.util.zip.GZIPOutputStream,
+ * but the native Deflater (and the scratch buffer used while deflating) is kept
+ * for each thread and Inflaters are pooled. Both are reset between messages,
+ * rather than being created for every message and freed by finalization.
+ * Compressed message sets can also be inflated incrementally (see
+ * {@link StreamingCompressionCodec}).<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public class GzipCodec implements StreamingCompressionCodec {
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final byte[] HEADER = new byte[] {
+		(byte)GZIP_MAGIC, (byte)(GZIP_MAGIC >> 8), // Magic number
+		Deflater.DEFLATED, // Compression method
+		0, // Flags
+		0, 0, 0, 0, // Modification time
+		0, // Extra flags
+		0, // Operating system
+	};
+	private static final int TRAILER_SIZE = 8;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final class Resources {
+		final Deflater deflater = new Deflater(level, true);
+		final CRC32 deflateCrc = new CRC32();
+		final byte[] scratch = new byte[32 * 1024];
+		byte[] input = new byte[0];
+		int generation = 0;
+	}
+
+	/**
+	 * The most inflaters kept for reuse. Inflaters are pooled rather than kept
+	 * per thread, since an incremental decompressor may hold one across calls
+	 * and threads.
+	 */
+	private static final int MAX_POOLED_INFLATERS = 16;
+
+	private final int level;
+	private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private final AtomicInteger pooledInflaters = new AtomicInteger();
+	private final CompressionStats stats = new CompressionStats();
+	private final ThreadLocal<Resources> resources = new ThreadLocal<Resources>() {
+		@Override
+		protected Resources initialValue() {
+			return new Resources();
+		}
+	};
+
+	public GzipCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level The deflate compression level (0-9, or -1 for the default)
+	 */
+	public GzipCodec(int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9");
+		}
+		this.level = level;
+	}
+
+	@Override
+	public int id() {
+		return Message.COMPRESSION_GZIP;
+	}
+
+	@Override
+	public String name() {
+		return "gzip";
+	}
+
+	@Override
+	public CompressionStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public OutputStream compressingStream(OutputStream out) throws IOException {
+		return new GzipOutputStream(out, resources.get());
+	}
+
+	private final class GzipOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final Resources r;
+		private final int generation;
+		private final long startTime;
+		private final byte[] single = new byte[1];
+		private long bytesIn = 0;
+		private long bytesOut = 0;
+		private boolean closed = false;
+
+		GzipOutputStream(OutputStream out, Resources r) throws IOException {
+			this.out = out;
+			this.r = r;
+			this.generation = ++r.generation;
+			this.startTime = CompressionStats.threadTime();
+			r.deflater.reset();
+			r.deflateCrc.reset();
+			out.write(HEADER);
+			bytesOut += HEADER.length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte)b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			checkOpen();
+			if (length == 0) {
+				return;
+			}
+			r.deflateCrc.update(bytes, offset, length);
+			bytesIn += length;
+			r.deflater.setInput(bytes, offset, length);
+			while (!r.deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			checkOpen();
+			closed = true;
+			try {
+				r.deflater.finish();
+				while (!r.deflater.finished()) {
+					deflate();
+				}
+				byte[] trailer = new byte[TRAILER_SIZE];
+				writeIntLE(trailer, 0, (int)r.deflateCrc.getValue());
+				writeIntLE(trailer, 4, (int)bytesIn);
+				out.write(trailer);
+				bytesOut += TRAILER_SIZE;
+				stats.recordCompression(bytesIn, bytesOut, startTime);
+			} finally {
+				out.close();
+			}
+		}
+
+		private void deflate() throws IOException {
+			int n = r.deflater.deflate(r.scratch, 0, r.scratch.length);
+			if (n > 0) {
+				out.write(r.scratch, 0, n);
+				bytesOut += n;
+			}
+		}
+
+		private void checkOpen() {
+			if (closed) {
+				throw new IllegalStateException("Stream is closed");
+			}
+			if (generation != r.generation) {
+				throw new IllegalStateException("Another gzip stream was opened on this thread");
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer uncompress(ByteBuffer compressed) {
+		long startTime = CompressionStats.threadTime();
+		Resources r = resources.get();
+
+		GzipDecompressor decompressor;
+		if (compressed.hasArray()) {
+			decompressor = new GzipDecompressor(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.arrayOffset() + compressed.limit());
+		} else {
+			if (r.input.length < compressed.remaining()) {
+				r.input = new byte[compressed.remaining()];
+			}
+			compressed.duplicate().get(r.input, 0, compressed.remaining());
+			decompressor = new GzipDecompressor(r.input, 0, compressed.remaining());
+		}
+
+		// One spare byte lets the inflater reach the end of the stream without
+		// the output being grown
+		int expected = decompressor.expectedSize();
+		byte[] output = new byte[expected > 0 ? expected + 1 : 1024];
+		int op = 0;
+		while (true) {
+			if (op == output.length) {
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			int n = decompressor.uncompress(output, op, output.length - op);
+			if (n < 0) {
+				break;
+			}
+			op += n;
+		}
+
+		stats.recordUncompression(compressed.remaining(), op, startTime);
+		return ByteBuffer.wrap(output, 0, op).slice();
+	}
+
+	@Override
+	public Decompressor decompressor(ByteBuffer compressed) {
+		if (compressed.hasArray()) {
+			return new StreamingDecompressor(new GzipDecompressor(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.arrayOffset() + compressed.limit()));
+		}
+		// The decompressor may outlive any per-thread buffer, so it gets its own copy
+		byte[] input = new byte[compressed.remaining()];
+		compressed.duplicate().get(input);
+		return new StreamingDecompressor(new GzipDecompressor(input, 0, input.length));
+	}
+
+	/**
+	 * Records statistics for data uncompressed incrementally
+	 */
+	private final class StreamingDecompressor implements Decompressor {
+		private final GzipDecompressor decompressor;
+		private long bytesOut = 0;
+		private boolean recorded = false;
+
+		StreamingDecompressor(GzipDecompressor decompressor) {
+			this.decompressor = decompressor;
+		}
+
+		@Override
+		public int expectedSize() {
+			return decompressor.expectedSize();
+		}
+
+		@Override
+		public int uncompress(byte[] output, int offset, int length) {
+			long startTime = CompressionStats.threadTime();
+			int n = decompressor.uncompress(output, offset, length);
+			stats.recordUncompressTime(startTime);
+			if (n < 0) {
+				if (!recorded) {
+					recorded = true;
+					stats.recordUncompression(decompressor.end - decompressor.start, bytesOut);
+				}
+			} else {
+				bytesOut += n;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+			decompressor.close();
+		}
+	}
+
+	private Inflater takeInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			return new Inflater(true);
+		}
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+
+	private void releaseInflater(Inflater inflater) {
+		if (pooledInflaters.incrementAndGet() <= MAX_POOLED_INFLATERS) {
+			inflaters.add(inflater);
+		} else {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Inflates one or more concatenated gzip members. The Inflater is taken from
+	 * a pool, and is returned once the data has been inflated (or found to be
+	 * corrupt).
+	 */
+	private final class GzipDecompressor {
+		final byte[] input;
+		final int start;
+		final int end;
+		private final CRC32 crc = new CRC32();
+		private Inflater inflater;
+		private int position;
+		private int memberSize = 0;
+		private boolean finished = false;
+
+		GzipDecompressor(byte[] input, int start, int end) {
+			this.input = input;
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		/**
+		 * The trailer of the (last) member records its uncompressed size, which
+		 * is almost always the size of the whole result. Deflate can't compress
+		 * by more than about 1032:1, so a larger size must be corrupt.
+		 */
+		int expectedSize() {
+			if (end - start >= HEADER.length + TRAILER_SIZE) {
+				int expected = readIntLE(input, end - 4);
+				if (expected >= 0 && expected / 1032 <= end - start) {
+					return expected;
+				}
+			}
+			return 0;
+		}
+
+		int uncompress(byte[] output, int offset, int length) {
+			if (finished) {
+				return -1;
+			}
+			try {
+				while (true) {
+					if (inflater == null) {
+						startMember();
+					}
+					if (!inflater.finished()) {
+						int n = inflater.inflate(output, offset, length);
+						if (n > 0) {
+							crc.update(output, offset, n);
+							memberSize += n;
+							return n;
+						}
+						if (length == 0) {
+							return 0;
+						}
+						if (!inflater.finished()) {
+							if (inflater.needsInput() || inflater.needsDictionary()) {
+								throw new RuntimeException("Corrupt gzip data: truncated stream");
+							}
+							continue;
+						}
+					}
+					if (finishMember()) {
+						return -1;
+					}
+				}
+			} catch (DataFormatException e) {
+				close();
+				throw new RuntimeException("Corrupt gzip data", e);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void startMember() {
+			position = skipHeader(input, position, end);
+			inflater = takeInflater();
+			inflater.setInput(input, position, end - position);
+			crc.reset();
+			memberSize = 0;
+		}
+
+		/**
+		 * Checks the trailer of the member that has just been inflated.
+		 * @return true if there are no more members
+		 */
+		private boolean finishMember() {
+			position = end - inflater.getRemaining();
+			if (position + TRAILER_SIZE > end) {
+				throw new RuntimeException("Corrupt gzip data: truncated trailer");
+			}
+			if (readIntLE(input, position) != (int)crc.getValue() || readIntLE(input, position + 4) != memberSize) {
+				throw new RuntimeException("Corrupt gzip data: checksum or size mismatch");
+			}
+			position += TRAILER_SIZE;
+			// Like GZIPInputStream, read any further concatenated members
+			Inflater finishedInflater = inflater;
+			inflater = null;
+			finishedInflater.reset();
+			releaseInflater(finishedInflater);
+			if (end - position >= HEADER.length && readShortLE(input, position) == GZIP_MAGIC) {
+				return false;
+			}
+			finished = true;
+			return true;
+		}
+
+		void close() {
+			finished = true;
+			if (inflater != null) {
+				Inflater finishedInflater = inflater;
+				inflater = null;
+				finishedInflater.reset();
+				releaseInflater(finishedInflater);
+			}
+		}
+	}
+
+	private static int skipHeader(byte[] input, int position, int end) {
+		if (end - position < HEADER.length || readShortLE(input, position) != GZIP_MAGIC) {
+			throw new RuntimeException("Corrupt gzip data: not in gzip format");
+		}
+		if (input[position + 2] != Deflater.DEFLATED) {
+			throw new RuntimeException("Corrupt gzip data: unsupported compression method");
+		}
+		int flags = input[position + 3] & 0xFF;
+		position += HEADER.length;
+		if ((flags & FEXTRA) != 0) {
+			if (position + 2 > end) {
+				throw new RuntimeException("Corrupt gzip data: truncated header");
+			}
+			position += 2 + readShortLE(input, position);
+		}
+		if ((flags & FNAME) != 0) {
+			while (position < end && input[position++] != 0) {
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (position < end && input[position++] != 0) {
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			position += 2;
+		}
+		if (position > end) {
+			throw new RuntimeException("Corrupt gzip data: truncated header");
+		}
+		return position;
+	}
+
+	private static int readShortLE(byte[] input, int position) {
+		return (input[position] & 0xFF) | ((input[position+1] & 0xFF) << 8);
+	}
+
+	private static int readIntLE(byte[] input, int position) {
+		return (input[position] & 0xFF) | ((input[position+1] & 0xFF) << 8) | ((input[position+2] & 0xFF) << 16) | ((input[position+3] & 0xFF) << 24);
+	}
+
+	private static void writeIntLE(byte[] output, int position, int value) {
+		output[position] = (byte)value;
+		output[position+1] = (byte)(value >>> 8);
+		output[position+2] = (byte)(value >>> 16);
+		output[position+3] = (byte)(value >>> 24);
+	}
+}
@@ -9,7 +9,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import kafka.async.BrokerPool;
@@ -20,7 +23,9 @@ import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaChannelContext;
 import kafka.async.KafkaOperation;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.OperationQueue;
 import kafka.async.futures.Wakeable;
+import kafka.async.ops.BatchOffsetsRequest;
 import kafka.async.ops.FetchRequest;
 import kafka.async.ops.OffsetsRequest;
 
@@ -40,6 +45,13 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 	
 	private HashMap<KafkaBrokerIdentity,BrokerState> brokers = new HashMap<KafkaBrokerIdentity,BrokerState>();
 	private HashSet<Wakeable> selectors = new HashSet<Wakeable>();
+	private ConcurrentHashMap<KafkaBrokerIdentity,BrokerHealth> health = new ConcurrentHashMap<KafkaBrokerIdentity,BrokerHealth>();
+	private double circuitBreakerThreshold = 0;
+	private long circuitBreakerRetryNanos = TimeUnit.SECONDS.toNanos(1);
+	private long slowResponseNanos = 0;
+	private double readyFraction = 1.0;
+	private long writeLingerNanos = 0;
+	private int writeLingerBytes = 0;
 	
 	private final AtomicInteger pendingConnectionsRev = new AtomicInteger(0);
 	private int currentConnectionsRev = 0;
@@ -47,10 +59,11 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 	
 	private static class BrokerState {
 		private BrokerState() {}
-		private LinkedList<KafkaOperation> operationQueue = new LinkedList<KafkaOperation>();
+		private OperationQueue operationQueue = new OperationQueue();
 		private LinkedList<ChannelContext> openConnections = new LinkedList<ChannelContext>();
 		private LinkedList<ChannelContext> idleConnections = new LinkedList<ChannelContext>();
 		private LinkedList<ChannelContext> closingConnections = new LinkedList<ChannelContext>();
+		private LinkedList<ChannelContext> liveConnections = new LinkedList<ChannelContext>();
 		private int pendingCount = 0;
 		private int connectionCount = 0;
 		private int targetCount = 0;
@@ -59,6 +72,18 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 	public KafkaAsyncClient(ClientConfiguration config) {
 		this.config = config;
 	}
+	
+	/**
+	 * Creates a client that runs its connections on a processor shared with other
+	 * clients. The processor must be opened before the client, and is not closed
+	 * when the client is closed.
+	 * @param config
+	 * @param processor
+	 */
+	public KafkaAsyncClient(ClientConfiguration config, KafkaAsyncProcessor processor) {
+		this.config = config;
+		this.processor = processor;
+	}
 
 	public int getConnectionsPerHost() {
 		return connectionsPerHost;
@@ -79,6 +104,34 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		this.maxRequestSize = maxRequestSize;
 	}
 	
+	public long getWriteLinger(TimeUnit unit) {
+		return unit.convert(writeLingerNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	public int getWriteLingerBytes() {
+		return writeLingerBytes;
+	}
+	
+	/**
+	 * Allows each connection to combine several queued operations into a single
+	 * write. A connection keeps adding operations to its write buffer until it
+	 * holds at least <i>lingerBytes</i>, and waits up to <i>linger</i> for more
+	 * operations to arrive before sending a smaller buffer. The default (no
+	 * linger) sends each operation as soon as it has been encoded.<p>
+	 * 
+	 * Only affects connections created after this method is called.
+	 * @param linger
+	 * @param unit
+	 * @param lingerBytes
+	 */
+	public void setWriteLinger(long linger, TimeUnit unit, int lingerBytes) {
+		if (linger < 0 || lingerBytes < 0) {
+			throw new IllegalArgumentException("Write linger time and bytes must not be negative");
+		}
+		this.writeLingerNanos = unit.toNanos(linger);
+		this.writeLingerBytes = lingerBytes;
+	}
+	
 	public int getMaxResponseSize() {
 		return maxResponseSize;
 	}
@@ -87,6 +140,177 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		this.maxResponseSize = maxResponseSize;
 	}
 	
+	public double getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+	
+	/**
+	 * Sets the health score (see {@link BrokerHealth}) below which a broker is
+	 * considered unavailable. Failed connections, error responses and slow
+	 * responses all lower the score. Operations executed against an unavailable
+	 * broker are failed (via {@link KafkaOperation#brokerFailed(Exception)}) by
+	 * the processing thread, without waiting for a connection, until a probe
+	 * operation let through after the retry delay succeeds. A value of 0
+	 * disables the circuit breaker.
+	 * @param circuitBreakerThreshold Between 0 and 1 (exclusive)
+	 */
+	public void setCircuitBreakerThreshold(double circuitBreakerThreshold) {
+		if (circuitBreakerThreshold < 0 || circuitBreakerThreshold >= 1) {
+			throw new IllegalArgumentException("Circuit breaker threshold must be greater than or equal to 0 and less than 1");
+		}
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+		for (BrokerHealth h : health.values()) {
+			h.setScoreThreshold(circuitBreakerThreshold);
+		}
+	}
+	
+	public long getCircuitBreakerRetryDelay(TimeUnit unit) {
+		return unit.convert(circuitBreakerRetryNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sets how long a broker's circuit stays open before a single operation is
+	 * let through to probe whether the broker has recovered. The default is 1
+	 * second.
+	 * @param delay
+	 * @param unit
+	 */
+	public void setCircuitBreakerRetryDelay(long delay, TimeUnit unit) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Circuit breaker retry delay must be greater than or equal to 0");
+		}
+		this.circuitBreakerRetryNanos = unit.toNanos(delay);
+		for (BrokerHealth h : health.values()) {
+			h.setRetryDelay(circuitBreakerRetryNanos);
+		}
+	}
+	
+	public long getSlowResponseLatency(TimeUnit unit) {
+		return unit.convert(slowResponseNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sets the response latency above which a response lowers its broker's
+	 * health score, the more so the slower it is. The default of 0 means that
+	 * latency is tracked but does not affect the score.
+	 * @param latency
+	 * @param unit
+	 */
+	public void setSlowResponseLatency(long latency, TimeUnit unit) {
+		if (latency < 0) {
+			throw new IllegalArgumentException("Slow response latency must be greater than or equal to 0");
+		}
+		this.slowResponseNanos = unit.toNanos(latency);
+		for (BrokerHealth h : health.values()) {
+			h.setSlowLatency(slowResponseNanos);
+		}
+	}
+	
+	/**
+	 * Returns the health of the specified broker, or null if the broker is not
+	 * part of this client.
+	 * @param broker
+	 */
+	public BrokerHealth getBrokerHealth(KafkaBrokerIdentity broker) {
+		return health.get(broker);
+	}
+	
+	/**
+	 * Returns true if the broker has been added to this client (by its
+	 * configuration or {@link #addBroker(KafkaBrokerIdentity)}) and has not
+	 * been removed.
+	 * @param broker
+	 */
+	public synchronized boolean hasBroker(KafkaBrokerIdentity broker) {
+		BrokerState state = brokers.get(broker);
+		return state != null && state.targetCount > 0;
+	}
+	
+	/**
+	 * Returns false if the circuit breaker for the specified broker is open and
+	 * no probe is due. Unknown brokers are considered available.
+	 * @param broker
+	 */
+	public boolean isBrokerAvailable(KafkaBrokerIdentity broker) {
+		BrokerHealth h = health.get(broker);
+		return h == null || h.isAvailable();
+	}
+	
+	public double getReadyFraction() {
+		return readyFraction;
+	}
+	
+	/**
+	 * Sets the fraction of all configured connections that must be connected
+	 * before {@link #open(long, TimeUnit)} returns.
+	 * @param readyFraction A value between 0.0 and 1.0
+	 */
+	public void setReadyFraction(double readyFraction) {
+		if (readyFraction < 0.0 || readyFraction > 1.0) {
+			throw new IllegalArgumentException("Ready fraction must be between 0.0 and 1.0");
+		}
+		this.readyFraction = readyFraction;
+	}
+	
+	/**
+	 * Opens the client and waits until the configured fraction of connections
+	 * (see {@link #setReadyFraction(double)}) have connected to their brokers.
+	 * Connections to all brokers are started immediately and in parallel.<p>
+	 * 
+	 * If the timeout elapses, the client remains open and continues connecting
+	 * in the background.
+	 * @param timeout
+	 * @param unit
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws TimeoutException If not enough connections were ready in time
+	 */
+	public void open(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+		open();
+		waitForReady(timeout, unit);
+	}
+	
+	/**
+	 * Waits until the configured fraction of connections have connected to their
+	 * brokers.
+	 * @param timeout
+	 * @param unit
+	 * @throws InterruptedException
+	 * @throws TimeoutException
+	 */
+	public synchronized void waitForReady(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		long endTime = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(timeout, unit);
+		while (liveConnectionCount() < requiredConnectionCount()) {
+			long waitTime = endTime - System.currentTimeMillis();
+			if (waitTime <= 0) {
+				throw new TimeoutException("Only "+liveConnectionCount()+" of "+requiredConnectionCount()+" required connections are ready");
+			}
+			TimeUnit.MILLISECONDS.timedWait(this, waitTime);
+		}
+	}
+	
+	/**
+	 * <b>Note:</b> Must be called within a synchronized section for this client
+	 */
+	private int liveConnectionCount() {
+		int live = 0;
+		for (BrokerState state : brokers.values()) {
+			live += state.liveConnections.size();
+		}
+		return live;
+	}
+	
+	/**
+	 * <b>Note:</b> Must be called within a synchronized section for this client
+	 */
+	private int requiredConnectionCount() {
+		int target = 0;
+		for (BrokerState state : brokers.values()) {
+			target += state.targetCount;
+		}
+		return (int)Math.ceil(target * readyFraction);
+	}
+	
 	public void open() throws IOException {
 		if (processor == null) {
 			processor = new KafkaAsyncProcessor();
@@ -110,8 +334,7 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 				removeBroker(broker);
 			}
 		}
-		// TODO: Implement this
-		// processor.removeChannelManager(this);
+		processor.removeConnectionManager(this);
 		if (manageProcessor) {
 			processor.close();
 		}
@@ -124,6 +347,9 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		if (state == null) {
 			brokers.put(broker, state = new BrokerState()); 
 		}
+		if (!health.containsKey(broker)) {
+			health.put(broker, new BrokerHealth(broker, circuitBreakerThreshold, circuitBreakerRetryNanos, slowResponseNanos));
+		}
 		
 		state.targetCount = connectionsPerHost;
 		state.pendingCount = state.targetCount - state.connectionCount;
@@ -172,7 +398,7 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 				BrokerState state = entry.getValue();
 				
 				for (int i=0; i<state.pendingCount; ++i) {
-					ChannelContext connection = new KafkaChannelContext(broker, this, maxRequestSize, maxResponseSize);
+					ChannelContext connection = new KafkaChannelContext(broker, this, maxRequestSize, maxResponseSize, writeLingerNanos, writeLingerBytes);
 					newConnections.add(connection);
 					state.openConnections.add(connection);
 				}
@@ -192,14 +418,15 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		KafkaBrokerIdentity broker = connection.broker();
 		BrokerState state = brokers.get(broker);
 		
-		while (!state.operationQueue.isEmpty()) {
+		KafkaOperation op = state.operationQueue.poll();
+		while (op != null) {
 			if (logger.isTraceEnabled()) {
-				logger.trace("Next operation from queue: removing 1 of "+state.operationQueue.size()+" and returning");
+				logger.trace("Next operation from queue: removed 1 of "+(state.operationQueue.size()+1)+" and returning");
 			}
-			KafkaOperation op = state.operationQueue.removeFirst();
 			if (op.start()) {
 				return op;
 			}
+			op = state.operationQueue.poll();
 		}
 
 		if (!state.idleConnections.contains(connection)) {
@@ -211,6 +438,27 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		return null;
 	}
 	
+	@Override
+	public synchronized void connectionOpened(ChannelContext connection) {
+		BrokerHealth h = health.get(connection.broker());
+		if (h != null) {
+			h.connectSucceeded();
+		}
+		BrokerState state = brokers.get(connection.broker());
+		if (state != null) {
+			state.liveConnections.add(connection);
+			notifyAll();
+		}
+	}
+	
+	@Override
+	public void responseReceived(ChannelContext connection, long latencyNanos, int errorCode) {
+		BrokerHealth h = health.get(connection.broker());
+		if (h != null) {
+			h.responseReceived(latencyNanos, errorCode);
+		}
+	}
+	
 	@Override
 	public synchronized void connectionClosed(ChannelContext connection, Exception reason) {
 		if (logger.isTraceEnabled()) {
@@ -222,9 +470,15 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		state.idleConnections.remove(connection);
 		state.openConnections.remove(connection);
 		state.closingConnections.remove(connection);
+		state.liveConnections.remove(connection);
 
 		state.connectionCount--;
 		
+		BrokerHealth h = health.get(broker);
+		if (h != null && state.targetCount > 0) {
+			h.connectionFailed();
+		}
+		
 		if (state.connectionCount < state.targetCount) {
 			state.pendingCount++;
 			state.connectionCount++;
@@ -232,13 +486,14 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		} else if (state.connectionCount == 0) {
 			// There are no other connections to this host, so fail all pending operations
 			int i = 0;
-			for (KafkaOperation op : state.operationQueue) {
+			KafkaOperation op = state.operationQueue.poll();
+			while (op != null) {
 				if (logger.isTraceEnabled()) {
-					logger.trace("Aborting operation from queue: "+(++i)+" of "+state.operationQueue.size()+"");
+					logger.trace("Aborting operation from queue: "+(++i)+" ("+state.operationQueue.size()+" remaining)");
 				}
 				op.requestFailed(reason);
+				op = state.operationQueue.poll();
 			}
-			state.operationQueue.clear();
 		}
 	}
 	
@@ -253,10 +508,27 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		if (state == null) {
 			throw new NullPointerException("State for broker "+broker+" was not found");
 		}
+		BrokerHealth h = health.get(broker);
+		if (h != null && !h.allowRequest()) {
+			if (logger.isTraceEnabled()) {
+				logger.trace("Failing operation for "+broker+". Circuit is open: "+h);
+			}
+			// Failed on the processing thread, outside this lock, so that the
+			// caller never sees the failure before execute returns
+			final KafkaOperation failed = op;
+			final IOException reason = new IOException("Broker "+broker+" is unavailable: "+h);
+			processor.execute(new Runnable() {
+				@Override
+				public void run() {
+					failed.brokerFailed(reason);
+				}
+			});
+			return;
+		}
 		if (logger.isTraceEnabled()) {
 			logger.trace("Adding operation to queue (size is 1 + "+state.operationQueue.size()+"). Connections: target="+state.targetCount+", open="+state.connectionCount+", pending="+state.pendingCount+", idle="+state.idleConnections.size());
 		}
-		state.operationQueue.push(op);
+		op.enqueued(state.operationQueue.add(op));
 		
 		Iterator<ChannelContext> idleForThisBroker = state.idleConnections.iterator();
 		int idleCount = state.idleConnections.size();
@@ -277,11 +549,47 @@ public class KafkaAsyncClient implements BrokerPool, ConnectionManager {
 		return request.getResult();
 	}
 	
+	/**
+	 * Looks up the offsets of many partitions with a single batch of pipelined
+	 * requests per broker. See {@link BatchOffsetsRequest}.
+	 * @param partitions
+	 * @param time The time to look up (-2=earliest, -1=most recent)
+	 * @param maxOffsets The maximum number of offsets to return for each partition
+	 * @return The offsets of each partition, in the order the partitions were given
+	 * @throws NullPointerException If the broker of any partition is not part of
+	 * this client, in which case none of the lookups are executed
+	 */
+	public Future<long[][]> requestOffsets(List<KafkaPartitionIdentity> partitions, long time, int maxOffsets) {
+		BatchOffsetsRequest batch = new BatchOffsetsRequest(partitions, time, maxOffsets);
+		List<KafkaOperation> operations = batch.getOperations();
+		synchronized (this) {
+			// Checked up front, so that an unknown broker cannot leave the lookups
+			// of earlier brokers queued for a result nobody holds
+			for (KafkaOperation op : operations) {
+				if (!brokers.containsKey(op.getTargetBroker())) {
+					throw new NullPointerException("State for broker "+op.getTargetBroker()+" was not found");
+				}
+			}
+			for (KafkaOperation op : operations) {
+				execute(op);
+			}
+		}
+		return batch.getResult();
+	}
+	
 	public Future<MessageSet> fetch(KafkaPartitionIdentity partition, long offset, int maxSize) {
+		return fetch(partition, offset, maxSize, ChecksumVerification.NONE);
+	}
+	
+	/**
+	 * Fetches messages whose checksums are verified as specified when the
+	 * returned message set is consumed.
+	 */
+	public Future<MessageSet> fetch(KafkaPartitionIdentity partition, long offset, int maxSize, ChecksumVerification verification) {
 		if (maxSize > maxResponseSize) {
 			throw new IllegalArgumentException("Requested max response size of "+maxSize+". Maximum possible size is "+maxResponseSize);
 		}
-		FetchRequest fetch = new FetchRequest(partition, offset, maxSize);
+		FetchRequest fetch = new FetchRequest(partition, offset, maxSize, verification);
 		execute(fetch);
 		return fetch.getResult();
 	}
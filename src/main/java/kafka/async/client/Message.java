@@ -1,12 +1,9 @@
 package kafka.async.client;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.zip.CRC32;
-import java.util.zip.GZIPInputStream;
 
 import kafka.async.KafkaAsyncProcessor;
 
@@ -38,6 +35,10 @@ public class Message {
 	public final int compression;
 	public final int checksum;
 	public final ByteBuffer contents;
+	// Set when the checksum should be verified on first access to the contents
+	private boolean verifyPending = false;
+	// The message set that caches the uncompressed contents, if any
+	private MessageSet parent;
 
 	/**
 	 * Determines whether a complete message is contained in the buffer (assuming
@@ -138,56 +139,63 @@ public class Message {
 	 * @throws RuntimeException
 	 */
 	public void validateChecksum() {
-		CRC32 crc32 = new CRC32();
-		int oldPosition = contents.position();
-		contents.position(0);
-		
-		if (contents.hasArray()) {
-			byte[] buffer = contents.array();
-			int size = contents.limit();
-			crc32.update(buffer,contents.arrayOffset(),size);
-		} else {
-			byte[] buffer = new byte[contents.limit()];
-			contents.get(buffer);
-			crc32.update(buffer);
-		}
-		
-		contents.position(oldPosition);
-		
-		int computedChecksum = (int)(crc32.getValue() & 0xFFFFFFFFL);
+		int computedChecksum = Crc32.compute(contents, 0, contents.limit());
 		if (computedChecksum != checksum) {
 			throw new RuntimeException("Stream corruption at "+startOffset+". Stored checksum was "+checksum+" but computed checksum was "+computedChecksum+".");
 		}
 	}
 	
+	/**
+	 * Marks the checksum of this message to be verified the first time its
+	 * contents are accessed (see {@link ChecksumVerification#LAZY}). Reading the
+	 * {@link #contents} field directly bypasses this.
+	 */
+	void verifyOnAccess() {
+		verifyPending = true;
+	}
+	
+	/**
+	 * Sets the message set that this message was read from, which caches its
+	 * uncompressed contents.
+	 */
+	void setParent(MessageSet parent) {
+		this.parent = parent;
+	}
+	
+	private void verifyIfPending() {
+		if (verifyPending) {
+			validateChecksum();
+			verifyPending = false;
+		}
+	}
+	
+	/**
+	 * Returns the (possibly compressed) contents of the message, verifying its
+	 * checksum first if the message set uses lazy verification.
+	 */
+	public ByteBuffer getContents() {
+		verifyIfPending();
+		return contents;
+	}
+	
+	/**
+	 * Returns the uncompressed contents of the message. For a compressed message
+	 * read from a message set, the result is cached by the message set, and must
+	 * not be modified.
+	 */
 	public ByteBuffer getUncompressedContents() {
+		verifyIfPending();
 		if (compression == COMPRESSION_NONE) {
 			return contents;
-		} else if (compression == COMPRESSION_GZIP) {
-			
-			try {
-				GZIPInputStream stream = new GZIPInputStream(new ByteBufferBackedInputStream(contents));
-				ByteArrayOutputStream storage = new ByteArrayOutputStream((int)((endOffset - startOffset) * 2));
-				byte[] tmp = new byte[8096];
-				int cnt = stream.read(tmp);
-				while (cnt >= 0) {
-					storage.write(tmp,0,cnt);
-					cnt = stream.read(tmp);
-				}
-				stream.close();
-				storage.close();
-				return ByteBuffer.wrap(storage.toByteArray());
-				
-			} catch (IOException e) {
-				throw new RuntimeException("An unexpected IO exception occurred",e);
-			}
-			
-			
-		} else if (compression == COMPRESSION_SNAPPY) {
-			throw new RuntimeException("Snappy compression codec not implemented");
-		} else {
+		}
+		if (parent != null) {
+			return parent.uncompressedContents(this).all();
+		}
+		CompressionCodec codec = CompressionCodecs.forId(compression);
+		if (codec == null) {
 			throw new RuntimeException("Unknown compression codec: "+compression);
 		}
+		return codec.uncompress(contents);
 	}
 	
 	public boolean isMessageSet() {
@@ -195,7 +203,13 @@ public class Message {
 	}
 	
 	public MessageSet asMessageSet() {
-		return MessageSet.createNestedMessageSet(offset, nextOffset, 0, getUncompressedContents());
+		boolean lazy = verifyPending;
+		MessageSet messages = MessageSet.createNestedMessageSet(offset, nextOffset, 0, getUncompressedContents());
+		if (lazy) {
+			// Nested messages are verified as they are accessed too
+			return messages.withVerification(ChecksumVerification.LAZY);
+		}
+		return messages;
 	}
 	
 	public static class ByteBufferBackedInputStream extends InputStream {
@@ -244,24 +258,54 @@ public class Message {
 		
 	    
 		private OutputStream stream;
-		private CRC32 checksum = new CRC32();
+		private int checksum;
 		private ByteBuffer header = ByteBuffer.allocate(FULL_HEADER_SIZE);
+		private byte[] scratch;
 		
 		public MessageStream(OutputStream stream) {
 			this.stream = stream;
 		}
 		
 		public void writeMessage(int compression, byte[] payload) throws IOException {
-			int size = payload.length + PARTIAL_HEADER_SIZE;
-			checksum.reset();
-			checksum.update(payload);
+			checksum = Crc32.compute(payload, 0, payload.length);
+			writeHeader(compression, payload.length);
+			stream.write(payload);
+		}
+		
+		/**
+		 * Writes the remaining bytes of the payload buffer as a message, without
+		 * changing the buffer's position.
+		 */
+		public void writeMessage(int compression, ByteBuffer payload) throws IOException {
+			checksum = Crc32.compute(payload, payload.position(), payload.remaining());
+			if (payload.hasArray()) {
+				byte[] array = payload.array();
+				int offset = payload.arrayOffset() + payload.position();
+				writeHeader(compression, payload.remaining());
+				stream.write(array, offset, payload.remaining());
+			} else {
+				// The stream only accepts arrays, so direct buffers are copied
+				// through a scratch array to be written
+				if (scratch == null) {
+					scratch = new byte[8192];
+				}
+				writeHeader(compression, payload.remaining());
+				ByteBuffer copy = payload.duplicate();
+				while (copy.hasRemaining()) {
+					int len = Math.min(scratch.length, copy.remaining());
+					copy.get(scratch, 0, len);
+					stream.write(scratch, 0, len);
+				}
+			}
+		}
+		
+		private void writeHeader(int compression, int payloadSize) throws IOException {
 			header.position(0);
-			header.putInt(size);
+			header.putInt(payloadSize + PARTIAL_HEADER_SIZE);
 			header.put((byte)1);
 			header.put((byte)compression);
-			header.putInt((int)(checksum.getValue() & 0xFFFFFFFFL));
+			header.putInt(checksum);
 			stream.write(header.array());
-			stream.write(payload);
 		}
 		
 		public void close() throws IOException {
@@ -271,13 +315,14 @@ public class Message {
 
 	/**
 	 * A class that is useful for writing a message to a buffer when you don't
-	 * know the contents of the message up front.
+	 * know the contents of the message up front. The checksum is computed over
+	 * the finished message in the buffer by {@link #finishMessage()}, rather than
+	 * being updated by each write.
 	 * @author tbrown
 	 */
 	public static class ByteBufferBackedMessageOutputStream extends OutputStream {
 	    ByteBuffer buffer;
 	    int compression;
-	    CRC32 checksum = new CRC32();
 	    int messageSizePosition = -1;
 	    int checksumPosition;
 	    
@@ -302,7 +347,6 @@ public class Message {
 	        
 	        // Payload checksum (int32) placeholder
 	        checksumPosition = buffer.position();
-	        checksum.reset();
 	        buffer.putInt(0);
 	    }
 	    
@@ -312,27 +356,33 @@ public class Message {
 	    	}
 	    	int size = buffer.position() - messageSizePosition - KafkaAsyncProcessor.SIZEOF_INT32;
 	    	buffer.putInt(messageSizePosition,size);
-	    	buffer.putInt(checksumPosition,(int)(checksum.getValue() & 0xFFFFFFFFL));
+	    	int payloadPosition = checksumPosition + KafkaAsyncProcessor.SIZEOF_INT32;
+	    	buffer.putInt(checksumPosition,Crc32.compute(buffer, payloadPosition, buffer.position() - payloadPosition));
 	    	messageSizePosition = -1;
 	    }
 
 	    @Override
 	    public void write(int b) {
-	    	checksum.update(b);
 	        buffer.put((byte) b);
 	    }
 
 	    @Override
 	    public void write(byte[] bytes, int offset, int len) {
-	    	checksum.update(bytes, offset, len);
 	        buffer.put(bytes, offset, len);
 	    }
 	    
 	    @Override
 	    public void write(byte[] bytes) {
-	    	checksum.update(bytes);
 	    	buffer.put(bytes);
 	    }
+	    
+	    /**
+	     * Copies the remaining bytes of the source buffer directly into the
+	     * destination buffer without changing the source's position.
+	     */
+	    public void write(ByteBuffer src) {
+	    	buffer.put(src.duplicate());
+	    }
 
 	    @Override
 	    public void close() {
@@ -0,0 +1,233 @@
+package kafka.async.client;
+
+import java.nio.ByteBuffer;
+
+import kafka.async.KafkaAsyncProcessor;
+
+/**
+ * Walks the messages of a message set in place, without allocating a Message
+ * or ByteBuffer per message. The cursor is positioned on a message by
+ * {@link #next()}, and the header fields and payload of that message are
+ * exposed through accessors. A cursor can be reused for any number of message
+ * sets by calling {@link #reset(MessageSet)}.<p>
+ *
+ * Usage:
+ * <pre>
+ * MessageCursor cursor = messageSet.cursor();
+ * while (cursor.next()) {
+ *     ByteBuffer buffer = cursor.buffer();
+ *     int position = cursor.payloadPosition();
+ *     int length = cursor.payloadLength();
+ *     ...
+ * }
+ * </pre>
+ *
+ * The cursor does not descend into compressed messages. Their payload is the
+ * compressed message set; use {@link #message()} to decompress it.<p>
+ *
+ * Checksums are verified according to the message set's
+ * {@link ChecksumVerification}. With lazy verification, a message is verified
+ * the first time {@link #payloadPosition()}, {@link #getPayload(byte[], int)}
+ * or {@link #message()} is called for it.<p>
+ *
+ * This class is not thread-safe.
+ * @author tbrown
+ */
+public class MessageCursor {
+
+	private MessageSet messageSet;
+	private ByteBuffer buffer;
+	// A private view of the buffer for copying payloads
+	private ByteBuffer reader;
+	private boolean lazy;
+	// Absolute positions within the buffer
+	private int base;
+	private int limit;
+	private int start;
+	private int end;
+
+	private int magic;
+	private int compression;
+	private int checksum;
+	private int payloadPosition;
+	private boolean verifyPending;
+
+	/**
+	 * Creates a cursor before the first message of the message set.
+	 */
+	public MessageCursor(MessageSet messageSet) {
+		reset(messageSet);
+	}
+
+	/**
+	 * Moves this cursor before the first message of the specified message set.
+	 * @throws RuntimeException If the message set uses eager or sampled
+	 * verification and a message is corrupt
+	 */
+	public void reset(MessageSet messageSet) {
+		messageSet.verify();
+		this.messageSet = messageSet;
+		this.lazy = messageSet.getVerification().getMode() == ChecksumVerification.Mode.LAZY;
+		ByteBuffer source = messageSet.sourceBuffer();
+		this.buffer = source.duplicate();
+		this.reader = source.duplicate();
+		this.base = source.position();
+		this.limit = source.limit();
+		this.start = -1;
+		this.end = base + messageSet.startOffset;
+		this.verifyPending = false;
+	}
+
+	/**
+	 * Moves to the next complete message.
+	 * @return false if there are no more complete messages
+	 */
+	public boolean next() {
+		if (limit - end < KafkaAsyncProcessor.SIZEOF_INT32) {
+			return false;
+		}
+		int length = buffer.getInt(end);
+		if (length < 0 || limit - end - KafkaAsyncProcessor.SIZEOF_INT32 < length) {
+			return false;
+		}
+		start = end;
+		end = start + KafkaAsyncProcessor.SIZEOF_INT32 + length;
+
+		int position = start + KafkaAsyncProcessor.SIZEOF_INT32;
+		magic = buffer.get(position++);
+		if (magic == 1) {
+			compression = buffer.get(position++);
+		} else {
+			compression = Message.COMPRESSION_NONE;
+		}
+		checksum = buffer.getInt(position);
+		payloadPosition = position + KafkaAsyncProcessor.SIZEOF_INT32;
+		verifyPending = lazy;
+		return true;
+	}
+
+	private void checkPositioned() {
+		if (start < 0) {
+			throw new IllegalStateException("Cursor is not positioned on a message");
+		}
+	}
+
+	/**
+	 * The offset of the current message within the partition. For a nested
+	 * message set, this is the offset of the containing message.
+	 */
+	public long offset() {
+		checkPositioned();
+		if (messageSet.isNested()) {
+			return messageSet.offset;
+		}
+		return messageSet.offset + (start - base);
+	}
+
+	/**
+	 * The offset of the message after the current message. For a nested message
+	 * set, this is the offset after the containing message.
+	 */
+	public long nextOffset() {
+		checkPositioned();
+		if (messageSet.isNested()) {
+			return messageSet.nextOffset;
+		}
+		return messageSet.offset + (end - base);
+	}
+
+	public int magic() {
+		checkPositioned();
+		return magic;
+	}
+
+	public int compression() {
+		checkPositioned();
+		return compression;
+	}
+
+	public boolean isCompressed() {
+		return compression() != Message.COMPRESSION_NONE;
+	}
+
+	/**
+	 * The checksum stored in the header of the current message
+	 */
+	public int checksum() {
+		checkPositioned();
+		return checksum;
+	}
+
+	/**
+	 * The buffer holding the message set. Payloads are read from it with
+	 * absolute gets; its position and limit are not used by the cursor.
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * The absolute position of the current message's payload in {@link #buffer()}
+	 */
+	public int payloadPosition() {
+		checkPositioned();
+		verifyIfPending();
+		return payloadPosition;
+	}
+
+	public int payloadLength() {
+		checkPositioned();
+		return end - payloadPosition;
+	}
+
+	/**
+	 * Copies the payload of the current message into the array.
+	 * @return The number of bytes copied
+	 */
+	public int getPayload(byte[] destination, int offset) {
+		int position = payloadPosition();
+		int length = payloadLength();
+		reader.limit(position + length);
+		reader.position(position);
+		reader.get(destination, offset, length);
+		return length;
+	}
+
+	/**
+	 * Compares the stored checksum of the current message with its computed
+	 * checksum.
+	 * @throws RuntimeException If the checksum is invalid
+	 */
+	public void validateChecksum() {
+		checkPositioned();
+		int computedChecksum = Crc32.compute(buffer, payloadPosition, end - payloadPosition);
+		if (computedChecksum != checksum) {
+			throw new RuntimeException("Stream corruption at "+(start - base)+". Stored checksum was "+checksum+" but computed checksum was "+computedChecksum+".");
+		}
+		verifyPending = false;
+	}
+
+	private void verifyIfPending() {
+		if (verifyPending) {
+			validateChecksum();
+		}
+	}
+
+	/**
+	 * Creates a Message for the current message (which allocates). This is
+	 * mainly useful for decompressing a compressed message with
+	 * {@link Message#asMessageSet()}.
+	 */
+	public Message message() {
+		checkPositioned();
+		verifyIfPending();
+		ByteBuffer source = buffer.duplicate();
+		source.limit(limit);
+		source.position(base);
+		source = source.slice();
+		if (messageSet.isNested()) {
+			return Message.createNestedMessage(messageSet.offset, messageSet.nextOffset, start - base, source);
+		}
+		return Message.createMessage(messageSet.offset + (start - base), start - base, source);
+	}
+}
@@ -0,0 +1,133 @@
+package kafka.async.client;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import kafka.async.futures.SettableFuture;
+
+/**
+ * A bounded, pre-allocated queue of messages that any number of threads can
+ * add to without locking, and that a single consumer at a time drains in
+ * bulk. Each slot records whether it is free or published as a position
+ * counter, so producers claim a slot with one compare-and-set on the tail and
+ * publish it with one volatile write, and the consumer never compacts
+ * anything.<p>
+ *
+ * The consumer methods ({@link #isEmpty()}, {@link #peek(int)} and
+ * {@link #take(int, List, Confirmations, SequenceWatermark)}) must only be
+ * called by one thread at a time; PartitionProducer calls them while holding
+ * the partition's lock.
+ * @author tbrown
+ */
+final class MessageRing {
+
+	private final int mask;
+	private final Object[] messages;
+	// A SettableFuture<Boolean>, or null for a sequenced message
+	private final Object[] futures;
+	private final long[] sequences;
+	// For the slot of position p: p when it is free to be claimed, p + 1 once
+	// the message at p has been published
+	private final AtomicLongArray published;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+
+	/**
+	 * @param capacity Rounded up to a power of two
+	 */
+	MessageRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		messages = new Object[size];
+		futures = new Object[size];
+		sequences = new long[size];
+		published = new AtomicLongArray(size);
+		for (int i=0; i<size; ++i) {
+			published.set(i, i);
+		}
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Adds a message unless the ring is full.
+	 * @param message
+	 * @param future The message's future, or null if it is sequenced
+	 * @param sequence The message's sequence, if it has no future
+	 * @return false if the ring is full
+	 */
+	boolean offer(Object message, SettableFuture<Boolean> future, long sequence) {
+		long position = tail.get();
+		while (true) {
+			int slot = (int)position & mask;
+			long state = published.get(slot);
+			if (state == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					messages[slot] = message;
+					futures[slot] = future;
+					sequences[slot] = sequence;
+					published.set(slot, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (state < position) {
+				// The slot still holds the message from the previous lap
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if no published message is waiting at the head. A message
+	 * whose slot has been claimed but not yet published is not counted; its
+	 * producer checks whether a send is needed after publishing it.
+	 */
+	boolean isEmpty() {
+		return published.get((int)head & mask) != head + 1;
+	}
+
+	/**
+	 * Returns the message <i>index</i> places after the head, or null if it has
+	 * not been published.
+	 */
+	Object peek(int index) {
+		long position = head + index;
+		int slot = (int)position & mask;
+		if (published.get(slot) != position + 1) {
+			return null;
+		}
+		return messages[slot];
+	}
+
+	/**
+	 * Removes messages from the head, which must all have been published (see
+	 * {@link #peek(int)}).
+	 * @param count
+	 * @param destination Receives the messages
+	 * @param confirmations Receives the confirmations of the messages
+	 * @param watermark Assigned the sequences of sequenced messages
+	 */
+	@SuppressWarnings("unchecked")
+	void take(int count, List<Object> destination, Confirmations confirmations, SequenceWatermark watermark) {
+		for (int i=0; i<count; ++i) {
+			long position = head + i;
+			int slot = (int)position & mask;
+			destination.add(messages[slot]);
+			Object future = futures[slot];
+			if (future != null) {
+				confirmations.add((SettableFuture<Boolean>)future);
+			} else {
+				confirmations.add(watermark, sequences[slot]);
+			}
+			messages[slot] = null;
+			futures[slot] = null;
+			published.set(slot, position + mask + 1);
+		}
+		head += count;
+	}
+}
@@ -1,8 +1,14 @@
 package kafka.async.client;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import kafka.async.KafkaAsyncProcessor;
 
 public class MessageSet implements Iterable<Message> {
 
@@ -11,13 +17,19 @@ public class MessageSet implements Iterable<Message> {
 	public final long nextOffset;
 	public final int startOffset;
 	private final ByteBuffer sourceBuffer;
+	private final ChecksumVerification verification;
+	private volatile boolean verified = false;
+	// The uncompressed contents of compressed messages, by start offset
+	private volatile ConcurrentHashMap<Integer,UncompressedContents> uncompressed;
+	// Set by decode()
+	private volatile List<Message> decoded;
 	
 	public static MessageSet createMessageSet(long offset, int startOffset, ByteBuffer buffer) {
-		return new MessageSet(false, offset, -1, startOffset, buffer);
+		return new MessageSet(false, offset, -1, startOffset, buffer, ChecksumVerification.NONE);
 	}
 	
 	public static MessageSet createNestedMessageSet(long offset, long nextOffset, int startOffset, ByteBuffer buffer) {
-		return new MessageSet(true, offset, nextOffset, startOffset, buffer);
+		return new MessageSet(true, offset, nextOffset, startOffset, buffer, ChecksumVerification.NONE);
 	}
 	
 	/**
@@ -31,16 +43,167 @@ public class MessageSet implements Iterable<Message> {
 	 * this should be the size in bytes of the containing message.
 	 * @param startOffset The offset within the sourceBuffer where the messages start.
 	 * @param sourceBuffer
+	 * @param verification How the checksums of the messages are verified
 	 */
-	private MessageSet(boolean isNested, long offset, long nextOffset, int startOffset, ByteBuffer sourceBuffer) {
+	private MessageSet(boolean isNested, long offset, long nextOffset, int startOffset, ByteBuffer sourceBuffer, ChecksumVerification verification) {
 		this.isNested = isNested;
 		this.offset = offset;
 		this.nextOffset = nextOffset;
 		this.startOffset = startOffset;
 		this.sourceBuffer = sourceBuffer;
+		this.verification = verification;
+	}
+	
+	/**
+	 * Returns a message set with the same messages, whose checksums are verified
+	 * as specified.
+	 * @param verification
+	 */
+	public MessageSet withVerification(ChecksumVerification verification) {
+		if (verification == null) {
+			throw new IllegalArgumentException("Verification must not be null");
+		}
+		return new MessageSet(isNested, offset, nextOffset, startOffset, sourceBuffer, verification);
+	}
+	
+	boolean isNested() {
+		return isNested;
+	}
+	
+	ByteBuffer sourceBuffer() {
+		return sourceBuffer;
+	}
+	
+	/**
+	 * Returns a cursor that walks the (top level) messages of this set without
+	 * allocating per message. See {@link MessageCursor}.
+	 */
+	public MessageCursor cursor() {
+		return new MessageCursor(this);
+	}
+	
+	/**
+	 * Returns the cached uncompressed contents of a compressed message in this
+	 * set.
+	 */
+	UncompressedContents uncompressedContents(Message message) {
+		ConcurrentHashMap<Integer,UncompressedContents> cache = uncompressed;
+		if (cache == null) {
+			synchronized (this) {
+				cache = uncompressed;
+				if (cache == null) {
+					cache = new ConcurrentHashMap<Integer,UncompressedContents>();
+					uncompressed = cache;
+				}
+			}
+		}
+		UncompressedContents contents = cache.get(message.startOffset);
+		if (contents == null) {
+			contents = new UncompressedContents(message);
+			UncompressedContents existing = cache.putIfAbsent(message.startOffset, contents);
+			if (existing != null) {
+				contents = existing;
+			}
+		}
+		return contents;
+	}
+	
+	public ChecksumVerification getVerification() {
+		return verification;
+	}
+	
+	/**
+	 * Verifies the checksums of the messages up front, if this message set uses
+	 * eager or sampled verification and they have not already been verified.
+	 * This is called when the message set is first iterated.
+	 * @throws RuntimeException If a message is corrupt
+	 */
+	public void verify() {
+		if (verified) {
+			return;
+		}
+		ChecksumVerification.Mode mode = verification.getMode();
+		if (mode == ChecksumVerification.Mode.EAGER || mode == ChecksumVerification.Mode.SAMPLE) {
+			ByteBuffer messages = sourceBuffer.slice();
+			messages.position(startOffset);
+			verification.verify(isNested ? offset : offset + startOffset, messages);
+		}
+		verified = true;
+	}
+	
+	/**
+	 * The number of bytes in this message set, including any partial message at
+	 * the end.
+	 */
+	public int sizeInBytes() {
+		return sourceBuffer.remaining() - startOffset;
+	}
+	
+	/**
+	 * The number of bytes taken by the complete messages in this message set
+	 * (excluding any partial message at the end).
+	 */
+	public int validBytes() {
+		int limit = sourceBuffer.remaining();
+		int position = startOffset;
+		while (limit - position >= 4) {
+			int length = sourceBuffer.getInt(sourceBuffer.position() + position);
+			if (length < 0 || limit - position - 4 < length) {
+				break;
+			}
+			position += 4 + length;
+		}
+		return position - startOffset;
+	}
+	
+	/**
+	 * Returns the offset that the next fetch should start at to continue after
+	 * this message set: the offset immediately after its last complete message.
+	 * For a nested message set this is the offset after the containing message.
+	 */
+	public long nextFetchOffset() {
+		if (isNested) {
+			return nextOffset;
+		}
+		return offset + startOffset + validBytes();
+	}
+	
+	/**
+	 * Verifies, uncompresses and splits this message set into its messages
+	 * (including nested messages) ahead of time, so that iterating it afterwards
+	 * does no decoding work. This is meant to be called on a worker thread
+	 * before the message set is handed to the application. Later deep
+	 * iterations return the same Message objects.
+	 * @return this message set
+	 * @throws RuntimeException If a message is corrupt or can't be uncompressed
+	 */
+	public MessageSet decode() {
+		if (decoded != null) {
+			return this;
+		}
+		ArrayList<Message> messages = new ArrayList<Message>();
+		Iterator<Message> i = iterator(true);
+		while (i.hasNext()) {
+			Message message = i.next();
+			// Verifies the message if verification is lazy
+			message.getUncompressedContents();
+			messages.add(message);
+		}
+		decoded = Collections.unmodifiableList(messages);
+		return this;
+	}
+	
+	public boolean isDecoded() {
+		return decoded != null;
 	}
 	
 	public Iterator<Message> iterator(final boolean deep) {
+		List<Message> messages = decoded;
+		if (deep && messages != null) {
+			return messages.iterator();
+		}
+		verify();
+		final boolean lazy = verification.getMode() == ChecksumVerification.Mode.LAZY;
 		final ByteBuffer copy = sourceBuffer.slice();
 		
 		return new Iterator<Message>() {
@@ -76,8 +239,14 @@ public class MessageSet implements Iterable<Message> {
 					result = Message.createMessage(offset+nextStartOffset, nextStartOffset, copy);
 				}
 				nextStartOffset = result.endOffset;
+				result.setParent(MessageSet.this);
+				if (lazy) {
+					result.verifyOnAccess();
+				}
 				if (deep && result.isMessageSet()) {
-					childIterator = result.asMessageSet().iterator(true);
+					// Verifies the compressed contents if needed
+					result.getContents();
+					childIterator = new NestedIterator(result, uncompressedContents(result), lazy);
 					return childIterator.next();
 				}
 				return result;
@@ -90,6 +259,67 @@ public class MessageSet implements Iterable<Message> {
 		};
 	}
 	
+	/**
+	 * Iterates the messages nested in a compressed message, uncompressing only as
+	 * far as each message that is returned.
+	 */
+	private static final class NestedIterator implements Iterator<Message> {
+		private final Message wrapper;
+		private final UncompressedContents contents;
+		private final boolean lazy;
+		private int nextStartOffset = 0;
+		private ByteBuffer available;
+		private Iterator<Message> childIterator;
+		
+		NestedIterator(Message wrapper, UncompressedContents contents, boolean lazy) {
+			this.wrapper = wrapper;
+			this.contents = contents;
+			this.lazy = lazy;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (childIterator != null) {
+				if (childIterator.hasNext()) {
+					return true;
+				}
+				childIterator = null;
+			}
+			available = contents.available(nextStartOffset + KafkaAsyncProcessor.SIZEOF_INT32);
+			if (available.limit() - nextStartOffset < KafkaAsyncProcessor.SIZEOF_INT32) {
+				return false;
+			}
+			int end = nextStartOffset + KafkaAsyncProcessor.SIZEOF_INT32 + available.getInt(nextStartOffset);
+			available = contents.available(end);
+			return available.limit() >= end;
+		}
+		
+		@Override
+		public Message next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("No more messages");
+			}
+			if (childIterator != null) {
+				return childIterator.next();
+			}
+			Message result = Message.createNestedMessage(wrapper.offset, wrapper.nextOffset, nextStartOffset, available);
+			nextStartOffset = result.endOffset;
+			if (lazy) {
+				result.verifyOnAccess();
+			}
+			if (result.isMessageSet()) {
+				childIterator = result.asMessageSet().iterator(true);
+				return childIterator.next();
+			}
+			return result;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Cannot remove messages");
+		}
+	}
+	
 	/**
 	 * Returns an iterator that will iterate through all nested messages. By default
 	 * nested messages will all have the same offset as the parent message. 
@@ -0,0 +1,506 @@
+package kafka.async.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import kafka.async.KafkaBrokerIdentity;
+import kafka.async.KafkaOperation;
+import kafka.async.KafkaPartitionIdentity;
+import kafka.async.ops.FetchRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a high-level object that sits on top of the low-level async client
+ * interface and consumes a single partition. Fetches are issued ahead of the
+ * application: as soon as one fetch completes, the next one is sent (starting
+ * at the end of the last complete message that was returned), until a bounded
+ * number of message sets are waiting to be taken. This allows fetch latency to
+ * overlap with processing.<p>
+ *
+ * Since each fetch starts where the previous one ended, at most one fetch per
+ * partition is in flight at a time. The prefetch depth is the number of
+ * completed message sets that may be buffered (see {@link #setQueueCapacity(int)}).<p>
+ *
+ * When a fetch returns no messages, the next fetch is delayed by the poll
+ * interval, and is sent by a thread waiting in {@link #poll(long, TimeUnit)} or
+ * {@link #take()}.<p>
+ *
+ * Optionally, fetched message sets are decoded (checksums verified, messages
+ * uncompressed and split) on a separate executor before they can be taken (see
+ * {@link #setDecodeExecutor(Executor)}), so that neither the IO thread nor the
+ * application threads spend time on it.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public class PartitionConsumer {
+
+	public final static Logger logger = LoggerFactory.getLogger(PartitionConsumer.class);
+
+	private final Object lock = new Object();
+	private final KafkaAsyncClient client;
+	private final KafkaPartitionIdentity partition;
+
+	private final ArrayDeque<Batch> queue = new ArrayDeque<Batch>();
+	private int queueCapacity = 2;
+	private int fetchSize = 1024*1024;
+	private long pollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private ChecksumVerification verification = ChecksumVerification.NONE;
+	private Executor decodeExecutor = null;
+
+	// The offset the next fetch will start at
+	private long fetchOffset;
+	// The offset after the last message set returned to the application
+	private long position;
+	private boolean fetching = false;
+	private long idleUntil = 0;
+	private Exception failure = null;
+	private boolean closed = false;
+	// Incremented by seek(), so that the result of an earlier fetch is ignored
+	private int generation = 0;
+
+	/**
+	 * @param client
+	 * @param partition
+	 * @param offset The offset to start consuming from
+	 */
+	public PartitionConsumer(KafkaAsyncClient client, KafkaPartitionIdentity partition, long offset) {
+		this.client = client;
+		this.partition = partition;
+		this.fetchOffset = offset;
+		this.position = offset;
+	}
+
+	public KafkaPartitionIdentity getPartition() {
+		return partition;
+	}
+
+	public int getQueueCapacity() {
+		synchronized (lock) {
+			return queueCapacity;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of fetched message sets that may wait to be taken
+	 * by the application. No more fetches are sent while the queue is full.
+	 * @param queueCapacity
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be an integer greater than 0");
+		}
+		synchronized (lock) {
+			this.queueCapacity = queueCapacity;
+		}
+		fetchIfNeeded();
+	}
+
+	public int getFetchSize() {
+		synchronized (lock) {
+			return fetchSize;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of bytes requested by each fetch. This must be
+	 * larger than the largest message in the partition.
+	 * @param fetchSize
+	 */
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize <= 0) {
+			throw new IllegalArgumentException("Fetch size must be an integer greater than 0");
+		}
+		if (fetchSize > client.getMaxResponseSize()) {
+			throw new IllegalArgumentException("Fetch size of "+fetchSize+" exceeds the client's maximum response size of "+client.getMaxResponseSize());
+		}
+		synchronized (lock) {
+			this.fetchSize = fetchSize;
+		}
+	}
+
+	public long getPollInterval(TimeUnit unit) {
+		synchronized (lock) {
+			return unit.convert(pollIntervalNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Sets how long to wait before fetching again after a fetch returned no
+	 * messages.
+	 * @param interval
+	 * @param unit
+	 */
+	public void setPollInterval(long interval, TimeUnit unit) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("Poll interval must be greater than or equal to 0");
+		}
+		synchronized (lock) {
+			this.pollIntervalNanos = unit.toNanos(interval);
+		}
+	}
+
+	public ChecksumVerification getChecksumVerification() {
+		synchronized (lock) {
+			return verification;
+		}
+	}
+	
+	/**
+	 * Sets how the checksums of fetched messages are verified. Eager and sampled
+	 * verification happen when a message set is first iterated by the
+	 * application, not when it is fetched.
+	 * @param verification
+	 */
+	public void setChecksumVerification(ChecksumVerification verification) {
+		if (verification == null) {
+			throw new IllegalArgumentException("Verification must not be null");
+		}
+		synchronized (lock) {
+			this.verification = verification;
+		}
+	}
+	
+	public Executor getDecodeExecutor() {
+		synchronized (lock) {
+			return decodeExecutor;
+		}
+	}
+	
+	/**
+	 * Sets the executor that decodes fetched message sets (see
+	 * {@link MessageSet#decode()}) before they can be taken. A message set that
+	 * fails to decode (e.g. a corrupt message) causes an ExecutionException when
+	 * it would have been taken, and it is fetched again by the next call. If null
+	 * (the default), message sets are decoded as the application iterates them.
+	 * @param executor
+	 */
+	public void setDecodeExecutor(Executor executor) {
+		synchronized (lock) {
+			this.decodeExecutor = executor;
+		}
+	}
+	
+	/**
+	 * Starts fetching in the background. Fetching also starts on the first call
+	 * to {@link #poll(long, TimeUnit)} or {@link #take()}.
+	 */
+	public void start() {
+		fetchIfNeeded();
+	}
+
+	/**
+	 * Returns the offset immediately after the last message set that was returned
+	 * by {@link #poll(long, TimeUnit)} or {@link #take()}. Consumption can be
+	 * resumed from this offset later.
+	 */
+	public long getPosition() {
+		synchronized (lock) {
+			return position;
+		}
+	}
+
+	/**
+	 * Discards any prefetched message sets and continues consuming from the
+	 * specified offset.
+	 * @param offset
+	 */
+	public void seek(long offset) {
+		synchronized (lock) {
+			generation++;
+			queue.clear();
+			fetching = false;
+			failure = null;
+			idleUntil = 0;
+			fetchOffset = offset;
+			position = offset;
+			lock.notifyAll();
+		}
+		fetchIfNeeded();
+	}
+
+	/**
+	 * Waits until a message set is available.
+	 * @return The next message set (which contains at least one message)
+	 * @throws ExecutionException If the fetch failed. The failed fetch is retried
+	 * by the next call.
+	 */
+	public MessageSet take() throws InterruptedException, ExecutionException {
+		return poll(-1, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Waits up to the specified time for a message set to be available.
+	 * @param timeout A negative timeout waits indefinitely
+	 * @param unit
+	 * @return The next message set (which contains at least one message), or null
+	 * if none became available in time
+	 * @throws ExecutionException If the fetch failed. The failed fetch is retried
+	 * by the next call.
+	 */
+	public MessageSet poll(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			fetchIfNeeded();
+			MessageSet messages;
+			synchronized (lock) {
+				Batch batch = queue.peek();
+				if (batch != null && batch.decoded) {
+					queue.poll();
+					if (batch.failure != null) {
+						// Discard everything fetched after the message set that
+						// failed to decode, and fetch it again
+						generation++;
+						queue.clear();
+						fetching = false;
+						idleUntil = 0;
+						fetchOffset = position;
+						lock.notifyAll();
+						throw new ExecutionException(batch.failure);
+					}
+					messages = batch.messages;
+					position = messages.nextFetchOffset();
+					lock.notifyAll();
+				} else if (batch != null) {
+					// Wait for the message set to be decoded
+					long waitTime = timeout < 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+					if (waitTime <= 0) {
+						return null;
+					}
+					TimeUnit.NANOSECONDS.timedWait(lock, waitTime);
+					continue;
+				} else if (failure != null) {
+					Exception reason = failure;
+					failure = null;
+					throw new ExecutionException(reason);
+				} else if (closed) {
+					throw new IllegalStateException("Consumer is closed");
+				} else {
+					long now = System.nanoTime();
+					long waitTime = timeout < 0 ? Long.MAX_VALUE : deadline - now;
+					if (waitTime <= 0) {
+						return null;
+					}
+					if (!fetching) {
+						// Wake up when the next fetch is due
+						waitTime = Math.min(waitTime, Math.max(1, idleUntil - now));
+					}
+					TimeUnit.NANOSECONDS.timedWait(lock, waitTime);
+					continue;
+				}
+			}
+			// Taking a message set may have made room for another fetch
+			fetchIfNeeded();
+			return messages;
+		}
+	}
+
+	/**
+	 * Stops fetching. Message sets that have already been fetched are discarded.
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			generation++;
+			queue.clear();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sends the next fetch if none is in flight and there is room in the queue.
+	 * The fetch is executed outside of the lock, since the client may fail it
+	 * (and call back into this consumer) before execute returns.
+	 */
+	private void fetchIfNeeded() {
+		Fetch fetch;
+		synchronized (lock) {
+			if (fetching || closed || failure != null || queue.size() >= queueCapacity) {
+				return;
+			}
+			if (idleUntil != 0 && System.nanoTime() - idleUntil < 0) {
+				return;
+			}
+			fetching = true;
+			idleUntil = 0;
+			fetch = new Fetch(new FetchRequest(partition, fetchOffset, fetchSize, verification), generation);
+			if (logger.isTraceEnabled()) {
+				logger.trace("Fetching "+partition+" at offset "+fetchOffset+" ("+queue.size()+" of "+queueCapacity+" message sets queued)");
+			}
+		}
+		client.execute(fetch);
+	}
+
+	private void fetchComplete(int fetchGeneration, MessageSet messages, Exception reason) {
+		Batch decode = null;
+		Executor executor = null;
+		synchronized (lock) {
+			if (fetchGeneration != generation) {
+				return;
+			}
+			fetching = false;
+			if (reason != null) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Fetch from "+partition+" at offset "+fetchOffset+" failed: "+reason);
+				}
+				failure = reason;
+			} else if (messages.validBytes() > 0) {
+				fetchOffset = messages.nextFetchOffset();
+				Batch batch = new Batch(messages);
+				queue.add(batch);
+				if (decodeExecutor == null) {
+					batch.decoded = true;
+				} else {
+					decode = batch;
+					executor = decodeExecutor;
+				}
+			} else if (messages.sizeInBytes() > 0) {
+				failure = new RuntimeException("Message at "+partition+", offset="+fetchOffset+" is larger than the fetch size of "+fetchSize);
+			} else {
+				// Nothing new yet; wait for the poll interval before fetching again
+				idleUntil = System.nanoTime() + pollIntervalNanos;
+				if (idleUntil == 0) {
+					idleUntil = 1;
+				}
+			}
+			lock.notifyAll();
+		}
+		if (decode != null) {
+			decode(decode, executor);
+		}
+		fetchIfNeeded();
+	}
+	
+	private void decode(final Batch batch, Executor executor) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					RuntimeException failure = null;
+					try {
+						batch.messages.decode();
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+					decodeComplete(batch, failure);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Leave the message set to be decoded as the application iterates it
+			decodeComplete(batch, null);
+		}
+	}
+	
+	private void decodeComplete(Batch batch, RuntimeException failure) {
+		synchronized (lock) {
+			if (failure != null && logger.isDebugEnabled()) {
+				logger.debug("Failed to decode message set from "+partition+" at offset "+batch.messages.offset+": "+failure);
+			}
+			batch.decoded = true;
+			batch.failure = failure;
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * A fetched message set waiting to be taken. Fields are guarded by the lock.
+	 */
+	private static final class Batch {
+		final MessageSet messages;
+		boolean decoded = false;
+		RuntimeException failure;
+		
+		Batch(MessageSet messages) {
+			this.messages = messages;
+		}
+	}
+
+	/**
+	 * Wraps a fetch request so that the consumer is told as soon as it completes,
+	 * within the IO processing thread.
+	 */
+	private final class Fetch implements KafkaOperation {
+		private final FetchRequest request;
+		private final int fetchGeneration;
+
+		Fetch(FetchRequest request, int fetchGeneration) {
+			this.request = request;
+			this.fetchGeneration = fetchGeneration;
+		}
+
+		@Override
+		public String operationId() {
+			return request.operationId();
+		}
+
+		@Override
+		public KafkaBrokerIdentity getTargetBroker() {
+			return request.getTargetBroker();
+		}
+
+		@Override
+		public void enqueued(Runnable dequeue) {
+			request.enqueued(dequeue);
+		}
+
+		@Override
+		public boolean start() {
+			return request.start();
+		}
+
+		@Override
+		public boolean canRead() {
+			return request.canRead();
+		}
+
+		@Override
+		public void executeWrite(ByteBuffer buffer) {
+			request.executeWrite(buffer);
+		}
+
+		@Override
+		public void writeComplete() {
+			request.writeComplete();
+		}
+
+		@Override
+		public boolean executeRead(ByteBuffer buffer) {
+			if (!request.executeRead(buffer)) {
+				return false;
+			}
+			try {
+				fetchComplete(fetchGeneration, request.getResult().get(), null);
+			} catch (ExecutionException e) {
+				fetchComplete(fetchGeneration, null, (Exception)e.getCause());
+			} catch (InterruptedException e) {
+				// The result is already complete, so this can't happen
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		}
+
+		@Override
+		public void requestFailed(Exception reason) {
+			request.requestFailed(reason);
+			fetchComplete(fetchGeneration, null, reason);
+		}
+
+		@Override
+		public void responseFailed(Exception reason) {
+			request.responseFailed(reason);
+			fetchComplete(fetchGeneration, null, reason);
+		}
+
+		@Override
+		public void brokerFailed(Exception reason) {
+			request.brokerFailed(reason);
+			fetchComplete(fetchGeneration, null, reason);
+		}
+	}
+}
@@ -1,13 +1,31 @@
 package kafka.async.client;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.PartitionManager;
 import kafka.async.futures.SettableFuture;
 import kafka.async.futures.ValueFuture;
 import kafka.async.ops.LateBindingConfirmedProduceRequest;
@@ -22,97 +40,862 @@ import org.slf4j.LoggerFactory;
  */
 public class PartitionProducer {
 
-	private final static int MAX_BATCH = 300;
+	/**
+	 * A conservative estimate of the bytes a compressed wrapper message adds
+	 * beyond the messages it contains (its header, and the codec's headers,
+	 * trailers and block framing)
+	 */
+	private final static int WRAPPER_OVERHEAD = Message.MessageStream.FULL_HEADER_SIZE + 64;
+	/**
+	 * Compressed batches are budgeted as though compression expanded them by
+	 * this fraction, since the actual size is only known once compressed
+	 */
+	private final static int COMPRESSED_EXPANSION_DIVISOR = 6;
+	/** The retry backoff stops doubling after this many attempts */
+	private final static int MAX_BACKOFF_DOUBLINGS = 6;
 	private final KafkaAsyncClient client;
+	private volatile int maxRetries = 0;
+	private volatile long retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile boolean rerouteOnFailure = false;
+	private final AtomicInteger rerouteCounter = new AtomicInteger(0);
+	private volatile int compression = Message.COMPRESSION_NONE;
+	private volatile Executor compressionExecutor = null;
+	private volatile int messagesPerWrapper = 100;
+	private volatile Confirmation confirmation = Confirmation.EVERY_BATCH;
+	private volatile int confirmEvery = 10;
+	private volatile long confirmIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile int maxBatchBytes = 0;
+	private volatile long batchLingerNanos = 0;
+	private volatile int queueCapacity = 8192;
+	private volatile Partitioner partitioner = Partitioners.keyHash(Partitioners.sticky());
+	private final List<AcknowledgmentListener> acknowledgmentListeners = new CopyOnWriteArrayList<AcknowledgmentListener>();
+	
+	/**
+	 * Sends batches whose linger time has elapsed, and polls partition managers
+	 * that producers follow. Shared by all producers; the tasks are short, since
+	 * they only create requests (or start compressors on their executors).
+	 */
+	private static final class ProducerTimer {
+		static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kafka-producer-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Controls how often a produced batch is followed by an offsets request, whose
+	 * response confirms that the broker has processed the batch. Kafka 0.7
+	 * processes the requests of a connection in order, so a response to any later
+	 * request on the same connection also confirms a batch. Batches that are not
+	 * followed by their own offsets request are confirmed that way.
+	 */
+	public static enum Confirmation {
+		/** Every batch is followed by its own offsets request */
+		EVERY_BATCH,
+		/**
+		 * One offsets request follows the last batch of each pipeline window (the
+		 * batch that leaves the partition's queue empty when it starts)
+		 */
+		PIPELINE,
+		/** An offsets request follows every Nth batch, and the last batch of each window */
+		EVERY_N_BATCHES,
+		/** An offsets request follows the first batch after the confirm interval, and the last batch of each window */
+		INTERVAL,
+		/** No offsets requests are sent. Messages are confirmed once they have been written. */
+		NONE,
+	}
 	
 	public final static Logger logger = LoggerFactory.getLogger(PartitionProducer.class);
+	
+	/**
+	 * The bytes budgeted for a message in a batch. Encoded message sets are
+	 * copied into compressed batches as they are, so only other messages are
+	 * budgeted for compression.
+	 * @param message
+	 * @param size The encoded size of the message
+	 * @param compressed True if the batch will be compressed
+	 * @param index The index of the message within the batch
+	 * @param messagesPerWrapper
+	 */
+	private static long batchCost(Object message, int size, boolean compressed, int index, int messagesPerWrapper) {
+		if (!compressed || Payloads.isEncoded(message)) {
+			return size;
+		}
+		long cost = size + size / COMPRESSED_EXPANSION_DIVISOR + 1;
+		if (index % messagesPerWrapper == 0) {
+			cost += WRAPPER_OVERHEAD;
+		}
+		return cost;
+	}
 
 	public final class PartitionState {
 		private final Object lock = new Object();
 
 		private final KafkaPartitionIdentity partition;
-		private final ArrayList<byte[]> queuedMessages;
-		private final ArrayList<SettableFuture<Boolean>> queuedConfirmations;
+		// Messages are queued in the ring without locking. Each queued message
+		// is a byte[], a ByteBuffer or (if rerouted) an EncodedMessageSet.
+		private final MessageRing ring;
+		// Messages queued while the ring was full, or rerouted from another
+		// partition. While any are waiting, new messages are added here as
+		// well, so that each thread's messages stay in order.
+		private final ArrayList<Object> overflowMessages;
+		private final Confirmations overflowConfirmations;
+		private volatile boolean overflowing = false;
+		private final SequenceWatermark watermark;
+		
+		// Written while holding the lock, but read by producers without it (see
+		// sendScheduled) and by partitioners
+		private volatile int operationsWaitingToStart = 0;
+		private volatile int outstandingOperations = 0;
+		private volatile long batchesTaken = 0;
+		private volatile boolean compressing = false;
+		// Requests created while holding the lock, which are executed once it has
+		// been released (see executePending)
+		private final ArrayList<LateBindingConfirmedProduceRequest> pendingRequests = new ArrayList<LateBindingConfirmedProduceRequest>();
+		private boolean executingPending = false;
+		private int unconfirmedBatches = 0;
+		private long lastConfirmed = System.nanoTime();
+		// The encoded size of the queued messages, and when the oldest was queued
+		private final AtomicLong queuedBytes = new AtomicLong();
+		// Set once the partition has been removed or closed, after which new
+		// messages are rejected (see startQueueing)
+		private volatile boolean closed = false;
+		private volatile long queuedSince = 0;
+		private volatile boolean lingerScheduled = false;
+		// The bytes of a produce request (plus the offsets request that confirms
+		// it) that are not taken by its messages
+		private final int requestOverhead;
+		
+		private final Runnable lingerElapsed = new Runnable() {
+			@Override
+			public void run() {
+				boolean startCompressor;
+				synchronized (lock) {
+					lingerScheduled = false;
+					// The scheduled flush counted as an outstanding operation
+					outstandingOperations--;
+					startCompressor = !queueEmpty() && scheduleSend("linger elapsed", false);
+					if (outstandingOperations == 0) {
+						lock.notifyAll();
+					}
+				}
+				executePending();
+				if (startCompressor) {
+					startCompressor(false);
+				}
+			}
+		};
 		
-		private int operationsWaitingToStart = 0;
-		private int outstandingOperations = 0;
+		private final Runnable compressor = new Runnable() {
+			@Override
+			public void run() {
+				compressQueue();
+			}
+		};
 		
 		public PartitionState(KafkaPartitionIdentity partition) {
 			this.partition = partition;
-			queuedMessages = new ArrayList<byte[]>(MAX_BATCH);
-			queuedConfirmations = new ArrayList<SettableFuture<Boolean>>(MAX_BATCH);
+			ring = new MessageRing(queueCapacity);
+			overflowMessages = new ArrayList<Object>();
+			overflowConfirmations = new Confirmations();
+			watermark = new SequenceWatermark(partition, acknowledgmentListeners);
+			int topicLength = partition.topicName.length;
+			requestOverhead =
+					  (4 + 2 + 2 + topicLength + 4 + 4)      // produce request header
+					+ (4 + 2 + 2 + topicLength + 4 + 8 + 4); // offsets request
 		}
 		
 		/**
 		 * Executes within the IO processing thread to notify this queue that the
 		 * next request has reached the front of the line and is ready for a batch
 		 * of messages.<p>
-		 * @return The messages that should be included in the batch 
+		 * @param messages Receives the messages that should be included in the batch
+		 * @return The confirmations of the messages
 		 */
-		public void getMessages(List<byte[]> messages, List<SettableFuture<Boolean>> confirmations) {
+		public Confirmations getMessages(List<Object> messages) {
+			return getMessages(messages, false);
+		}
+		
+		/**
+		 * Takes as many queued messages as fit in a request. At least one message
+		 * is always taken if any are queued.
+		 * @param compressed True if the batch will be compressed
+		 */
+		private Confirmations getMessages(List<Object> messages, boolean compressed) {
 			synchronized (lock) {
-				int queueSize = queuedMessages.size();
-				List<byte[]> subMessages = queuedMessages.subList(0, Math.min(MAX_BATCH, queueSize));
-				List<SettableFuture<Boolean>> subConfirmations = queuedConfirmations.subList(0, Math.min(MAX_BATCH, queueSize));
+				int budget = maxBatchBytes();
+				int wrapperSize = messagesPerWrapper;
+				long batchBytes = 0;
+				long batchCost = 0;
+				int count = 0;
+				boolean full = false;
+				
+				// The ring holds the oldest messages, so it is drained first
+				Object message;
+				while ((message = ring.peek(count)) != null) {
+					int size = Payloads.encodedSize(message);
+					long cost = batchCost(message, size, compressed, count, wrapperSize);
+					if (count > 0 && batchCost + cost > budget) {
+						full = true;
+						break;
+					}
+					batchCost += cost;
+					batchBytes += size;
+					count++;
+				}
+				Confirmations confirmations = new Confirmations();
+				ring.take(count, messages, confirmations, watermark);
+				
+				if (!full && !overflowMessages.isEmpty() && ring.isEmpty()) {
+					int overflowCount = 0;
+					while (overflowCount < overflowMessages.size()) {
+						message = overflowMessages.get(overflowCount);
+						int size = Payloads.encodedSize(message);
+						long cost = batchCost(message, size, compressed, count, wrapperSize);
+						if (count > 0 && batchCost + cost > budget) {
+							break;
+						}
+						batchCost += cost;
+						batchBytes += size;
+						count++;
+						overflowCount++;
+					}
+					List<Object> subMessages = overflowMessages.subList(0, overflowCount);
+					messages.addAll(subMessages);
+					subMessages.clear();
+					confirmations.addAll(overflowConfirmations.take(overflowCount));
+					if (overflowMessages.isEmpty()) {
+						overflowing = false;
+					}
+				}
+				
+				queuedBytes.addAndGet(-batchBytes);
+				if (count > 0) {
+					batchesTaken++;
+				}
 				if (logger.isTraceEnabled()) {
-					logger.trace("Moving messages from queue to LateBindingConfirmedProduceRequest. Size is "+queueSize+" - "+subMessages.size()+"");
+					logger.trace("Moved "+count+" message(s) from "+partition+" queue to LateBindingConfirmedProduceRequest");
+				}
+				return confirmations;
+			}
+		}
+		
+		/**
+		 * Must be called while holding the lock. Takes every queued message.
+		 * @param messages Receives the messages
+		 * @return The confirmations of the messages
+		 */
+		private Confirmations takeAll(List<Object> messages) {
+			Confirmations confirmations = new Confirmations();
+			int count = 0;
+			while (ring.peek(count) != null) {
+				count++;
+			}
+			ring.take(count, messages, confirmations, watermark);
+			messages.addAll(overflowMessages);
+			confirmations.addAll(overflowConfirmations);
+			overflowMessages.clear();
+			overflowConfirmations.clear();
+			overflowing = false;
+			
+			long bytes = 0;
+			for (Object message : messages) {
+				bytes += Payloads.encodedSize(message);
+			}
+			queuedBytes.addAndGet(-bytes);
+			return confirmations;
+		}
+		
+		/**
+		 * Must be called while holding the lock.
+		 */
+		private boolean queueEmpty() {
+			return ring.isEmpty() && overflowMessages.isEmpty();
+		}
+		
+		/**
+		 * Returns true if a request, compressor or linger flush is already
+		 * scheduled that will take newly queued messages, in which case a
+		 * producer can return without taking the lock. Each of these clears its
+		 * flag before checking for queued messages, and producers queue before
+		 * checking the flags, so a message is never left without a send.
+		 */
+		private boolean sendScheduled() {
+			if (compressing) {
+				return true;
+			}
+			if (lingerScheduled && queuedBytes.get() < maxBatchBytes()) {
+				return true;
+			}
+			// With compression, a waiting request may be a compressed batch that
+			// will not take more messages
+			return compression == Message.COMPRESSION_NONE && operationsWaitingToStart > 0;
+		}
+		
+		/**
+		 * Records queued bytes, and the time if the queue was empty.
+		 */
+		private void addQueuedBytes(long bytes) {
+			if (queuedBytes.getAndAdd(bytes) == 0) {
+				queuedSince = System.nanoTime();
+			}
+		}
+		
+		/**
+		 * Called by producers before queueing messages, to record their bytes.
+		 * The bytes are recorded before the closed flag is read, and removal sets
+		 * the flag before checking that the partition has drained, so a partition
+		 * is never considered drained while a message that was accepted is still
+		 * being queued.
+		 * @throws IllegalStateException If the partition has been removed or closed
+		 */
+		private void startQueueing(long bytes) {
+			addQueuedBytes(bytes);
+			if (closed) {
+				queuedBytes.addAndGet(-bytes);
+				throw new IllegalStateException("Partition "+partition+" has been removed or closed");
+			}
+		}
+		
+		/**
+		 * Queues a message whose bytes have been recorded by startQueueing. Unless
+		 * the ring is full or nothing is scheduled to send the message, this does
+		 * not lock.
+		 * @param message
+		 * @param future The message's future, or null if it is sequenced
+		 * @param sequence The message's sequence, if it has no future
+		 * @param reason Logged at trace level if a send is scheduled
+		 */
+		private void offer(Object message, SettableFuture<Boolean> future, long sequence, String reason) {
+			if (overflowing || !ring.offer(message, future, sequence)) {
+				synchronized (lock) {
+					overflowing = true;
+					overflowMessages.add(message);
+					if (future != null) {
+						overflowConfirmations.add(future);
+					} else {
+						overflowConfirmations.add(watermark, sequence);
+					}
 				}
-				messages.addAll(subMessages);
-				confirmations.addAll(subConfirmations);
-				subMessages.clear();
-				subConfirmations.clear();
 			}
+			sendQueued(reason);
+		}
+		
+		/**
+		 * Called by producers after queueing messages.
+		 */
+		private void sendQueued(String reason) {
+			if (sendScheduled()) {
+				return;
+			}
+			boolean startCompressor;
+			synchronized (lock) {
+				startCompressor = scheduleSend(reason, false);
+			}
+			executePending();
+			if (startCompressor) {
+				startCompressor(false);
+			}
+		}
+		
+		public KafkaPartitionIdentity getPartition() {
+			return partition;
+		}
+		
+		/**
+		 * The encoded size of the messages waiting to be taken into a batch
+		 */
+		public long getQueuedBytes() {
+			return queuedBytes.get();
+		}
+		
+		/**
+		 * The number of produce requests created for this partition that have not
+		 * completed
+		 */
+		public int getOutstandingOperations() {
+			return outstandingOperations;
+		}
+		
+		/**
+		 * The number of batches that have been taken from the queue to be sent
+		 */
+		public long getBatchesTaken() {
+			return batchesTaken;
+		}
+		
+		/**
+		 * The most bytes of messages that fit in a produce request to this
+		 * partition, along with the offsets request that may follow it
+		 */
+		int maxBatchBytes() {
+			int limit = client.getMaxRequestSize() - requestOverhead;
+			int configured = maxBatchBytes;
+			return (configured > 0 && configured < limit) ? configured : limit;
+		}
+		
+		/**
+		 * Returns the encoded size of the messages.
+		 * @throws IllegalArgumentException If a message can never fit in a request
+		 */
+		private long checkSizes(List<?> messages) {
+			int budget = maxBatchBytes();
+			long bytes = 0;
+			for (Object message : messages) {
+				bytes += checkSize(message, budget);
+			}
+			return bytes;
+		}
+		
+		/**
+		 * Returns the encoded size of a message.
+		 * @throws IllegalArgumentException If the message can never fit in a request
+		 */
+		private int checkSize(Object message, int budget) {
+			int size = Payloads.encodedSize(message);
+			long cost = batchCost(message, size, compression != Message.COMPRESSION_NONE, 0, 1);
+			if (cost > budget) {
+				throw new IllegalArgumentException("Message of "+size+" bytes does not fit in a request to "+partition+" (at most "+budget+" bytes of messages)");
+			}
+			return size;
 		}
 		
 		public SettableFuture<Boolean> produce(byte[] message) {
+			return produceMessage(message);
+		}
+		
+		/**
+		 * Queues the remaining bytes of a buffer as a single message. The bytes are
+		 * copied directly from the buffer into the request when it is sent, so the
+		 * buffer (which may be direct or memory-mapped) must not be modified until
+		 * the message has been confirmed. The buffer's position is not changed.
+		 * @param message
+		 */
+		public SettableFuture<Boolean> produce(ByteBuffer message) {
+			return produceMessage(message);
+		}
+		
+		private SettableFuture<Boolean> produceMessage(Object message) {
+			startQueueing(checkSize(message, maxBatchBytes()));
 			SettableFuture<Boolean> confirmation = new ValueFuture<Boolean>();
+			offer(message, confirmation, 0, "produce(message)");
+			return confirmation;
+		}
+		
+		/**
+		 * Queues a message that is confirmed through this partition's acknowledged
+		 * watermark rather than a future, which avoids allocating a future per
+		 * message. Sequences are assigned in increasing order, starting at 0.
+		 * @param message
+		 * @return The sequence of the message
+		 * @see #getAcknowledged()
+		 */
+		public long produceSequenced(byte[] message) {
+			return produceSequencedMessage(message);
+		}
+		
+		/**
+		 * Queues the remaining bytes of a buffer as a sequenced message. See
+		 * {@link #produce(ByteBuffer)} and {@link #produceSequenced(byte[])}.
+		 * @param message
+		 */
+		public long produceSequenced(ByteBuffer message) {
+			return produceSequencedMessage(message);
+		}
+		
+		private long produceSequencedMessage(Object message) {
+			startQueueing(checkSize(message, maxBatchBytes()));
+			long sequence = watermark.next();
+			offer(message, null, sequence, "produceSequenced");
+			return sequence;
+		}
+		
+		/**
+		 * Returns the acknowledged watermark: every sequenced message up to and
+		 * including this sequence has been acknowledged or has failed. The
+		 * watermark is -1 until the first sequenced message is resolved.
+		 */
+		public long getAcknowledged() {
+			return watermark.get();
+		}
+		
+		/**
+		 * Waits until the watermark reaches the sequence.
+		 * @throws ExecutionException If the message with the sequence failed
+		 * (provided it was one of the most recent failures)
+		 */
+		public void waitForAcknowledged(long sequence, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException, ExecutionException {
+			watermark.waitFor(sequence, timeout, unit);
+		}
+		
+		/**
+		 * Executes within the IO processing thread when a batch belonging to a failed
+		 * request may be retried. The batch is retried on this partition, or on a
+		 * partition of another broker if rerouting is enabled, once the retry
+		 * backoff for the attempt has elapsed (see
+		 * {@link PartitionProducer#setRetryBackoff(long, TimeUnit)}).<p>
+		 * @param messages
+		 * @param confirmations
+		 * @param attempt The number of attempts that have already been made
+		 * @param reason
+		 * @return true if the batch will be retried, false if it should be failed
+		 */
+		public boolean retryBatch(final List<Object> messages, final Confirmations confirmations, final int attempt, Exception reason) {
+			if (attempt > maxRetries) {
+				return false;
+			}
 			
+			PartitionState target = this;
+			if (rerouteOnFailure) {
+				PartitionState alternate = alternatePartition(partition);
+				if (alternate != null) {
+					target = alternate;
+					
+					// Other messages waiting for this broker are likely to fail
+					// as well, so move them along with the failed batch.
+					ArrayList<Object> queued = new ArrayList<Object>();
+					Confirmations queuedFutures;
+					synchronized (lock) {
+						queuedFutures = takeAll(queued);
+					}
+					if (!queued.isEmpty()) {
+						alternate.enqueue(queued, queuedFutures);
+					}
+				}
+			}
+			
+			if (logger.isDebugEnabled()) {
+				logger.debug("Retrying batch of "+messages.size()+" message(s) for "+partition+" on "+target.partition+" (attempt "+(attempt+1)+" of "+(maxRetries+1)+"). Reason: "+reason);
+			}
+			long backoff = retryBackoffNanos(attempt);
+			if (backoff == 0) {
+				target.resubmit(messages, confirmations, attempt);
+			} else {
+				target.scheduleResubmit(messages, confirmations, attempt, backoff);
+			}
+			return true;
+		}
+		
+		private void scheduleResubmit(final List<Object> messages, final Confirmations confirmations, final int attempt, long delayNanos) {
 			synchronized (lock) {
-				if (logger.isTraceEnabled()) {
-					logger.trace("Adding message to "+partition+" queue. Size is "+queuedMessages.size()+" + 1");
+				// The scheduled retry counts as an outstanding operation
+				outstandingOperations++;
+			}
+			ProducerTimer.timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					resubmit(messages, confirmations, attempt);
+					synchronized (lock) {
+						outstandingOperations--;
+						if (outstandingOperations == 0) {
+							lock.notifyAll();
+						}
+					}
 				}
-				queuedMessages.add(message);
-				queuedConfirmations.add(confirmation);
-				if (operationsWaitingToStart == 0) {
-					if (logger.isTraceEnabled()) {
-						logger.trace("Creating new produce request for "+partition+". Reason: produce(messages)");
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		}
+		
+		private void resubmit(List<Object> messages, Confirmations confirmations, int attempt) {
+			synchronized (lock) {
+				LateBindingConfirmedProduceRequest request = new LateBindingConfirmedProduceRequest(partition, this, messages, confirmations, attempt);
+				operationsWaitingToStart++;
+				outstandingOperations++;
+				pendingRequests.add(request);
+			}
+			executePending();
+		}
+		
+		private void enqueue(List<Object> messages, Confirmations confirmations) {
+			boolean startCompressor;
+			long bytes = checkSizes(messages);
+			synchronized (lock) {
+				addQueuedBytes(bytes);
+				overflowing = true;
+				overflowMessages.addAll(messages);
+				overflowConfirmations.addAll(confirmations);
+				startCompressor = scheduleSend("rerouted messages", true);
+			}
+			executePending();
+			if (startCompressor) {
+				startCompressor(true);
+			}
+		}
+		
+		/**
+		 * Executes the requests created while holding the lock. This must not be
+		 * called while holding the lock: the IO thread holds the client's lock
+		 * while it starts a request, which takes this lock. Only one thread
+		 * executes pending requests at a time, so they are executed in the order
+		 * they were created.
+		 */
+		private void executePending() {
+			while (true) {
+				LateBindingConfirmedProduceRequest request;
+				synchronized (lock) {
+					if (executingPending || pendingRequests.isEmpty()) {
+						return;
 					}
-					LateBindingConfirmedProduceRequest request = new LateBindingConfirmedProduceRequest(partition, this);
+					executingPending = true;
+					request = pendingRequests.remove(0);
+				}
+				try {
 					client.execute(request);
-					operationsWaitingToStart++;
-					outstandingOperations++;
+				} finally {
+					synchronized (lock) {
+						executingPending = false;
+					}
 				}
 			}
-			
-			return confirmation;
+		}
+		
+		/**
+		 * Must be called while holding the lock after messages have been queued.
+		 * Without compression, this creates a late-binding request (which takes its
+		 * batch from the queue when it starts) unless one is already waiting. With
+		 * compression, batches are compressed before they are handed to the client,
+		 * so that the IO thread only has to copy bytes.<p>
+		 * 
+		 * If a batch linger is set, the send is deferred until the queued messages
+		 * fill a request or the oldest of them has waited for the linger time.
+		 * @param reason Logged at trace level
+		 * @param ioThread True if the caller is the IO processing thread
+		 * @return true if the caller must call {@link #startCompressor(boolean)}
+		 * after releasing the lock
+		 */
+		private boolean scheduleSend(String reason, boolean ioThread) {
+			if (lingering()) {
+				return false;
+			}
+			if (compression != Message.COMPRESSION_NONE && (compressionExecutor != null || !ioThread)) {
+				if (compressing) {
+					return false;
+				}
+				compressing = true;
+				outstandingOperations++;
+				return true;
+			}
+			if (operationsWaitingToStart == 0 && !compressing) {
+				if (logger.isTraceEnabled()) {
+					logger.trace("Creating new produce request for "+partition+". Reason: "+reason);
+				}
+				LateBindingConfirmedProduceRequest request = new LateBindingConfirmedProduceRequest(partition, this);
+				operationsWaitingToStart++;
+				outstandingOperations++;
+				pendingRequests.add(request);
+			}
+			return false;
+		}
+		
+		/**
+		 * Must be called while holding the lock. Schedules a flush if the queued
+		 * messages should wait for more to be batched with them.
+		 * @return true if sending should be deferred
+		 */
+		private boolean lingering() {
+			long linger = batchLingerNanos;
+			if (linger <= 0 || queueEmpty() || queuedBytes.get() >= maxBatchBytes()) {
+				return false;
+			}
+			long remaining = linger - (System.nanoTime() - queuedSince);
+			if (remaining <= 0) {
+				return false;
+			}
+			if (!lingerScheduled) {
+				lingerScheduled = true;
+				// Counted so that waitForEmpty() waits for the lingering messages
+				outstandingOperations++;
+				ProducerTimer.timer.schedule(lingerElapsed, remaining, TimeUnit.NANOSECONDS);
+			}
+			return true;
+		}
+		
+		private void startCompressor(boolean ioThread) {
+			Executor executor = compressionExecutor;
+			if (executor != null) {
+				try {
+					executor.execute(compressor);
+					return;
+				} catch (RejectedExecutionException e) {
+					if (ioThread) {
+						// Never compress on the IO thread; send the queue uncompressed
+						synchronized (lock) {
+							compressing = false;
+							outstandingOperations--;
+							scheduleSend("compression rejected", true);
+						}
+						executePending();
+						return;
+					}
+				}
+			}
+			compressor.run();
+		}
+		
+		/**
+		 * Compresses queued messages in batches and sends each batch, until the
+		 * queue is empty. Only one thread compresses a partition's queue at a time,
+		 * so batches are sent in the order the messages were queued.
+		 */
+		private void compressQueue() {
+			while (true) {
+				ArrayList<Object> batch = new ArrayList<Object>();
+				Confirmations batchConfirmations = null;
+				synchronized (lock) {
+					boolean empty = queueEmpty();
+					if (empty) {
+						compressing = false;
+						// A producer that saw the flag set may have queued a message
+						// before it was cleared
+						empty = queueEmpty();
+						if (!empty) {
+							compressing = true;
+						}
+					}
+					if (empty) {
+						if (unconfirmedBatches > 0 && operationsWaitingToStart == 0) {
+							// The last batch was not followed by an offsets request
+							// because more were queued, but they failed to compress
+							LateBindingConfirmedProduceRequest request = new LateBindingConfirmedProduceRequest(partition, this);
+							operationsWaitingToStart++;
+							outstandingOperations++;
+							pendingRequests.add(request);
+						}
+						outstandingOperations--;
+						if (outstandingOperations == 0) {
+							lock.notifyAll();
+						}
+					} else {
+						batchConfirmations = getMessages(batch, true);
+					}
+				}
+				if (batch.isEmpty()) {
+					executePending();
+					return;
+				}
+				
+				EncodedMessageSet encoded;
+				try {
+					encoded = EncodedMessageSet.encodeParallel(compression, batch, messagesPerWrapper, compressionExecutor);
+				} catch (RuntimeException e) {
+					logger.warn("Failed to compress batch of "+batch.size()+" message(s) for "+partition, e);
+					batchConfirmations.failed(e);
+					continue;
+				}
+				
+				if (logger.isTraceEnabled()) {
+					logger.trace("Compressed batch of "+batch.size()+" message(s) for "+partition+" to "+encoded.size()+" bytes");
+				}
+				ArrayList<Object> messages = new ArrayList<Object>(1);
+				messages.add(encoded);
+				resubmit(messages, batchConfirmations, 0);
+			}
 		}
 		
 		public List<SettableFuture<Boolean>> produce(List<byte[]> messages) {
+			return produceMessages(messages);
+		}
+		
+		/**
+		 * Queues the remaining bytes of each buffer as a message. See
+		 * {@link #produce(ByteBuffer)}.
+		 * @param messages
+		 */
+		public List<SettableFuture<Boolean>> produceBuffers(List<ByteBuffer> messages) {
+			return produceMessages(messages);
+		}
+		
+		private List<SettableFuture<Boolean>> produceMessages(List<?> messages) {
+			startQueueing(checkSizes(messages));
 			List<SettableFuture<Boolean>> confirmations = new ArrayList<SettableFuture<Boolean>>(messages.size());
 			for (int i=0; i<messages.size(); ++i) {
 				confirmations.add(new ValueFuture<Boolean>());
 			}
 
-			synchronized (lock) {
-				queuedMessages.addAll(messages);
-				queuedConfirmations.addAll(confirmations);
-				if (logger.isTraceEnabled()) {
-					logger.trace("Adding messages to "+partition+" queue. Size is "+queuedMessages.size()+" + "+messages.size());
+			int count = messages.size();
+			int offered = 0;
+			if (!overflowing) {
+				while (offered < count && ring.offer(messages.get(offered), confirmations.get(offered), 0)) {
+					offered++;
 				}
-				if (operationsWaitingToStart == 0) {
-					if (logger.isTraceEnabled()) {
-						logger.trace("Creating new produce request for "+partition+". Reason: produce(list)");
-					}
-					LateBindingConfirmedProduceRequest request = new LateBindingConfirmedProduceRequest(partition, this);
-					client.execute(request);
-					operationsWaitingToStart++;
-					outstandingOperations++;
+			}
+			if (offered < count) {
+				synchronized (lock) {
+					overflowing = true;
+					overflowMessages.addAll(messages.subList(offered, count));
+					overflowConfirmations.addAll(new Confirmations(confirmations.subList(offered, count)));
 				}
 			}
+			sendQueued("produce(list)");
 			
 			return confirmations;
 		}
 		
+		/**
+		 * Executes within the IO processing thread when a batch starts, to decide
+		 * whether the batch is followed by its own offsets request. A batch that is
+		 * not is confirmed by the next response on its connection, which is
+		 * guaranteed because the last batch of a window is always followed by an
+		 * offsets request.<p>
+		 * @return true if an offsets request should follow the batch
+		 */
+		public boolean confirmBatch() {
+			synchronized (lock) {
+				Confirmation mode = getConfirmation();
+				long now = System.nanoTime();
+				boolean windowEnd = queueEmpty();
+				boolean confirm;
+				switch (mode) {
+				case PIPELINE:
+					confirm = windowEnd;
+					break;
+				case EVERY_N_BATCHES:
+					confirm = windowEnd || unconfirmedBatches + 1 >= confirmEvery;
+					break;
+				case INTERVAL:
+					confirm = windowEnd || now - lastConfirmed >= confirmIntervalNanos;
+					break;
+				default:
+					confirm = true;
+					break;
+				}
+				if (confirm) {
+					unconfirmedBatches = 0;
+					lastConfirmed = now;
+				} else {
+					unconfirmedBatches++;
+				}
+				return confirm;
+			}
+		}
+		
+		/**
+		 * Executes within the IO processing thread. Returns true if batches have
+		 * been sent that are waiting for a later offsets request to confirm them.
+		 */
+		public boolean hasUnconfirmedBatches() {
+			synchronized (lock) {
+				return unconfirmedBatches > 0;
+			}
+		}
+		
+		/**
+		 * Returns the confirmation mode in effect for this partition. Confirming a
+		 * batch with a later request relies on both being sent on the same
+		 * connection, so unless the client opens a single connection per broker,
+		 * every batch is confirmed individually.
+		 */
+		public Confirmation getConfirmation() {
+			Confirmation mode = confirmation;
+			if (mode != Confirmation.NONE && mode != Confirmation.EVERY_BATCH && client.getConnectionsPerHost() > 1) {
+				return Confirmation.EVERY_BATCH;
+			}
+			return mode;
+		}
+		
 		/**
 		 * Executes within the IO processing thread when the current request has been
 		 * started and can no longer accept new messages.
@@ -120,14 +903,15 @@ public class PartitionProducer {
 		public void requestStarted() {
 			synchronized (lock) {
 				operationsWaitingToStart--;
-				if (queuedMessages.size() > 0) {
+				if (!queueEmpty() && !compressing && !lingering()) {
 					logger.trace("Creating new produce request for "+partition+". Reason: previous request started");
 					LateBindingConfirmedProduceRequest request = new LateBindingConfirmedProduceRequest(partition, this);
-					client.execute(request);
 					operationsWaitingToStart++;
 					outstandingOperations++;
+					pendingRequests.add(request);
 				}
 			}
+			executePending();
 		}
 		
 		/**
@@ -145,6 +929,23 @@ public class PartitionProducer {
 			}
 		}
 		
+		/**
+		 * Returns true if no messages are queued and no requests are outstanding
+		 */
+		public boolean isEmpty() {
+			synchronized (lock) {
+				return outstandingOperations == 0 && queueEmpty();
+			}
+		}
+		
+		/**
+		 * Returns true once the partition no longer accepts messages and has sent
+		 * (or failed) every message it accepted
+		 */
+		private boolean drained() {
+			return closed && queuedBytes.get() == 0 && isEmpty();
+		}
+		
 		public void waitForEmpty() throws InterruptedException {
 			synchronized (lock) {
 				while (outstandingOperations > 0) {
@@ -200,35 +1001,62 @@ public class PartitionProducer {
 		
 		/**
 		 * Executes within the IO processing thread when all connections to a specific
-		 * broker have been failed.<p>
+		 * broker have been failed. The queued messages are moved to a partition of
+		 * another broker if rerouting is enabled, and failed otherwise.<p>
 		 * 
 		 * This will only execute if the request has not been started.<p>
 		 * @param reason
 		 */
 		public void brokerFailed(Exception reason) {
+			ArrayList<Object> queued = new ArrayList<Object>();
+			Confirmations failed;
 			synchronized (lock) {
 				operationsWaitingToStart--;
 				outstandingOperations--;
 				
-				for (SettableFuture<Boolean> f : queuedConfirmations) {
-					f.completeWithException(reason);
-				}
-				queuedMessages.clear();
-				queuedConfirmations.clear();
+				failed = takeAll(queued);
 				
 				lock.notifyAll();
 			}
+			if (queued.isEmpty()) {
+				return;
+			}
+			PartitionState alternate = rerouteOnFailure ? alternatePartition(partition) : null;
+			if (alternate != null) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Rerouting "+queued.size()+" queued message(s) for "+partition+" to "+alternate.partition+". Reason: "+reason);
+				}
+				alternate.enqueue(queued, failed);
+				return;
+			}
+			// Failed outside the lock, since acknowledgment listeners may produce
+			failed.failed(reason);
+		}
+		
+		/**
+		 * Executes within the IO processing thread when a request that has not been
+		 * started fails after handing its batch back to {@link #retryBatch}. The
+		 * retry takes care of the batch (and of the queue, if it is rerouted), so
+		 * this only accounts for the request.
+		 */
+		public void requestRetried() {
+			synchronized (lock) {
+				operationsWaitingToStart--;
+				outstandingOperations--;
+				lock.notifyAll();
+			}
 		}
 		
+		/**
+		 * Rejects new messages, and fails the messages that are still queued.
+		 */
 		public void close() {
+			closed = true;
+			Confirmations failed;
 			synchronized (lock) {
-				RuntimeException reason = new RuntimeException("Partition was closed");
-				for (SettableFuture<Boolean> f : queuedConfirmations) {
-					f.completeWithException(reason);
-				}
-				queuedMessages.clear();
-				queuedConfirmations.clear();
+				failed = takeAll(new ArrayList<Object>());
 			}
+			failed.failed(new RuntimeException("Partition was closed"));
 		}
 		
 	}
@@ -237,37 +1065,616 @@ public class PartitionProducer {
 		this.client = client;
 	}
 	
-	private Map<KafkaPartitionIdentity,PartitionState> partitions = new HashMap<KafkaPartitionIdentity,PartitionState>();
-
-	public void addPartition(KafkaPartitionIdentity partition) {
-		partitions.put(partition, new PartitionState(partition));
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+	
+	/**
+	 * Sets the number of times a batch will be resent after its connection fails
+	 * before its messages are failed. Retried messages may be delivered more than
+	 * once, since the broker may have received a batch before the connection failed.
+	 * @param maxRetries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("Max retries must be an integer greater than or equal to 0");
+		}
+		this.maxRetries = maxRetries;
+	}
+	
+	public long getRetryBackoff(TimeUnit unit) {
+		return unit.convert(retryBackoffNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sets how long a failed batch waits before it is resent. The backoff
+	 * doubles with each further attempt of the same batch, so that retries are
+	 * not used up while a broker's circuit is open (see
+	 * {@link KafkaAsyncClient#setCircuitBreakerThreshold(double)}).
+	 * @param backoff The backoff before the first retry, or 0 to resend at once
+	 * @param unit
+	 */
+	public void setRetryBackoff(long backoff, TimeUnit unit) {
+		if (backoff < 0) {
+			throw new IllegalArgumentException("Retry backoff must be greater than or equal to 0");
+		}
+		this.retryBackoffNanos = unit.toNanos(backoff);
+	}
+	
+	/**
+	 * @param attempt The number of attempts that have already been made (at least 1)
+	 */
+	private long retryBackoffNanos(int attempt) {
+		return retryBackoffNanos << Math.min(attempt - 1, MAX_BACKOFF_DOUBLINGS);
+	}
+	
+	public boolean isRerouteOnFailure() {
+		return rerouteOnFailure;
+	}
+	
+	/**
+	 * When enabled, retried batches (and any messages queued behind them) are moved
+	 * to a partition on a different broker. Messages produced to a partition whose
+	 * broker is unavailable (see {@link KafkaAsyncClient#isBrokerAvailable}) are
+	 * sent to a partition on a different broker as well.
+	 * @param rerouteOnFailure
+	 */
+	public void setRerouteOnFailure(boolean rerouteOnFailure) {
+		this.rerouteOnFailure = rerouteOnFailure;
+	}
+	
+	public Confirmation getConfirmation() {
+		return confirmation;
+	}
+	
+	/**
+	 * Sets how produced batches are confirmed. See {@link Confirmation}. Modes
+	 * other than EVERY_BATCH and NONE only take effect when the client opens a
+	 * single connection per broker.
+	 * @param confirmation
+	 */
+	public void setConfirmation(Confirmation confirmation) {
+		if (confirmation == null) {
+			throw new IllegalArgumentException("Confirmation must not be null");
+		}
+		this.confirmation = confirmation;
+	}
+	
+	public int getConfirmEvery() {
+		return confirmEvery;
+	}
+	
+	/**
+	 * Sets the number of batches confirmed by each offsets request in the
+	 * EVERY_N_BATCHES mode.
+	 * @param batches
+	 */
+	public void setConfirmEvery(int batches) {
+		if (batches <= 0) {
+			throw new IllegalArgumentException("Batches must be an integer greater than 0");
+		}
+		this.confirmEvery = batches;
+	}
+	
+	public long getConfirmInterval(TimeUnit unit) {
+		return unit.convert(confirmIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sets the time between offsets requests in the INTERVAL mode.
+	 * @param interval
+	 * @param unit
+	 */
+	public void setConfirmInterval(long interval, TimeUnit unit) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("Interval must be greater than or equal to 0");
+		}
+		this.confirmIntervalNanos = unit.toNanos(interval);
+	}
+	
+	public int getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Sets the compression codec used for produced batches (see
+	 * Message.COMPRESSION_*). Compression never runs on the IO thread: batches are
+	 * compressed by the compression executor if one is set, or otherwise by the
+	 * thread that produces the messages.
+	 * @param compression
+	 */
+	public void setCompression(int compression) {
+		if (compression != Message.COMPRESSION_NONE && CompressionCodecs.forId(compression) == null) {
+			throw new IllegalArgumentException("Unsupported compression: "+compression);
+		}
+		this.compression = compression;
+	}
+	
+	public Executor getCompressionExecutor() {
+		return compressionExecutor;
+	}
+	
+	/**
+	 * Sets the executor used to compress batches. Large batches are split into
+	 * several wrapper messages (see {@link #setMessagesPerWrapper(int)}) that are
+	 * compressed in parallel on this executor. If null, batches are compressed
+	 * by the producing thread.
+	 * @param compressionExecutor
+	 */
+	public void setCompressionExecutor(Executor compressionExecutor) {
+		this.compressionExecutor = compressionExecutor;
+	}
+	
+	public int getMessagesPerWrapper() {
+		return messagesPerWrapper;
+	}
+	
+	/**
+	 * Sets the maximum number of messages compressed into a single wrapper
+	 * message. Batches with more messages are split into several wrapper messages
+	 * that are compressed in parallel.
+	 * @param messagesPerWrapper
+	 */
+	public void setMessagesPerWrapper(int messagesPerWrapper) {
+		if (messagesPerWrapper <= 0) {
+			throw new IllegalArgumentException("Messages per wrapper must be an integer greater than 0");
+		}
+		this.messagesPerWrapper = messagesPerWrapper;
+	}
+	
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+	
+	/**
+	 * Sets the most bytes of encoded messages sent to a partition in a single
+	 * produce request. Batches are always limited to what fits in the client's
+	 * request buffer ({@link KafkaAsyncClient#getMaxRequestSize()}) along with
+	 * the offsets request that confirms them, so this can only lower that limit.
+	 * Compressed batches are budgeted by their uncompressed size, plus an
+	 * allowance for the compression overhead.
+	 * @param maxBatchBytes The limit, or 0 to use the request buffer's size
+	 */
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		if (maxBatchBytes < 0) {
+			throw new IllegalArgumentException("Max batch bytes must be greater than or equal to 0");
+		}
+		this.maxBatchBytes = maxBatchBytes;
 	}
 	
-	public void removePartition(KafkaPartitionIdentity partition) {
-		PartitionState state = partitions.remove(partition);
+	public long getBatchLinger(TimeUnit unit) {
+		return unit.convert(batchLingerNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sets how long queued messages may wait for more messages to fill a
+	 * request before they are sent. With the default of 0, a request is created
+	 * as soon as messages are queued and no request is waiting to be sent,
+	 * which favours latency over batch size.
+	 * @param linger
+	 * @param unit
+	 */
+	public void setBatchLinger(long linger, TimeUnit unit) {
+		if (linger < 0) {
+			throw new IllegalArgumentException("Linger must be greater than or equal to 0");
+		}
+		this.batchLingerNanos = unit.toNanos(linger);
+	}
+	
+	/**
+	 * Chooses a partition on a different, available broker than the specified
+	 * partition, rotating through the candidates on each call.
+	 * @param partition
+	 * @return The alternate partition, or null if no partition exists on another
+	 * available broker
+	 */
+	private PartitionState alternatePartition(KafkaPartitionIdentity partition) {
+		ArrayList<PartitionState> candidates = new ArrayList<PartitionState>();
+		for (PartitionState state : partitions.sorted) {
+			KafkaBrokerIdentity broker = state.partition.broker;
+			if (!broker.equals(partition.broker) && client.isBrokerAvailable(broker)) {
+				candidates.add(state);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		int next = (rerouteCounter.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+		return candidates.get(next);
+	}
+	
+	/**
+	 * An immutable view of the producer's partitions. It is replaced (while
+	 * holding the producer's lock) whenever a partition is added or removed, so
+	 * that the produce methods can find partitions without locking.
+	 */
+	private static final class Partitions {
+		static final Partitions EMPTY = new Partitions(new TreeMap<KafkaPartitionIdentity,PartitionState>());
+		
+		final Map<KafkaPartitionIdentity,PartitionState> byIdentity;
+		// Sorted by identity, for partitioners
+		final List<PartitionState> sorted;
+		
+		Partitions(TreeMap<KafkaPartitionIdentity,PartitionState> partitions) {
+			byIdentity = new HashMap<KafkaPartitionIdentity,PartitionState>(partitions);
+			sorted = Collections.unmodifiableList(new ArrayList<PartitionState>(partitions.values()));
+		}
+		
+		TreeMap<KafkaPartitionIdentity,PartitionState> copy() {
+			return new TreeMap<KafkaPartitionIdentity,PartitionState>(byIdentity);
+		}
+	}
+	
+	private volatile Partitions partitions = Partitions.EMPTY;
+	// Removed partitions that are still sending their queued messages
+	private final ArrayList<PartitionState> draining = new ArrayList<PartitionState>();
+	// Brokers added to the client by updatePartitions
+	private final Set<KafkaBrokerIdentity> addedBrokers = new HashSet<KafkaBrokerIdentity>();
+	private PartitionManager followedManager;
+	private ScheduledFuture<?> followTask;
+	
+	/**
+	 * Adds a partition, which can be produced to immediately. Adding a partition
+	 * that already exists has no effect.
+	 * @param partition
+	 */
+	public synchronized void addPartition(KafkaPartitionIdentity partition) {
+		if (partitions.byIdentity.containsKey(partition)) {
+			return;
+		}
+		TreeMap<KafkaPartitionIdentity,PartitionState> updated = partitions.copy();
+		updated.put(partition, new PartitionState(partition));
+		partitions = new Partitions(updated);
+	}
+	
+	/**
+	 * Removes a partition. New messages can no longer be produced to it (its
+	 * {@link PartitionState} throws IllegalStateException), but messages
+	 * already queued for it are still sent (and retried or rerouted as usual). {@link #waitForEmpty()} waits for them. To fail them instead, call
+	 * {@link PartitionState#close()}.
+	 * @param partition
+	 */
+	public synchronized void removePartition(KafkaPartitionIdentity partition) {
+		PartitionState state = partitions.byIdentity.get(partition);
 		if (state != null) {
-			state.close();
+			TreeMap<KafkaPartitionIdentity,PartitionState> updated = partitions.copy();
+			updated.remove(partition);
+			partitions = new Partitions(updated);
+			state.closed = true;
+			draining.add(state);
+			removeDrained();
+		}
+	}
+	
+	/**
+	 * Applies the changes of a partition manager: added partitions start taking
+	 * messages, and removed partitions are drained (see
+	 * {@link #removePartition(KafkaPartitionIdentity)}). The first call adds
+	 * all of the manager's partitions. Brokers that the client does not know
+	 * are added to it, and those brokers are removed from the client again once
+	 * none of this producer's partitions (including draining ones) use them,
+	 * so the client must have been opened.<p>
+	 * 
+	 * A partition manager reports each change once, so it should only be
+	 * followed by a single producer.
+	 * @param manager
+	 * @return true if the partitions changed
+	 */
+	public synchronized boolean updatePartitions(PartitionManager manager) {
+		boolean first = manager != followedManager;
+		followedManager = manager;
+		boolean changed = manager.changed();
+		Set<KafkaPartitionIdentity> added = first ? manager.all() : (changed ? manager.added() : Collections.<KafkaPartitionIdentity>emptySet());
+		Set<KafkaPartitionIdentity> removed = changed && !first ? manager.removed() : Collections.<KafkaPartitionIdentity>emptySet();
+		
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			TreeMap<KafkaPartitionIdentity,PartitionState> updated = partitions.copy();
+			for (KafkaPartitionIdentity partition : removed) {
+				PartitionState state = updated.remove(partition);
+				if (state != null) {
+					draining.add(state);
+				}
+			}
+			for (KafkaPartitionIdentity partition : added) {
+				if (!updated.containsKey(partition)) {
+					if (!client.hasBroker(partition.broker) && addedBrokers.add(partition.broker)) {
+						client.addBroker(partition.broker);
+					}
+					updated.put(partition, new PartitionState(partition));
+				}
+			}
+			partitions = new Partitions(updated);
+			// Closed only once they are no longer in the published partitions, so
+			// that producers that find a closed partition can look again
+			for (PartitionState state : draining) {
+				state.closed = true;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("Partitions updated: "+added.size()+" added, "+removed.size()+" removed");
+			}
+		}
+		
+		removeDrained();
+		return !added.isEmpty() || !removed.isEmpty();
+	}
+	
+	/**
+	 * Must be called while holding the producer's lock. Forgets removed
+	 * partitions that have finished sending, and removes brokers added by
+	 * updatePartitions that are no longer used by any other partition.
+	 */
+	private void removeDrained() {
+		for (Iterator<PartitionState> i = draining.iterator(); i.hasNext(); ) {
+			if (i.next().drained()) {
+				i.remove();
+			}
+		}
+		if (addedBrokers.isEmpty()) {
+			return;
+		}
+		Set<KafkaBrokerIdentity> unused = new HashSet<KafkaBrokerIdentity>(addedBrokers);
+		for (PartitionState state : partitions.sorted) {
+			unused.remove(state.partition.broker);
+		}
+		for (PartitionState state : draining) {
+			unused.remove(state.partition.broker);
+		}
+		for (KafkaBrokerIdentity broker : unused) {
+			addedBrokers.remove(broker);
+			client.removeBroker(broker);
+		}
+	}
+	
+	/**
+	 * Calls {@link #updatePartitions(PartitionManager)} now, and then
+	 * periodically on a shared timer thread until {@link #stopFollowing()} is
+	 * called. Following a new manager stops following the previous one.
+	 * @param manager
+	 * @param interval
+	 * @param unit
+	 */
+	public synchronized void follow(final PartitionManager manager, long interval, TimeUnit unit) {
+		stopFollowing();
+		updatePartitions(manager);
+		followTask = ProducerTimer.timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					updatePartitions(manager);
+				} catch (RuntimeException e) {
+					logger.warn("Failed to update partitions", e);
+				}
+			}
+		}, interval, interval, unit);
+	}
+	
+	public synchronized void stopFollowing() {
+		if (followTask != null) {
+			followTask.cancel(false);
+			followTask = null;
+		}
+	}
+	
+	/**
+	 * The partitions that can currently be produced to, sorted by identity
+	 */
+	public List<KafkaPartitionIdentity> getPartitions() {
+		List<PartitionState> states = partitions.sorted;
+		List<KafkaPartitionIdentity> result = new ArrayList<KafkaPartitionIdentity>(states.size());
+		for (PartitionState state : states) {
+			result.add(state.partition);
+		}
+		return result;
+	}
+	
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	/**
+	 * Sets the number of messages each partition can queue without locking.
+	 * Messages produced while a partition's queue is full are still accepted,
+	 * but are queued under the partition's lock until it has drained. Applies
+	 * to partitions added after it is set.
+	 * @param queueCapacity Rounded up to a power of two
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be an integer greater than 0");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+	
+	public Partitioner getPartitioner() {
+		return partitioner;
+	}
+	
+	/**
+	 * Sets the strategy used to choose a partition for the produce methods that
+	 * do not take one. See {@link Partitioners}.
+	 * @param partitioner
+	 */
+	public void setPartitioner(Partitioner partitioner) {
+		if (partitioner == null) {
+			throw new IllegalArgumentException("partitioner must not be null");
+		}
+		this.partitioner = partitioner;
+	}
+	
+	/**
+	 * Produces a message to the partition chosen by the partitioner.
+	 * @param message
+	 */
+	public SettableFuture<Boolean> produce(byte[] message) {
+		return partitionFor(null).produce(message);
+	}
+	
+	/**
+	 * Produces the remaining bytes of the buffer as a message to the partition
+	 * chosen by the partitioner. The buffer must not be modified until the
+	 * message has been confirmed.
+	 * @param message
+	 */
+	public SettableFuture<Boolean> produce(ByteBuffer message) {
+		return partitionFor(null).produce(message);
+	}
+	
+	/**
+	 * Produces the messages to a single partition chosen by the partitioner.
+	 * @param messages
+	 */
+	public List<SettableFuture<Boolean>> produce(List<byte[]> messages) {
+		return partitionFor(null).produce(messages);
+	}
+	
+	/**
+	 * Produces a message to the partition the partitioner chooses for its key.
+	 * The key is only used to choose the partition; kafka 0.7 messages do not
+	 * carry keys.
+	 * @param key
+	 * @param message
+	 */
+	public SettableFuture<Boolean> produceWithKey(byte[] key, byte[] message) {
+		return partitionFor(key).produce(message);
+	}
+	
+	public SettableFuture<Boolean> produceWithKey(byte[] key, ByteBuffer message) {
+		return partitionFor(key).produce(message);
+	}
+	
+	private PartitionState partitionFor(byte[] key) {
+		while (true) {
+			List<PartitionState> candidates = partitions.sorted;
+			if (candidates.isEmpty()) {
+				throw new IllegalStateException("No partitions have been added");
+			}
+			PartitionState state = partitioner.partition(key, candidates);
+			// The partition may have been removed since the list was read, in
+			// which case the new list is used
+			if (!state.closed || candidates == partitions.sorted) {
+				return reroute(state);
+			}
 		}
 	}
 	
 	public SettableFuture<Boolean> produce(KafkaPartitionIdentity partition, byte[] message) {
-		PartitionState state = partitions.get(partition);
+		return stateFor(partition).produce(message);
+	}
+	
+	/**
+	 * Produces a message that is confirmed through the acknowledged watermark of
+	 * the partition instead of a future. The message is always sequenced by the
+	 * given partition, even if its broker is unavailable: a batch that is retried
+	 * on an alternate partition is still acknowledged through the watermark of
+	 * the partition that sequenced it.
+	 * @param partition
+	 * @param message
+	 * @return The sequence of the message
+	 * @see PartitionState#produceSequenced(byte[])
+	 */
+	public long produceSequenced(KafkaPartitionIdentity partition, byte[] message) {
+		return getState(partition).produceSequenced(message);
+	}
+	
+	public long produceSequenced(KafkaPartitionIdentity partition, ByteBuffer message) {
+		return getState(partition).produceSequenced(message);
+	}
+	
+	/**
+	 * Returns the acknowledged watermark of a partition. See
+	 * {@link PartitionState#getAcknowledged()}.
+	 * @param partition
+	 */
+	public long getAcknowledged(KafkaPartitionIdentity partition) {
+		return getState(partition).getAcknowledged();
+	}
+	
+	public void waitForAcknowledged(KafkaPartitionIdentity partition, long sequence, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException, ExecutionException {
+		getState(partition).waitForAcknowledged(sequence, timeout, unit);
+	}
+	
+	/**
+	 * Adds a listener that is called whenever the acknowledged watermark of any
+	 * partition advances, or sequenced messages fail.
+	 * @param listener
+	 */
+	public void addAcknowledgmentListener(AcknowledgmentListener listener) {
+		acknowledgmentListeners.add(listener);
+	}
+	
+	public void removeAcknowledgmentListener(AcknowledgmentListener listener) {
+		acknowledgmentListeners.remove(listener);
+	}
+	
+	/**
+	 * Returns the state of a partition, without rerouting.
+	 * @param partition
+	 */
+	public PartitionState getState(KafkaPartitionIdentity partition) {
+		PartitionState state = partitions.byIdentity.get(partition);
 		if (state == null) {
 			throw new IllegalArgumentException("Unknown partition: "+partition+"");
 		}
-		return state.produce(message);
+		return state;
 	}
 	
 	public List<SettableFuture<Boolean>> produce(KafkaPartitionIdentity partition, List<byte[]> messages) {
-		PartitionState state = partitions.get(partition);
-		if (state == null) {
-			throw new IllegalArgumentException("Unknown partition: "+partition+"");
+		return stateFor(partition).produce(messages);
+	}
+	
+	/**
+	 * Produces the remaining bytes of the buffer as a single message, without
+	 * copying it into an intermediate array. The buffer must not be modified until
+	 * the message has been confirmed.
+	 * @param partition
+	 * @param message
+	 */
+	public SettableFuture<Boolean> produce(KafkaPartitionIdentity partition, ByteBuffer message) {
+		return stateFor(partition).produce(message);
+	}
+	
+	public List<SettableFuture<Boolean>> produceBuffers(KafkaPartitionIdentity partition, List<ByteBuffer> messages) {
+		return stateFor(partition).produceBuffers(messages);
+	}
+	
+	/**
+	 * Finds the state for a partition, diverting to another partition if rerouting
+	 * is enabled and the partition's broker is unavailable.
+	 * @param partition
+	 */
+	private PartitionState stateFor(KafkaPartitionIdentity partition) {
+		return reroute(getState(partition));
+	}
+	
+	/**
+	 * Diverts to another partition if rerouting is enabled and the partition's
+	 * broker is unavailable.
+	 * @param state
+	 */
+	private PartitionState reroute(PartitionState state) {
+		KafkaPartitionIdentity partition = state.partition;
+		if (rerouteOnFailure && !client.isBrokerAvailable(partition.broker)) {
+			PartitionState alternate = alternatePartition(partition);
+			if (alternate != null) {
+				return alternate;
+			}
 		}
-		return state.produce(messages);
+		return state;
+	}
+	
+	/**
+	 * The partitions to wait for: the current ones, and removed ones that are
+	 * still draining
+	 */
+	private synchronized List<PartitionState> allPartitions() {
+		removeDrained();
+		ArrayList<PartitionState> result = new ArrayList<PartitionState>(partitions.sorted);
+		result.addAll(draining);
+		return result;
 	}
 	
 	public void waitForEmpty() throws InterruptedException {
-		for (PartitionState state : partitions.values()) {
+		for (PartitionState state : allPartitions()) {
 			state.waitForEmpty();
 		}
 	}
@@ -279,7 +1686,7 @@ public class PartitionProducer {
 	public void waitForEmpty(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
 		long endTime = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(timeout, unit);
 		
-		for (PartitionState state : partitions.values()) {
+		for (PartitionState state : allPartitions()) {
 			long waitTime = endTime - System.currentTimeMillis();
 			if (waitTime <= 0) {
 				throw new TimeoutException("Not empty");
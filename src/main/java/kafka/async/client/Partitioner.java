@@ -0,0 +1,26 @@
+package kafka.async.client;
+
+import java.util.List;
+
+/**
+ * Chooses the partition that a message is produced to when the caller of
+ * {@link PartitionProducer} does not choose one itself. Implementations for
+ * common strategies are created by {@link Partitioners}.<p>
+ *
+ * Implementations must be thread-safe, since messages may be produced by any
+ * number of threads, and should be cheap, since they are called for every
+ * message.
+ * @author tbrown
+ */
+public interface Partitioner {
+
+	/**
+	 * Chooses the partition for a message (or list of messages).
+	 * @param key The key of the message, or null if it has none
+	 * @param partitions The producer's partitions, sorted by
+	 * {@link kafka.async.KafkaPartitionIdentity} and never empty. The list must
+	 * not be modified.
+	 * @return One of the partitions in the list
+	 */
+	public PartitionProducer.PartitionState partition(byte[] key, List<PartitionProducer.PartitionState> partitions);
+}
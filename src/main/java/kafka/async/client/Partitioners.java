@@ -0,0 +1,165 @@
+package kafka.async.client;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Factories for the built-in partitioning strategies:
+ * <ul>
+ * <li>{@link #roundRobin()}: each message goes to the next partition in turn.</li>
+ * <li>{@link #sticky()}: messages go to one partition until a batch has been
+ * taken from it for sending, then to the next, so that batches are fuller
+ * than with round-robin.</li>
+ * <li>{@link #keyHash(Partitioner)}: messages with the same key always go to
+ * the same partition (while the set of partitions is unchanged).</li>
+ * <li>{@link #loadAware(KafkaAsyncClient)}: messages go to the partition with
+ * the least queued and in-flight work, weighted by its broker's response
+ * latency, so that slow brokers receive less traffic.</li>
+ * </ul>
+ * The default partitioner of a {@link PartitionProducer} hashes keys, and
+ * uses the sticky strategy for messages without one.
+ * @author tbrown
+ */
+public final class Partitioners {
+
+	/**
+	 * Added to every broker's latency when comparing load, so that a broker
+	 * without any responses yet is not infinitely preferred
+	 */
+	private static final long LATENCY_FLOOR_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private Partitioners() {
+	}
+
+	public static Partitioner roundRobin() {
+		return new Partitioner() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public PartitionProducer.PartitionState partition(byte[] key, List<PartitionProducer.PartitionState> partitions) {
+				return partitions.get((counter.getAndIncrement() & Integer.MAX_VALUE) % partitions.size());
+			}
+		};
+	}
+
+	public static Partitioner sticky() {
+		return new StickyPartitioner();
+	}
+
+	/**
+	 * @param fallback Chooses the partition for messages without a key
+	 */
+	public static Partitioner keyHash(final Partitioner fallback) {
+		if (fallback == null) {
+			throw new IllegalArgumentException("fallback must not be null");
+		}
+		return new Partitioner() {
+			@Override
+			public PartitionProducer.PartitionState partition(byte[] key, List<PartitionProducer.PartitionState> partitions) {
+				if (key == null) {
+					return fallback.partition(key, partitions);
+				}
+				return partitions.get((hash(key) & Integer.MAX_VALUE) % partitions.size());
+			}
+		};
+	}
+
+	/**
+	 * Chooses the available partition with the lowest estimated time to send a
+	 * new message: the number of requests in flight or waiting plus the number
+	 * of requests needed for the queued messages, multiplied by the broker's
+	 * average response latency. Partitions on brokers whose circuit is open are
+	 * only chosen if no others are available. Ties are broken in rotation.
+	 * @param client The client the producer uses, which tracks broker latency
+	 */
+	public static Partitioner loadAware(final KafkaAsyncClient client) {
+		if (client == null) {
+			throw new IllegalArgumentException("client must not be null");
+		}
+		return new Partitioner() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public PartitionProducer.PartitionState partition(byte[] key, List<PartitionProducer.PartitionState> partitions) {
+				int size = partitions.size();
+				int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % size;
+				PartitionProducer.PartitionState best = null;
+				double bestCost = Double.MAX_VALUE;
+				for (int i=0; i<size; ++i) {
+					PartitionProducer.PartitionState state = partitions.get((start + i) % size);
+					BrokerHealth health = client.getBrokerHealth(state.getPartition().broker);
+					if (health != null && !health.isAvailable()) {
+						continue;
+					}
+					long latency = (health == null ? 0 : health.getLatencyNanos()) + LATENCY_FLOOR_NANOS;
+					double requests = 1 + state.getOutstandingOperations() + (double)state.getQueuedBytes() / state.maxBatchBytes();
+					double cost = requests * latency;
+					if (cost < bestCost) {
+						best = state;
+						bestCost = cost;
+					}
+				}
+				return best != null ? best : partitions.get(start);
+			}
+		};
+	}
+
+	/**
+	 * Spreads the bits of the key's hash code, so that keys differing only
+	 * slightly are not clustered on neighbouring partitions.
+	 */
+	static int hash(byte[] key) {
+		int h = 0x9747b28c;
+		for (byte b : key) {
+			h = 31 * h + b;
+		}
+		// Finalization mix from MurmurHash3
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Publishes the partition being filled as an immutable holder, so that the
+	 * common case (staying on the same partition) takes no lock, and moving on
+	 * is a single compare-and-set that only one thread wins.
+	 */
+	private static final class StickyPartitioner implements Partitioner {
+		private static final class Current {
+			final int index;
+			final PartitionProducer.PartitionState state;
+			final long batches;
+
+			Current(int index, PartitionProducer.PartitionState state) {
+				this.index = index;
+				this.state = state;
+				this.batches = state.getBatchesTaken();
+			}
+		}
+
+		private final AtomicReference<Current> current = new AtomicReference<Current>();
+
+		@Override
+		public PartitionProducer.PartitionState partition(byte[] key, List<PartitionProducer.PartitionState> partitions) {
+			while (true) {
+				Current c = current.get();
+				// Move on once a batch has been taken from the current partition, or
+				// if the partitions have changed
+				if (c != null && c.state.getBatchesTaken() == c.batches
+						&& c.index < partitions.size() && partitions.get(c.index) == c.state) {
+					return c.state;
+				}
+				int index = c == null ? 0 : (c.index + 1) % partitions.size();
+				Current next = new Current(index, partitions.get(index));
+				if (current.compareAndSet(c, next)) {
+					return next.state;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package kafka.async.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import kafka.async.client.Message.ByteBufferBackedMessageOutputStream;
+import kafka.async.client.Message.MessageStream;
+
+/**
+ * The payloads that can be queued by a {@link PartitionProducer} and encoded
+ * into a message set: a byte[] or ByteBuffer holding the contents of a single
+ * message, or an {@link EncodedMessageSet} that is copied unchanged. Payloads
+ * are kept as plain objects, so that queueing a message does not allocate a
+ * wrapper for it; every use of a payload goes through these methods rather
+ * than checking its type itself.
+ * @author tbrown
+ */
+final class Payloads {
+
+	private Payloads() {
+	}
+
+	/**
+	 * Returns true if the payload is already encoded (and possibly compressed),
+	 * so it is copied into a message set as-is and never compressed again.
+	 */
+	static boolean isEncoded(Object payload) {
+		return payload instanceof EncodedMessageSet;
+	}
+
+	/**
+	 * The size of the payload once encoded in a message set, uncompressed
+	 */
+	static int encodedSize(Object payload) {
+		if (payload instanceof EncodedMessageSet) {
+			return ((EncodedMessageSet)payload).size();
+		}
+		return MessageStream.FULL_HEADER_SIZE + contentSize(payload);
+	}
+
+	/**
+	 * The number of content bytes of a message payload. A ByteBuffer's remaining
+	 * bytes are its contents.
+	 * @throws IllegalArgumentException If the payload is not a byte[] or ByteBuffer
+	 */
+	static int contentSize(Object payload) {
+		if (payload instanceof byte[]) {
+			return ((byte[])payload).length;
+		}
+		if (payload instanceof ByteBuffer) {
+			return ((ByteBuffer)payload).remaining();
+		}
+		throw unsupported(payload);
+	}
+
+	/**
+	 * Writes a payload into a message set at the wrapper's position: an encoded
+	 * message set is copied, and a message payload is encoded as a message with
+	 * the given compression attribute.
+	 */
+	static void writeTo(ByteBufferBackedMessageOutputStream wrapper, ByteBuffer buffer, int compression, Object payload) {
+		if (payload instanceof EncodedMessageSet) {
+			((EncodedMessageSet)payload).writeTo(buffer);
+			return;
+		}
+		wrapper.startMessage(compression);
+		if (payload instanceof ByteBuffer) {
+			wrapper.write((ByteBuffer)payload);
+		} else if (payload instanceof byte[]) {
+			wrapper.write((byte[])payload);
+		} else {
+			throw unsupported(payload);
+		}
+		wrapper.finishMessage();
+	}
+
+	/**
+	 * Writes a message payload as an uncompressed message of a stream (such as
+	 * the contents of a compressed wrapper message).
+	 */
+	static void writeMessage(MessageStream out, Object payload) throws IOException {
+		if (payload instanceof ByteBuffer) {
+			out.writeMessage(Message.COMPRESSION_NONE, (ByteBuffer)payload);
+		} else if (payload instanceof byte[]) {
+			out.writeMessage(Message.COMPRESSION_NONE, (byte[])payload);
+		} else {
+			throw unsupported(payload);
+		}
+	}
+
+	private static IllegalArgumentException unsupported(Object payload) {
+		return new IllegalArgumentException("Unsupported message payload: "+(payload == null ? "null" : payload.getClass().getName()));
+	}
+}
@@ -0,0 +1,152 @@
+package kafka.async.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kafka.async.KafkaPartitionIdentity;
+
+/**
+ * Tracks the sequence numbers of a partition's sequenced messages. Sequences
+ * are assigned in increasing order, starting at 0. The watermark
+ * is the highest sequence up to which every message has been resolved
+ * (acknowledged or failed).<p>
+ *
+ * Batches normally complete in order, in which case completing one only
+ * advances the watermark. Batches that complete early (e.g. because an
+ * earlier batch is being retried) are held until the gap before them has
+ * been filled.<p>
+ *
+ * The most recent {@link #MAX_FAILED_RANGES} failed ranges are remembered so
+ * that {@link #waitFor(long, long, TimeUnit)} can report them. Older failures
+ * are only reported to listeners.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+final class SequenceWatermark {
+
+	static final int MAX_FAILED_RANGES = 1024;
+
+	private final KafkaPartitionIdentity partition;
+	private final List<AcknowledgmentListener> listeners;
+
+	private final AtomicLong nextSequence = new AtomicLong();
+	private volatile long watermark = -1;
+	// Resolved ranges beyond the watermark, first sequence to last
+	private final TreeMap<Long,Long> early = new TreeMap<Long,Long>();
+	// Failed ranges, oldest first: first sequence, last sequence and reason
+	private final ArrayList<long[]> failedRanges = new ArrayList<long[]>();
+	private final ArrayList<Exception> failures = new ArrayList<Exception>();
+	private int waiters = 0;
+
+	/**
+	 * @param partition
+	 * @param listeners Called when the watermark advances. The list may be
+	 * modified concurrently (e.g. a CopyOnWriteArrayList).
+	 */
+	SequenceWatermark(KafkaPartitionIdentity partition, List<AcknowledgmentListener> listeners) {
+		this.partition = partition;
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Assigns the next sequence.
+	 */
+	long next() {
+		return nextSequence.getAndIncrement();
+	}
+
+	long get() {
+		return watermark;
+	}
+
+	/**
+	 * Records that the messages between the sequences (inclusive) were
+	 * acknowledged.
+	 */
+	void acknowledged(long first, long last) {
+		resolved(first, last);
+	}
+
+	/**
+	 * Records that the messages between the sequences (inclusive) failed.
+	 */
+	synchronized void failed(long first, long last, Exception reason) {
+		failedRanges.add(new long[] { first, last });
+		failures.add(reason);
+		if (failedRanges.size() > MAX_FAILED_RANGES) {
+			failedRanges.remove(0);
+			failures.remove(0);
+		}
+		for (AcknowledgmentListener listener : listeners) {
+			listener.failed(partition, first, last, reason);
+		}
+		resolved(first, last);
+	}
+
+	/**
+	 * Listeners are called while holding the lock, so that they see the
+	 * watermark advance in order.
+	 */
+	private synchronized void resolved(long first, long last) {
+		if (first != watermark + 1) {
+			early.put(first, last);
+			return;
+		}
+		long advanced = last;
+		while (!early.isEmpty() && early.firstKey() == advanced + 1) {
+			advanced = early.pollFirstEntry().getValue();
+		}
+		watermark = advanced;
+		if (waiters > 0) {
+			notifyAll();
+		}
+		for (AcknowledgmentListener listener : listeners) {
+			listener.acknowledged(partition, advanced);
+		}
+	}
+
+	/**
+	 * Waits until the watermark reaches the sequence.
+	 * @throws ExecutionException If the message with the sequence failed
+	 */
+	synchronized void waitFor(long sequence, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException, ExecutionException {
+		if (watermark < sequence) {
+			long endTime = System.nanoTime() + unit.toNanos(timeout);
+			waiters++;
+			try {
+				while (watermark < sequence) {
+					long waitTime = endTime - System.nanoTime();
+					if (waitTime <= 0) {
+						throw new TimeoutException("Sequence "+sequence+" of "+partition+" has not been acknowledged");
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, waitTime);
+				}
+			} finally {
+				waiters--;
+			}
+		}
+		for (int i=failedRanges.size()-1; i>=0; --i) {
+			long[] range = failedRanges.get(i);
+			if (sequence >= range[0] && sequence <= range[1]) {
+				throw new ExecutionException(failures.get(i));
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append(partition).append(" watermark=").append(watermark);
+		for (Map.Entry<Long,Long> range : early.entrySet()) {
+			result.append(" [").append(range.getKey()).append("-").append(range.getValue()).append("]");
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,511 @@
+package kafka.async.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A pure-java implementation of the snappy compression format.<p>
+ *
+ * Kafka 0.7 brokers and consumers compress message sets with snappy-java's
+ * SnappyOutputStream, which writes a 16 byte header (a magic number followed by
+ * two version numbers) and then a sequence of blocks, each of which is a
+ * big-endian int32 length followed by that many bytes of raw snappy data.
+ * {@link SnappyOutputStream} produces exactly that format, and
+ * {@link #uncompressStream(ByteBuffer)} reads it (as well as a single raw snappy
+ * block without a header, which snappy-java also accepts).<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public final class Snappy {
+
+	static final byte[] STREAM_MAGIC = new byte[] { (byte)0x82, 'S', 'N', 'A', 'P', 'P', 'Y', 0 };
+	static final int STREAM_VERSION = 1;
+	static final int STREAM_COMPATIBLE_VERSION = 1;
+	static final int STREAM_HEADER_SIZE = STREAM_MAGIC.length + 8;
+	static final int STREAM_BLOCK_SIZE = 32 * 1024;
+
+	// Copies are limited to offsets within a 64KiB block
+	private static final int MAX_BLOCK_SIZE = 1 << 16;
+	private static final int HASH_TABLE_BITS = 14;
+	private static final int INPUT_MARGIN = 15;
+
+	private static final int LITERAL = 0;
+	private static final int COPY_1_BYTE_OFFSET = 1;
+	private static final int COPY_2_BYTE_OFFSET = 2;
+	private static final int COPY_4_BYTE_OFFSET = 3;
+
+	private Snappy() {
+	}
+
+	/**
+	 * The largest number of bytes that compressing the given number of bytes can
+	 * produce.
+	 * @param length
+	 */
+	public static int maxCompressedLength(int length) {
+		return 32 + length + length / 6;
+	}
+
+	/**
+	 * Compresses input[inputOffset, inputOffset+length) into output as a single
+	 * raw snappy block.
+	 * @param input
+	 * @param inputOffset
+	 * @param length
+	 * @param output Must have at least {@link #maxCompressedLength(int)} bytes
+	 * available after outputOffset
+	 * @param outputOffset
+	 * @return The number of bytes written to output
+	 */
+	public static int compress(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+		return compress(input, inputOffset, length, output, outputOffset, newHashTable());
+	}
+
+	static int[] newHashTable() {
+		return new int[1 << HASH_TABLE_BITS];
+	}
+
+	/**
+	 * Compresses using a hash table from {@link #newHashTable()}, so that the
+	 * table can be reused between calls.
+	 */
+	static int compress(byte[] input, int inputOffset, int length, byte[] output, int outputOffset, int[] table) {
+		int op = writeVarInt(output, outputOffset, length);
+
+		int end = inputOffset + length;
+		for (int blockStart = inputOffset; blockStart < end; blockStart += MAX_BLOCK_SIZE) {
+			int blockEnd = Math.min(end, blockStart + MAX_BLOCK_SIZE);
+			op = compressBlock(input, blockStart, blockEnd, output, op, table);
+		}
+		return op - outputOffset;
+	}
+
+	private static int compressBlock(byte[] input, int start, int end, byte[] output, int op, int[] table) {
+		int nextEmit = start;
+		if (end - start >= INPUT_MARGIN) {
+			Arrays.fill(table, start);
+			int ip = start + 1;
+			int ipLimit = end - 4;
+			while (ip <= ipLimit) {
+				int value = readInt(input, ip);
+				int hash = hash(value);
+				int candidate = table[hash];
+				table[hash] = ip;
+
+				if (candidate >= ip || readInt(input, candidate) != value) {
+					// Skip ahead faster the longer no match has been found, so that
+					// incompressible data is not searched byte by byte
+					ip += 1 + ((ip - nextEmit) >>> 5);
+					continue;
+				}
+
+				op = emitLiteral(input, nextEmit, ip - nextEmit, output, op);
+
+				int matchLength = 4;
+				while (ip + matchLength < end && input[candidate + matchLength] == input[ip + matchLength]) {
+					++matchLength;
+				}
+				op = emitCopy(ip - candidate, matchLength, output, op);
+				ip += matchLength;
+				nextEmit = ip;
+
+				if (ip <= ipLimit) {
+					table[hash(readInt(input, ip - 1))] = ip - 1;
+				}
+			}
+		}
+		if (nextEmit < end) {
+			op = emitLiteral(input, nextEmit, end - nextEmit, output, op);
+		}
+		return op;
+	}
+
+	private static int emitLiteral(byte[] input, int offset, int length, byte[] output, int op) {
+		if (length == 0) {
+			return op;
+		}
+		int n = length - 1;
+		if (n < 60) {
+			output[op++] = (byte)(LITERAL | (n << 2));
+		} else if (n < (1 << 8)) {
+			output[op++] = (byte)(LITERAL | (60 << 2));
+			output[op++] = (byte)n;
+		} else if (n < (1 << 16)) {
+			output[op++] = (byte)(LITERAL | (61 << 2));
+			output[op++] = (byte)n;
+			output[op++] = (byte)(n >>> 8);
+		} else if (n < (1 << 24)) {
+			output[op++] = (byte)(LITERAL | (62 << 2));
+			output[op++] = (byte)n;
+			output[op++] = (byte)(n >>> 8);
+			output[op++] = (byte)(n >>> 16);
+		} else {
+			output[op++] = (byte)(LITERAL | (63 << 2));
+			output[op++] = (byte)n;
+			output[op++] = (byte)(n >>> 8);
+			output[op++] = (byte)(n >>> 16);
+			output[op++] = (byte)(n >>> 24);
+		}
+		System.arraycopy(input, offset, output, op, length);
+		return op + length;
+	}
+
+	private static int emitCopy(int offset, int length, byte[] output, int op) {
+		// Copies of up to 64 bytes fit into a single element. Leave at least 4
+		// bytes for the final element, since a copy must be at least 4 bytes long.
+		while (length >= 68) {
+			op = emitCopyElement(offset, 64, output, op);
+			length -= 64;
+		}
+		if (length > 64) {
+			op = emitCopyElement(offset, 60, output, op);
+			length -= 60;
+		}
+		return emitCopyElement(offset, length, output, op);
+	}
+
+	private static int emitCopyElement(int offset, int length, byte[] output, int op) {
+		if (length < 12 && offset < 2048) {
+			output[op++] = (byte)(COPY_1_BYTE_OFFSET | ((length - 4) << 2) | ((offset >>> 8) << 5));
+			output[op++] = (byte)offset;
+		} else {
+			output[op++] = (byte)(COPY_2_BYTE_OFFSET | ((length - 1) << 2));
+			output[op++] = (byte)offset;
+			output[op++] = (byte)(offset >>> 8);
+		}
+		return op;
+	}
+
+	/**
+	 * Reads the uncompressed length stored at the start of a raw snappy block.
+	 * @param input
+	 * @param offset
+	 * @param length
+	 */
+	public static int uncompressedLength(byte[] input, int offset, int length) {
+		int result = 0;
+		int end = offset + length;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (offset >= end) {
+				break;
+			}
+			int b = input[offset++] & 0xFF;
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (result < 0) {
+					break;
+				}
+				return result;
+			}
+		}
+		throw new IllegalArgumentException("Corrupt snappy data: invalid uncompressed length");
+	}
+
+	/**
+	 * Uncompresses a single raw snappy block.
+	 * @param input
+	 * @param inputOffset
+	 * @param length
+	 * @param output Must have at least {@link #uncompressedLength(byte[], int, int)}
+	 * bytes available after outputOffset
+	 * @param outputOffset
+	 * @return The number of bytes written to output
+	 */
+	public static int uncompress(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+		int expected = uncompressedLength(input, inputOffset, length);
+		int ip = inputOffset + varIntSize(expected);
+		int end = inputOffset + length;
+		int op = outputOffset;
+		int outputEnd = outputOffset + expected;
+		if (outputEnd > output.length) {
+			throw new IllegalArgumentException("Output buffer is too small: "+expected+" bytes are needed");
+		}
+
+		while (ip < end) {
+			int tag = input[ip++] & 0xFF;
+			int elementLength;
+			int offset;
+			switch (tag & 3) {
+			case LITERAL:
+				elementLength = tag >>> 2;
+				if (elementLength >= 60) {
+					int bytes = elementLength - 59;
+					if (ip + bytes > end) {
+						throw new IllegalArgumentException("Corrupt snappy data: truncated literal");
+					}
+					elementLength = 0;
+					for (int i=0; i<bytes; ++i) {
+						elementLength |= (input[ip++] & 0xFF) << (8*i);
+					}
+				}
+				elementLength += 1;
+				if (elementLength <= 0 || ip + elementLength > end || op + elementLength > outputEnd) {
+					throw new IllegalArgumentException("Corrupt snappy data: literal out of bounds");
+				}
+				System.arraycopy(input, ip, output, op, elementLength);
+				ip += elementLength;
+				op += elementLength;
+				continue;
+			case COPY_1_BYTE_OFFSET:
+				if (ip + 1 > end) {
+					throw new IllegalArgumentException("Corrupt snappy data: truncated copy");
+				}
+				elementLength = ((tag >>> 2) & 7) + 4;
+				offset = ((tag >>> 5) << 8) | (input[ip++] & 0xFF);
+				break;
+			case COPY_2_BYTE_OFFSET:
+				if (ip + 2 > end) {
+					throw new IllegalArgumentException("Corrupt snappy data: truncated copy");
+				}
+				elementLength = (tag >>> 2) + 1;
+				offset = (input[ip] & 0xFF) | ((input[ip+1] & 0xFF) << 8);
+				ip += 2;
+				break;
+			default:
+				if (ip + 4 > end) {
+					throw new IllegalArgumentException("Corrupt snappy data: truncated copy");
+				}
+				elementLength = (tag >>> 2) + 1;
+				offset = (input[ip] & 0xFF) | ((input[ip+1] & 0xFF) << 8) | ((input[ip+2] & 0xFF) << 16) | ((input[ip+3] & 0xFF) << 24);
+				ip += 4;
+				break;
+			}
+
+			if (offset <= 0 || offset > op - outputOffset || op + elementLength > outputEnd) {
+				throw new IllegalArgumentException("Corrupt snappy data: copy out of bounds");
+			}
+			// The source and destination may overlap, in which case the copy
+			// repeats the bytes that it has just written
+			int from = op - offset;
+			if (offset >= elementLength) {
+				System.arraycopy(output, from, output, op, elementLength);
+				op += elementLength;
+			} else {
+				for (int i=0; i<elementLength; ++i) {
+					output[op++] = output[from++];
+				}
+			}
+		}
+
+		if (op != outputEnd) {
+			throw new IllegalArgumentException("Corrupt snappy data: expected "+expected+" bytes but found "+(op - outputOffset));
+		}
+		return expected;
+	}
+
+	/**
+	 * Uncompresses the remaining bytes of a buffer written by snappy-java's
+	 * SnappyOutputStream (or by {@link SnappyOutputStream}). A buffer that does
+	 * not start with the stream header is treated as a single raw snappy block.
+	 * The position of the buffer is not changed.
+	 * @param compressed
+	 * @return A buffer containing the uncompressed bytes
+	 */
+	public static ByteBuffer uncompressStream(ByteBuffer compressed) {
+		byte[] input;
+		int start;
+		int end;
+		if (compressed.hasArray()) {
+			input = compressed.array();
+			start = compressed.arrayOffset() + compressed.position();
+			end = compressed.arrayOffset() + compressed.limit();
+		} else {
+			input = new byte[compressed.remaining()];
+			compressed.duplicate().get(input);
+			start = 0;
+			end = input.length;
+		}
+
+		if (!hasStreamHeader(input, start, end)) {
+			byte[] output = new byte[uncompressedLength(input, start, end - start)];
+			uncompress(input, start, end - start, output, 0);
+			return ByteBuffer.wrap(output);
+		}
+
+		// Size the output buffer from the block headers, then fill it
+		int total = 0;
+		int position = start + STREAM_HEADER_SIZE;
+		while (position < end) {
+			int blockLength = readBlockLength(input, position, end);
+			total += uncompressedLength(input, position + 4, blockLength);
+			position += 4 + blockLength;
+		}
+
+		byte[] output = new byte[total];
+		int op = 0;
+		position = start + STREAM_HEADER_SIZE;
+		while (position < end) {
+			int blockLength = readBlockLength(input, position, end);
+			op += uncompress(input, position + 4, blockLength, output, op);
+			position += 4 + blockLength;
+		}
+		return ByteBuffer.wrap(output);
+	}
+
+	private static boolean hasStreamHeader(byte[] input, int start, int end) {
+		if (end - start < STREAM_HEADER_SIZE) {
+			return false;
+		}
+		for (int i=0; i<STREAM_MAGIC.length; ++i) {
+			if (input[start+i] != STREAM_MAGIC[i]) {
+				return false;
+			}
+		}
+		int compatibleVersion = readBigEndianInt(input, start + STREAM_MAGIC.length + 4);
+		if (compatibleVersion > STREAM_VERSION) {
+			throw new IllegalArgumentException("Unsupported snappy stream version: "+compatibleVersion);
+		}
+		return true;
+	}
+
+	private static int readBlockLength(byte[] input, int position, int end) {
+		if (position + 4 > end) {
+			throw new IllegalArgumentException("Corrupt snappy stream: truncated block header");
+		}
+		int blockLength = readBigEndianInt(input, position);
+		if (blockLength < 0 || position + 4 + blockLength > end) {
+			throw new IllegalArgumentException("Corrupt snappy stream: truncated block");
+		}
+		return blockLength;
+	}
+
+	private static int readBigEndianInt(byte[] input, int position) {
+		return ((input[position] & 0xFF) << 24) | ((input[position+1] & 0xFF) << 16) | ((input[position+2] & 0xFF) << 8) | (input[position+3] & 0xFF);
+	}
+
+	private static int readInt(byte[] input, int position) {
+		return (input[position] & 0xFF) | ((input[position+1] & 0xFF) << 8) | ((input[position+2] & 0xFF) << 16) | ((input[position+3] & 0xFF) << 24);
+	}
+
+	private static int hash(int value) {
+		return (value * 0x1E35A7BD) >>> (32 - HASH_TABLE_BITS);
+	}
+
+	private static int writeVarInt(byte[] output, int op, int value) {
+		while ((value & ~0x7F) != 0) {
+			output[op++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output[op++] = (byte)value;
+		return op;
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			++size;
+			value >>>= 7;
+		}
+		return size;
+	}
+
+	/**
+	 * Compresses everything written to it into the stream format used by
+	 * snappy-java's SnappyOutputStream, which is what Kafka 0.7 expects inside a
+	 * snappy-compressed message. The header is written when the stream is
+	 * created, and a block is written each time 32KiB have been buffered (and
+	 * when the stream is flushed or closed).<p>
+	 *
+	 * This class is NOT thread-safe.
+	 */
+	public static class SnappyOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final byte[] buffer;
+		private final byte[] compressed;
+		private final int[] table;
+		private int count = 0;
+		private boolean closed = false;
+		long bytesIn = 0;
+		long bytesOut = 0;
+
+		public SnappyOutputStream(OutputStream out) throws IOException {
+			this(out, new byte[STREAM_BLOCK_SIZE], new byte[compressedBlockSize()], newHashTable());
+		}
+
+		/**
+		 * Creates a stream that uses the provided buffers, so that they can be
+		 * reused. The buffer must be STREAM_BLOCK_SIZE bytes, the compressed buffer
+		 * {@link #compressedBlockSize()} bytes and the table from
+		 * {@link Snappy#newHashTable()}.
+		 */
+		SnappyOutputStream(OutputStream out, byte[] buffer, byte[] compressed, int[] table) throws IOException {
+			this.out = out;
+			this.buffer = buffer;
+			this.compressed = compressed;
+			this.table = table;
+			byte[] header = new byte[STREAM_HEADER_SIZE];
+			System.arraycopy(STREAM_MAGIC, 0, header, 0, STREAM_MAGIC.length);
+			writeBigEndianInt(header, STREAM_MAGIC.length, STREAM_VERSION);
+			writeBigEndianInt(header, STREAM_MAGIC.length + 4, STREAM_COMPATIBLE_VERSION);
+			out.write(header);
+			bytesOut += header.length;
+		}
+
+		static int compressedBlockSize() {
+			return 4 + maxCompressedLength(STREAM_BLOCK_SIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				writeBlock();
+			}
+			buffer[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (count == buffer.length) {
+					writeBlock();
+				}
+				int n = Math.min(length, buffer.length - count);
+				System.arraycopy(bytes, offset, buffer, count, n);
+				count += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writeBlock();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				writeBlock();
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			int length = compress(buffer, 0, count, compressed, 4, table);
+			writeBigEndianInt(compressed, 0, length);
+			out.write(compressed, 0, 4 + length);
+			bytesIn += count;
+			bytesOut += 4 + length;
+			count = 0;
+		}
+
+		private static void writeBigEndianInt(byte[] output, int position, int value) {
+			output[position] = (byte)(value >>> 24);
+			output[position+1] = (byte)(value >>> 16);
+			output[position+2] = (byte)(value >>> 8);
+			output[position+3] = (byte)value;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package kafka.async.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The snappy codec (see {@link Snappy}). The block buffers and hash table used
+ * while compressing are kept for each thread, rather than being allocated for
+ * every message.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+public class SnappyCodec implements CompressionCodec {
+
+	private static final class Resources {
+		final byte[] buffer = new byte[Snappy.STREAM_BLOCK_SIZE];
+		final byte[] compressed = new byte[Snappy.SnappyOutputStream.compressedBlockSize()];
+		final int[] table = Snappy.newHashTable();
+		int generation = 0;
+	}
+
+	private final CompressionStats stats = new CompressionStats();
+	private final ThreadLocal<Resources> resources = new ThreadLocal<Resources>() {
+		@Override
+		protected Resources initialValue() {
+			return new Resources();
+		}
+	};
+
+	@Override
+	public int id() {
+		return Message.COMPRESSION_SNAPPY;
+	}
+
+	@Override
+	public String name() {
+		return "snappy";
+	}
+
+	@Override
+	public CompressionStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public OutputStream compressingStream(OutputStream out) throws IOException {
+		final Resources r = resources.get();
+		final int generation = ++r.generation;
+		final long startTime = CompressionStats.threadTime();
+		return new Snappy.SnappyOutputStream(out, r.buffer, r.compressed, r.table) {
+			private boolean closed = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				checkOpen();
+				super.write(b);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException {
+				checkOpen();
+				super.write(bytes, offset, length);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				checkOpen();
+				super.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				checkOpen();
+				closed = true;
+				super.close();
+				stats.recordCompression(bytesIn, bytesOut, startTime);
+			}
+
+			private void checkOpen() {
+				if (closed) {
+					throw new IllegalStateException("Stream is closed");
+				}
+				if (generation != r.generation) {
+					throw new IllegalStateException("Another snappy stream was opened on this thread");
+				}
+			}
+		};
+	}
+
+	@Override
+	public ByteBuffer uncompress(ByteBuffer compressed) {
+		long startTime = CompressionStats.threadTime();
+		ByteBuffer result = Snappy.uncompressStream(compressed);
+		stats.recordUncompression(compressed.remaining(), result.remaining(), startTime);
+		return result;
+	}
+}
@@ -0,0 +1,47 @@
+package kafka.async.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A codec that can uncompress incrementally, so that the messages nested in a
+ * compressed message can be read as soon as they have been uncompressed,
+ * rather than after the whole message set has been.
+ * @author tbrown
+ */
+public interface StreamingCompressionCodec extends CompressionCodec {
+
+	/**
+	 * Uncompresses a single compressed message set in pieces. A decompressor is
+	 * not thread-safe, but may be used by different threads one after the other.
+	 */
+	public interface Decompressor {
+
+		/**
+		 * The uncompressed size the compressed data claims to have, or 0 if it is
+		 * not known. This is only a hint for sizing the output.
+		 */
+		public int expectedSize();
+
+		/**
+		 * Uncompresses up to <i>length</i> more bytes into the array.
+		 * @return The number of bytes uncompressed (at least 1), or -1 if all of
+		 * the data has been uncompressed
+		 * @throws RuntimeException If the compressed data is corrupt
+		 */
+		public int uncompress(byte[] output, int offset, int length);
+
+		/**
+		 * Releases any pooled resources. Called automatically once all of the
+		 * data has been uncompressed, or when uncompressing fails.
+		 */
+		public void close();
+	}
+
+	/**
+	 * Returns a decompressor for the remaining bytes of the buffer. The buffer's
+	 * contents must not change until the decompressor has finished, but its
+	 * position is not used.
+	 * @param compressed
+	 */
+	public Decompressor decompressor(ByteBuffer compressed);
+}
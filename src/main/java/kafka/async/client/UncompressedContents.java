@@ -0,0 +1,98 @@
+package kafka.async.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The uncompressed contents of a compressed message, cached by the message set
+ * that contains it so that the message is only uncompressed once however many
+ * times the set is iterated. With a {@link StreamingCompressionCodec}, the
+ * contents are uncompressed incrementally, only as far as they have been read.<p>
+ *
+ * The bytes that have been uncompressed never change, so the buffers returned
+ * remain valid when more is uncompressed. They must not be modified. If the
+ * message set is discarded before a message has been completely uncompressed,
+ * the codec's resources for it are freed by the garbage collector rather than
+ * being pooled.<p>
+ *
+ * This class is thread-safe.
+ * @author tbrown
+ */
+final class UncompressedContents {
+
+	/**
+	 * The most bytes uncompressed by each incremental step
+	 */
+	private static final int STEP_SIZE = 64 * 1024;
+
+	private final Message message;
+	private StreamingCompressionCodec.Decompressor decompressor;
+	private byte[] output;
+	// Set instead of output if the codec can't uncompress incrementally
+	private ByteBuffer uncompressed;
+	private int size = 0;
+	private boolean complete = false;
+	private RuntimeException failure;
+
+	UncompressedContents(Message message) {
+		this.message = message;
+	}
+
+	/**
+	 * Returns a buffer holding at least the first <i>end</i> bytes of the
+	 * contents, or all of them if there are fewer.
+	 */
+	synchronized ByteBuffer available(int end) {
+		if (failure != null) {
+			throw failure;
+		}
+		try {
+			while (size < end && !complete) {
+				uncompressStep();
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		}
+		if (uncompressed != null) {
+			return uncompressed.duplicate();
+		}
+		return ByteBuffer.wrap(output, 0, size).slice();
+	}
+
+	/**
+	 * Returns a buffer holding all of the contents.
+	 */
+	ByteBuffer all() {
+		return available(Integer.MAX_VALUE);
+	}
+
+	private void uncompressStep() {
+		if (decompressor == null) {
+			CompressionCodec codec = CompressionCodecs.forId(message.compression);
+			if (codec == null) {
+				throw new RuntimeException("Unknown compression codec: "+message.compression);
+			}
+			if (!(codec instanceof StreamingCompressionCodec)) {
+				uncompressed = codec.uncompress(message.contents).slice();
+				size = uncompressed.remaining();
+				complete = true;
+				return;
+			}
+			decompressor = ((StreamingCompressionCodec)codec).decompressor(message.contents);
+			int expected = decompressor.expectedSize();
+			// One spare byte lets the decompressor reach the end of the data
+			// without the output being grown
+			output = new byte[expected > 0 ? expected + 1 : STEP_SIZE];
+		}
+		if (size == output.length) {
+			output = Arrays.copyOf(output, output.length * 2);
+		}
+		int n = decompressor.uncompress(output, size, Math.min(STEP_SIZE, output.length - size));
+		if (n < 0) {
+			complete = true;
+		} else {
+			size += n;
+		}
+	}
+}
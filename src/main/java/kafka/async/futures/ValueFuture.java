@@ -18,9 +18,11 @@ public class ValueFuture<T> implements Future<T>, SelectableFuture<T>, SettableF
 	private T value = null;
 	private Exception error = null;
 	private Set<FutureSelector<T>> selectors = null;
+	private Runnable cancelHandler = null;
 	
 	@Override
 	public boolean cancel(boolean mayInterruptIfRunning) {
+		Runnable handler;
 		synchronized (lock) {
 			switch (state) {
 			case WAITING:
@@ -32,13 +34,40 @@ public class ValueFuture<T> implements Future<T>, SelectableFuture<T>, SettableF
 						s.futureReady(this);
 					}
 				}
-				
+				handler = cancelHandler;
+				cancelHandler = null;
+				break;
 			case CANCELLED:
 				return true;
 			default:
 				return false;
 			}
 		}
+		
+		// The handler is run outside of the lock, because it may need to acquire
+		// locks that are held while this future's execution is beginning.
+		if (handler != null) {
+			handler.run();
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets a handler that will be run (once) if this future is cancelled before
+	 * execution begins. If the future has already been cancelled, the handler is
+	 * run immediately. Replaces any previously set handler.
+	 * @param handler
+	 */
+	public void setCancelHandler(Runnable handler) {
+		synchronized (lock) {
+			if (state == State.WAITING) {
+				cancelHandler = handler;
+				return;
+			} else if (state != State.CANCELLED) {
+				return;
+			}
+		}
+		handler.run();
 	}
 	
 	@Override
@@ -69,6 +98,7 @@ public class ValueFuture<T> implements Future<T>, SelectableFuture<T>, SettableF
 		synchronized (lock) {
 			if (state == State.WAITING) {
 				state = State.EXECUTING;
+				cancelHandler = null;
 				return true;
 			} else {
 				return false;
@@ -84,6 +114,7 @@ public class ValueFuture<T> implements Future<T>, SelectableFuture<T>, SettableF
 			}
 			
 			state = State.COMPLETED;
+			cancelHandler = null;
 			error = e;
 			lock.notifyAll();
 			
@@ -103,6 +134,7 @@ public class ValueFuture<T> implements Future<T>, SelectableFuture<T>, SettableF
 			}
 			
 			state = State.COMPLETED;
+			cancelHandler = null;
 			value = newValue;
 			lock.notifyAll();
 
@@ -0,0 +1,246 @@
+package kafka.async.ops;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.async.KafkaAsyncProcessor;
+import kafka.async.KafkaBrokerIdentity;
+import kafka.async.KafkaOperation;
+import kafka.async.KafkaPartitionIdentity;
+import kafka.async.futures.SelectableFuture;
+import kafka.async.futures.ValueFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up the offsets of many partitions at once. The partitions are grouped
+ * by broker, and the offsets requests for each broker are written together and
+ * their responses read in order on a single connection, rather than being
+ * executed as separate operations. A single future completes when every
+ * partition has been looked up.<p>
+ *
+ * Usage:
+ * <pre>
+ * BatchOffsetsRequest batch = new BatchOffsetsRequest(partitions, -1, 1);
+ * for (KafkaOperation op : batch.getOperations()) {
+ *     client.execute(op);
+ * }
+ * long[][] offsets = batch.getResult().get();
+ * </pre>
+ * @author tbrown
+ */
+public class BatchOffsetsRequest {
+
+	static Logger logger = LoggerFactory.getLogger(BatchOffsetsRequest.class);
+
+	/**
+	 * The largest number of partitions looked up by a single operation, which
+	 * keeps each operation well within the default request buffer size.
+	 */
+	public static final int MAX_PARTITIONS_PER_OPERATION = 1000;
+
+	private final List<KafkaPartitionIdentity> partitions;
+	private final long time;
+	private final int maxOffsets;
+	private final long[][] results;
+	private final ValueFuture<long[][]> future = new ValueFuture<long[][]>();
+	private final List<KafkaOperation> operations = new ArrayList<KafkaOperation>();
+	private final AtomicInteger remaining;
+	private final List<Runnable> dequeues = new ArrayList<Runnable>();
+	private final Runnable cancel = new Runnable() {
+		@Override
+		public void run() {
+			List<Runnable> copy;
+			synchronized (dequeues) {
+				copy = new ArrayList<Runnable>(dequeues);
+			}
+			for (Runnable dequeue : copy) {
+				dequeue.run();
+			}
+		}
+	};
+
+	/**
+	 * @param partitions The partitions to look up. May be on any number of brokers.
+	 * @param time The time to look up (-2=earliest, -1=most recent)
+	 * @param maxOffsets The maximum number of offsets to return for each partition
+	 */
+	public BatchOffsetsRequest(List<KafkaPartitionIdentity> partitions, long time, int maxOffsets) {
+		this.partitions = new ArrayList<KafkaPartitionIdentity>(partitions);
+		this.time = time;
+		this.maxOffsets = maxOffsets;
+		this.results = new long[partitions.size()][];
+
+		Map<KafkaBrokerIdentity,List<Integer>> byBroker = new LinkedHashMap<KafkaBrokerIdentity,List<Integer>>();
+		for (int i=0; i<this.partitions.size(); ++i) {
+			KafkaBrokerIdentity broker = this.partitions.get(i).broker;
+			List<Integer> indexes = byBroker.get(broker);
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>();
+				byBroker.put(broker, indexes);
+			}
+			indexes.add(i);
+		}
+		for (Map.Entry<KafkaBrokerIdentity,List<Integer>> entry : byBroker.entrySet()) {
+			List<Integer> indexes = entry.getValue();
+			for (int start=0; start<indexes.size(); start+=MAX_PARTITIONS_PER_OPERATION) {
+				List<Integer> chunk = indexes.subList(start, Math.min(indexes.size(), start+MAX_PARTITIONS_PER_OPERATION));
+				int[] chunkIndexes = new int[chunk.size()];
+				for (int i=0; i<chunkIndexes.length; ++i) {
+					chunkIndexes[i] = chunk.get(i);
+				}
+				operations.add(new BrokerOffsets(entry.getKey(), chunkIndexes));
+			}
+		}
+
+		this.remaining = new AtomicInteger(operations.size());
+		if (operations.isEmpty()) {
+			future.beginExecution();
+			future.completeWithValue(results);
+		}
+	}
+
+	/**
+	 * The operations that must be executed to complete the batch (one per broker,
+	 * unless a broker has more than {@link #MAX_PARTITIONS_PER_OPERATION}
+	 * partitions).
+	 */
+	public List<KafkaOperation> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Returns a future whose value holds the offsets of each partition, in the
+	 * order the partitions were given. The offsets of a partition for which the
+	 * broker reported an error are null. If the connection to any broker fails,
+	 * the whole batch fails.
+	 */
+	public SelectableFuture<long[][]> getResult() {
+		return future;
+	}
+
+	/**
+	 * The offsets requests for a group of partitions on one broker.
+	 */
+	private final class BrokerOffsets implements KafkaOperation {
+		private final KafkaBrokerIdentity broker;
+		private final int[] indexes;
+		private int nextResponse = 0;
+
+		BrokerOffsets(KafkaBrokerIdentity broker, int[] indexes) {
+			this.broker = broker;
+			this.indexes = indexes;
+		}
+
+		@Override
+		public String operationId() {
+			return "K_OFFSETS_BATCH";
+		}
+
+		@Override
+		public KafkaBrokerIdentity getTargetBroker() {
+			return broker;
+		}
+
+		@Override
+		public void enqueued(Runnable dequeue) {
+			synchronized (dequeues) {
+				dequeues.add(dequeue);
+			}
+			future.setCancelHandler(cancel);
+		}
+
+		@Override
+		public boolean start() {
+			// Only the first operation of the batch begins execution of the future
+			future.beginExecution();
+			return !future.isDone();
+		}
+
+		@Override
+		public boolean canRead() {
+			return true;
+		}
+
+		@Override
+		public void executeWrite(ByteBuffer buffer) {
+			for (int index : indexes) {
+				OffsetsRequest.writeRequest(buffer, partitions.get(index), time, maxOffsets);
+			}
+		}
+
+		@Override
+		public void writeComplete() {
+		}
+
+		@Override
+		public boolean executeRead(ByteBuffer buffer) {
+			while (true) {
+				if (buffer.position() < KafkaAsyncProcessor.SIZEOF_INT32) {
+					return false;
+				}
+				int size = buffer.getInt(0) + KafkaAsyncProcessor.SIZEOF_INT32;
+				if (buffer.position() < size) {
+					return false;
+				}
+
+				buffer.flip();
+				buffer.getInt();
+				int errorCode = buffer.getShort();
+				int index = indexes[nextResponse++];
+				if (errorCode == 0) {
+					results[index] = OffsetsRequest.readOffsets(buffer);
+				} else if (logger.isDebugEnabled()) {
+					logger.debug("Kafka reported error code "+errorCode+" for offsets of "+partitions.get(index));
+				}
+				buffer.position(size);
+
+				if (nextResponse == indexes.length) {
+					// The connection compacts the buffer after the last response
+					brokerComplete(null);
+					return true;
+				}
+				buffer.compact();
+			}
+		}
+
+		@Override
+		public void requestFailed(Exception reason) {
+			brokerComplete(reason);
+		}
+
+		@Override
+		public void responseFailed(Exception reason) {
+			brokerComplete(reason);
+		}
+
+		@Override
+		public void brokerFailed(Exception reason) {
+			brokerComplete(reason);
+		}
+	}
+
+	private void brokerComplete(Exception reason) {
+		if (reason != null) {
+			// Only the first failure completes the batch
+			if (remaining.getAndSet(-1) > 0) {
+				completeWithException(reason);
+			}
+		} else if (remaining.decrementAndGet() == 0) {
+			future.completeWithValue(results);
+		}
+	}
+	
+	private void completeWithException(Exception reason) {
+		try {
+			future.completeWithException(reason);
+		} catch (IllegalStateException e) {
+			// The batch was cancelled before any operation started
+		}
+	}
+}
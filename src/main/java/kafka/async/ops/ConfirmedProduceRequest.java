@@ -7,6 +7,7 @@ import java.util.concurrent.Future;
 import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaOperation;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.client.EncodedMessageSet;
 import kafka.async.client.Message;
 
 
@@ -20,8 +21,28 @@ public class ConfirmedProduceRequest implements KafkaOperation {
 	}
 	
 	public ConfirmedProduceRequest(KafkaPartitionIdentity partition, int compression, boolean compress, List<byte[]> messages) {
-		produceRequest = new ProduceRequest(partition, compression, compress, messages);
-		offsetsRequest = new OffsetsRequest(partition, -1, 1);
+		this(new ProduceRequest(partition, compression, compress, messages));
+	}
+	
+	/**
+	 * Creates a confirmed produce request for messages that have already been
+	 * encoded. See {@link ProduceRequest#ProduceRequest(KafkaPartitionIdentity, EncodedMessageSet)}.
+	 */
+	public ConfirmedProduceRequest(KafkaPartitionIdentity partition, EncodedMessageSet messages) {
+		this(new ProduceRequest(partition, messages));
+	}
+	
+	private ConfirmedProduceRequest(ProduceRequest produceRequest) {
+		this.produceRequest = produceRequest;
+		this.offsetsRequest = new OffsetsRequest(produceRequest.partition, -1, 1);
+	}
+	
+	/**
+	 * Creates a confirmed produce request whose messages are the remaining bytes
+	 * of each buffer. See {@link ProduceRequest#createFromBuffers}.
+	 */
+	public static ConfirmedProduceRequest createFromBuffers(KafkaPartitionIdentity partition, int compression, boolean compress, List<ByteBuffer> messages) {
+		return new ConfirmedProduceRequest(ProduceRequest.createFromBuffers(partition, compression, compress, messages));
 	}
 	
 	@Override
@@ -34,6 +55,11 @@ public class ConfirmedProduceRequest implements KafkaOperation {
 		return offsetsRequest.start();
 	}
 	
+	@Override
+	public void enqueued(Runnable dequeue) {
+		offsetsRequest.enqueued(dequeue);
+	}
+	
 	@Override
 	public boolean canRead() {
 		return true;
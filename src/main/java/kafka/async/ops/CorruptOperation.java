@@ -40,6 +40,10 @@ public class CorruptOperation implements KafkaOperation {
 		return true;
 	}
 	
+	@Override
+	public void enqueued(Runnable dequeue) {
+	}
+	
 	@Override
 	public void executeWrite(ByteBuffer buffer) {
 		int size = 0;
@@ -6,6 +6,7 @@ import kafka.async.KafkaAsyncProcessor;
 import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaOperation;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.client.ChecksumVerification;
 import kafka.async.client.MessageSet;
 import kafka.async.futures.ValueFuture;
 
@@ -20,13 +21,27 @@ public class FetchRequest implements KafkaOperation {
 	final KafkaPartitionIdentity partition;
 	final long offset;
 	final int maxSize;
+	final ChecksumVerification verification;
 
 	final ValueFuture<MessageSet> result;
 	
 	public FetchRequest(KafkaPartitionIdentity partition, long offset, int maxSize) {
+		this(partition, offset, maxSize, ChecksumVerification.NONE);
+	}
+	
+	/**
+	 * @param partition
+	 * @param offset
+	 * @param maxSize
+	 * @param verification How the checksums of the fetched messages are verified.
+	 * Verification happens on the thread that iterates the message set, not the
+	 * IO thread.
+	 */
+	public FetchRequest(KafkaPartitionIdentity partition, long offset, int maxSize, ChecksumVerification verification) {
 		this.partition = partition;
 		this.offset = offset;
 		this.maxSize = maxSize;
+		this.verification = verification;
 		
 		this.result = new ValueFuture<MessageSet>();
 	}
@@ -45,6 +60,11 @@ public class FetchRequest implements KafkaOperation {
 		return result.beginExecution();
 	}
 	
+	@Override
+	public void enqueued(Runnable dequeue) {
+		result.setCancelHandler(dequeue);
+	}
+	
 	@Override
 	public boolean canRead() {
 		return true;
@@ -82,6 +102,9 @@ public class FetchRequest implements KafkaOperation {
 		switch (errorCode) {
 			case 0: // NoError
 				MessageSet messages = MessageSet.createMessageSet(offset, 0, contents);
+				if (verification != ChecksumVerification.NONE) {
+					messages = messages.withVerification(verification);
+				}
 				result.completeWithValue(messages);
 				break;
 			case 1: // OffsetsOutOfRange
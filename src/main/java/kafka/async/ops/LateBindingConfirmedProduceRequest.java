@@ -8,8 +8,9 @@ import java.util.concurrent.Future;
 import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaOperation;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.client.Confirmations;
+import kafka.async.client.Message;
 import kafka.async.client.PartitionProducer;
-import kafka.async.futures.SettableFuture;
 
 public class LateBindingConfirmedProduceRequest implements KafkaOperation {
 
@@ -18,17 +19,48 @@ public class LateBindingConfirmedProduceRequest implements KafkaOperation {
 	private final OffsetsRequest offsetsRequest;
 	private final PartitionProducer.PartitionState state;
 	
-	private final List<SettableFuture<Boolean>> confirmations;
+	private List<Object> messages;
+	private Confirmations confirmations;
+	private final int attempt;
+	private boolean started = false;
+	private PartitionProducer.Confirmation mode;
+	private boolean confirming;
 	
 	public LateBindingConfirmedProduceRequest(KafkaPartitionIdentity partition, PartitionProducer.PartitionState state) {
 		synchronized (this) {
 			this.partition = partition;
 			this.state = state;
 			this.offsetsRequest = new OffsetsRequest(partition, -1, 1);
-			this.confirmations = new ArrayList<SettableFuture<Boolean>>(1048);
+			this.attempt = 0;
 		}
 	}
 	
+	/**
+	 * Creates a request for a batch that has already been taken from a partition
+	 * queue (e.g. a batch that is being retried after a connection failure). The
+	 * batch will not be combined with any other queued messages.
+	 * @param partition
+	 * @param state
+	 * @param messages
+	 * @param confirmations
+	 * @param attempt The number of times this batch has previously been attempted
+	 */
+	public LateBindingConfirmedProduceRequest(KafkaPartitionIdentity partition, PartitionProducer.PartitionState state, List<Object> messages, Confirmations confirmations, int attempt) {
+		synchronized (this) {
+			this.partition = partition;
+			this.state = state;
+			this.offsetsRequest = new OffsetsRequest(partition, -1, 1);
+			this.messages = messages;
+			this.confirmations = confirmations;
+			this.attempt = attempt;
+		}
+	}
+	
+	/**
+	 * Returns the offsets request that confirms this batch. If the batch is
+	 * confirmed by a later request (see {@link PartitionProducer.Confirmation}),
+	 * the future only completes if the batch fails.
+	 */
 	public Future<List<Long>> getConfirmation() {
 		return offsetsRequest.getResult();
 	}
@@ -46,14 +78,36 @@ public class LateBindingConfirmedProduceRequest implements KafkaOperation {
 	@Override
 	public boolean start() {
 		synchronized (this) {
-			if (produceRequest == null) {
-				List<byte[]> messages = new ArrayList<byte[]>(1048);
-				state.getMessages(messages,confirmations);
+			if (!started) {
+				started = true;
+				if (messages == null) {
+					messages = new ArrayList<Object>(1048);
+					confirmations = state.getMessages(messages);
+				}
+				mode = state.getConfirmation();
+				if (messages.isEmpty()) {
+					if (mode != PartitionProducer.Confirmation.NONE && state.hasUnconfirmedBatches() && state.confirmBatch()) {
+						// Earlier batches are waiting for a response that
+						// confirms them, so send just the offsets request.
+						confirming = true;
+						offsetsRequest.start();
+						state.requestStarted();
+						return true;
+					}
+					// The queue was drained elsewhere (e.g. rerouted to another
+					// partition) before this request could start.
+					state.requestStarted();
+					state.requestComplete();
+					return false;
+				}
 				
-				produceRequest = new ProduceRequest(partition, messages);
+				produceRequest = ProduceRequest.createFromPayloads(partition, Message.COMPRESSION_NONE, false, messages);
 				produceRequest.start();
 				
-				offsetsRequest.start();
+				confirming = mode != PartitionProducer.Confirmation.NONE && state.confirmBatch();
+				if (confirming) {
+					offsetsRequest.start();
+				}
 				state.requestStarted();
 				return true;
 			}
@@ -61,57 +115,99 @@ public class LateBindingConfirmedProduceRequest implements KafkaOperation {
 		return false;
 	}
 
+	@Override
+	public void enqueued(Runnable dequeue) {
+		// Messages are bound when the request starts, so there is nothing to cancel
+	}
+
 	@Override
 	public void executeWrite(ByteBuffer buffer) {
-		produceRequest.executeWrite(buffer);
-		offsetsRequest.executeWrite(buffer);
+		if (produceRequest != null) {
+			produceRequest.executeWrite(buffer);
+		}
+		if (confirming) {
+			offsetsRequest.executeWrite(buffer);
+		}
 	}
 
 	@Override
 	public void writeComplete() {
+		if (mode == PartitionProducer.Confirmation.NONE) {
+			confirmBatch();
+		}
 	}
 	
 	@Override
 	public boolean executeRead(ByteBuffer buffer) {
-		if (offsetsRequest.executeRead(buffer)) {
-			for (SettableFuture<Boolean> f : confirmations) {
-				f.completeWithValue(true);
+		if (confirming) {
+			if (offsetsRequest.executeRead(buffer)) {
+				confirmBatch();
+				return true;
 			}
-			state.requestComplete();
-			return true;
+			return false;
 		}
-		return false;
+		// Nothing is read for this batch. The broker handles the requests of a
+		// connection in order, so it has processed the batch once any of the
+		// next response has arrived.
+		if (buffer.position() == 0) {
+			return false;
+		}
+		buffer.flip();
+		confirmBatch();
+		return true;
 	}
 
 	@Override
 	public boolean canRead() {
-		return true;
+		return mode != PartitionProducer.Confirmation.NONE;
+	}
+	
+	private void confirmBatch() {
+		if (confirmations != null) {
+			confirmations.succeeded();
+		}
+		state.requestComplete();
 	}
 
 	@Override
 	public void responseFailed(Exception reason) {
-		for (SettableFuture<Boolean> f : confirmations) {
-			f.completeWithException(reason);
-		}
+		failBatch(reason);
 		offsetsRequest.responseFailed(reason);
 		state.responseFailed(reason);
 	}
 
 	@Override
 	public void requestFailed(Exception reason) {
-		for (SettableFuture<Boolean> f : confirmations) {
-			f.completeWithException(reason);
-		}
+		failBatch(reason);
 		offsetsRequest.requestFailed(reason);
 		state.requestFailed(reason);
 	}
 	
 	@Override
 	public void brokerFailed(Exception reason) {
-		for (SettableFuture<Boolean> f : confirmations) {
-			f.completeWithException(reason);
-		}
+		boolean retried = failBatch(reason);
 		offsetsRequest.brokerFailed(reason);
-		state.brokerFailed(reason);
+		if (retried) {
+			state.requestRetried();
+		} else {
+			state.brokerFailed(reason);
+		}
+	}
+	
+	/**
+	 * Hands the batch back to the partition state so that it can be retried. If
+	 * the partition state will not retry it, every message in the batch is failed.
+	 * @param reason
+	 * @return true if the batch will be retried
+	 */
+	private boolean failBatch(Exception reason) {
+		if (messages == null || messages.isEmpty()) {
+			return false;
+		}
+		if (state.retryBatch(messages, confirmations, attempt + 1, reason)) {
+			return true;
+		}
+		confirmations.failed(reason);
+		return false;
 	}
 }
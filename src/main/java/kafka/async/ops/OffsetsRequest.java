@@ -1,14 +1,18 @@
 package kafka.async.ops;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import kafka.async.KafkaAsyncProcessor;
 import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaOperation;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.futures.SelectableFuture;
 import kafka.async.futures.ValueFuture;
 
 import org.slf4j.Logger;
@@ -19,7 +23,7 @@ public class OffsetsRequest implements KafkaOperation {
 	private KafkaPartitionIdentity partition;
 	private final long time;
 	private final int maxOffsets;
-	private final ValueFuture<List<Long>> future;
+	private final ValueFuture<long[]> future;
 	
 	static Logger logger = LoggerFactory.getLogger(OffsetsRequest.class);
 
@@ -28,7 +32,7 @@ public class OffsetsRequest implements KafkaOperation {
 		this.time = time;
 		this.maxOffsets = maxOffsets;
 		
-		future = new ValueFuture<List<Long>>();
+		future = new ValueFuture<long[]>();
 	}
 	
 	@Override
@@ -41,6 +45,11 @@ public class OffsetsRequest implements KafkaOperation {
 		return future.beginExecution();
 	}
 	
+	@Override
+	public void enqueued(Runnable dequeue) {
+		future.setCancelHandler(dequeue);
+	}
+	
 	@Override
 	public boolean canRead() {
 		return true;
@@ -67,24 +76,35 @@ public class OffsetsRequest implements KafkaOperation {
 			throw new RuntimeException("Kafka reported error code "+errorCode);
 		}
 		
+		future.completeWithValue(readOffsets(buffer));
+		return true;
+	}
+	
+	/**
+	 * Reads the offset count and offsets of a response, starting after the error
+	 * code.
+	 */
+	static long[] readOffsets(ByteBuffer buffer) {
 		int numberOfOffsets = buffer.getInt();
 		if (logger.isTraceEnabled()) {
 			logger.trace("Response contains "+numberOfOffsets+" offset(s)");
 		}
-		Long[] offsets = new Long[numberOfOffsets];
+		long[] offsets = new long[numberOfOffsets];
 		for (int i=0; i<numberOfOffsets; ++i) {
 			offsets[i] = buffer.getLong();
 			if (logger.isTraceEnabled()) {
 				logger.trace("Response offset["+i+"] is "+offsets[i]);
 			}
 		}
-		
-		future.completeWithValue(Arrays.asList(offsets));
-		return true;
+		return offsets;
 	}
 	
 	@Override
 	public void executeWrite(ByteBuffer buffer) {
+		writeRequest(buffer, partition, time, maxOffsets);
+	}
+	
+	static void writeRequest(ByteBuffer buffer, KafkaPartitionIdentity partition, long time, int maxOffsets) {
 		int size = 0;
 		
 		short requestType = 4; // 4=OFFSETS
@@ -119,10 +139,55 @@ public class OffsetsRequest implements KafkaOperation {
 	public void writeComplete() {
 	}
 	
+	/**
+	 * Returns the offsets as a list. The offsets are boxed only when they are
+	 * read from the list. See {@link #getOffsets()}.
+	 */
 	public Future<List<Long>> getResult() {
+		return new Future<List<Long>>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return future.cancel(mayInterruptIfRunning);
+			}
+			@Override
+			public boolean isCancelled() {
+				return future.isCancelled();
+			}
+			@Override
+			public boolean isDone() {
+				return future.isDone();
+			}
+			@Override
+			public List<Long> get() throws InterruptedException, ExecutionException {
+				return asList(future.get());
+			}
+			@Override
+			public List<Long> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+				return asList(future.get(timeout, unit));
+			}
+		};
+	}
+	
+	/**
+	 * Returns the offsets as a primitive array, without boxing them.
+	 */
+	public SelectableFuture<long[]> getOffsets() {
 		return future;
 	}
 	
+	static List<Long> asList(final long[] offsets) {
+		return new AbstractList<Long>() {
+			@Override
+			public Long get(int index) {
+				return offsets[index];
+			}
+			@Override
+			public int size() {
+				return offsets.length;
+			}
+		};
+	}
+	
 	@Override
 	public void responseFailed(Exception reason) {
 		future.completeWithException(reason);
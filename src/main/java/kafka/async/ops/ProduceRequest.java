@@ -1,25 +1,24 @@
 package kafka.async.ops;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 import kafka.async.KafkaAsyncProcessor;
 import kafka.async.KafkaBrokerIdentity;
 import kafka.async.KafkaOperation;
 import kafka.async.KafkaPartitionIdentity;
+import kafka.async.client.EncodedMessageSet;
 import kafka.async.client.Message;
-import kafka.async.client.Message.MessageStream;
 import kafka.async.futures.SelectableFuture;
 import kafka.async.futures.ValueFuture;
 
 
 public class ProduceRequest implements KafkaOperation {
 	final KafkaPartitionIdentity partition;
-	final List<byte[]> messages;
+	final List<?> messages; // Each message is a byte[], ByteBuffer or EncodedMessageSet
 	final int compression;
 	final boolean compress;
+	final EncodedMessageSet encoded;
 	final ValueFuture<Boolean> result;
 
 	public ProduceRequest(KafkaPartitionIdentity partition, List<byte[]> messages) {
@@ -27,12 +26,59 @@ public class ProduceRequest implements KafkaOperation {
 	}
 	
 	public ProduceRequest(KafkaPartitionIdentity partition, int compression, boolean compress, List<byte[]> messages) {
+		this(messages, partition, compression, compress);
+	}
+	
+	private ProduceRequest(List<?> messages, KafkaPartitionIdentity partition, int compression, boolean compress) {
 		this.partition = partition;
-		this.messages = messages;
 		this.compression = compression;
 		this.compress = compress;
+		if (compress && compression != Message.COMPRESSION_NONE) {
+			// Compress on the calling thread, so that the IO thread only has to
+			// copy the compressed bytes into the request buffer.
+			this.messages = null;
+			this.encoded = EncodedMessageSet.encodePayloads(compression, true, messages);
+		} else {
+			this.messages = messages;
+			this.encoded = null;
+		}
+		this.result = new ValueFuture<Boolean>();
+	}
+	
+	/**
+	 * Creates a produce request for messages that have already been encoded. The
+	 * same message set may be sent by any number of requests; it is copied into
+	 * each request buffer without being re-encoded or re-compressed.
+	 * @param partition
+	 * @param messages
+	 */
+	public ProduceRequest(KafkaPartitionIdentity partition, EncodedMessageSet messages) {
+		this.partition = partition;
+		this.messages = null;
+		this.compression = Message.COMPRESSION_NONE;
+		this.compress = false;
+		this.encoded = messages;
 		this.result = new ValueFuture<Boolean>();
 	}
+	
+	/**
+	 * Creates a produce request whose messages are the remaining bytes of each
+	 * buffer. Buffers may be heap, direct or memory-mapped; their contents are
+	 * copied straight into the request buffer when the request is written, and
+	 * their positions are not changed. The buffers must not be modified until the
+	 * request has been written.
+	 */
+	public static ProduceRequest createFromBuffers(KafkaPartitionIdentity partition, int compression, boolean compress, List<ByteBuffer> messages) {
+		return new ProduceRequest(messages, partition, compression, compress);
+	}
+	
+	/**
+	 * Creates a produce request from a list containing any mix of byte[] and
+	 * ByteBuffer messages, and (if compress is false) EncodedMessageSets.
+	 */
+	static ProduceRequest createFromPayloads(KafkaPartitionIdentity partition, int compression, boolean compress, List<?> messages) {
+		return new ProduceRequest(messages, partition, compression, compress);
+	}
 
 	public SelectableFuture<Boolean> getResult() {
 		return result;
@@ -48,6 +94,11 @@ public class ProduceRequest implements KafkaOperation {
 		return true;
 	}
 	
+	@Override
+	public void enqueued(Runnable dequeue) {
+		// Produce requests cannot be cancelled
+	}
+	
 	@Override
 	public boolean canRead() {
 		return false;
@@ -84,34 +135,10 @@ public class ProduceRequest implements KafkaOperation {
 		int messageSectionSizePosition = buffer.position();
 		buffer.putInt(0);
 		
-		Message.ByteBufferBackedMessageOutputStream wrapper = new Message.ByteBufferBackedMessageOutputStream(buffer);
-		try {
-			if (compression == Message.COMPRESSION_NONE || !compress) {
-				for (byte[] message : messages) {
-					wrapper.startMessage(compression);
-					wrapper.write(message);
-					wrapper.finishMessage();
-				}
-			} else if (compression == Message.COMPRESSION_GZIP) {
-				try {
-					wrapper.startMessage(compression);
-					GZIPOutputStream stream = new GZIPOutputStream(wrapper);
-					MessageStream out = new MessageStream(stream);
-					for (byte[] message : messages) {
-						out.writeMessage(Message.COMPRESSION_NONE, message);
-					}
-					out.close();
-					wrapper.finishMessage();
-				} catch (IOException e) {
-					throw new RuntimeException("Error occurred while compressing with gzip", e);
-				}
-			} else if (compression == Message.COMPRESSION_SNAPPY) {
-				throw new UnsupportedOperationException("Snappy compression not implemented");
-			} else {
-				throw new UnsupportedOperationException("Unknown compression specified: "+compression);
-			}
-		} finally {
-			wrapper.close();
+		if (encoded != null) {
+			encoded.writeTo(buffer);
+		} else {
+			EncodedMessageSet.writeMessages(buffer, compression, compress, messages);
 		}
 
 		size = buffer.position() - messageSectionSizePosition - KafkaAsyncProcessor.SIZEOF_INT32;
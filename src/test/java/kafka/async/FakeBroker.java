@@ -0,0 +1,207 @@
+package kafka.async;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kafka.async.client.Message;
+import kafka.async.client.MessageSet;
+
+/**
+ * A minimal stand-in for a kafka 0.7 broker. Produce requests are accepted and
+ * counted (along with the messages they contain), and offsets requests are
+ * answered with a single offset equal to the number of produce requests
+ * received so far. The messages of every produce request are appended to a
+ * single log (regardless of topic and partition), which fetch requests read
+ * from. Other requests close the connection.
+ */
+public class FakeBroker {
+
+	private final ServerSocket server;
+	private final AtomicInteger produceRequests = new AtomicInteger();
+	private final AtomicInteger offsetsRequests = new AtomicInteger();
+	private final AtomicInteger messages = new AtomicInteger();
+	private final AtomicInteger wrappers = new AtomicInteger();
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+	public FakeBroker() throws IOException {
+		server = new ServerSocket(0);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}).start();
+					}
+				} catch (IOException e) {
+					// Server closed
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public KafkaBrokerIdentity identity() {
+		return new KafkaBrokerIdentity("127.0.0.1", server.getLocalPort());
+	}
+
+	public int produceRequests() {
+		return produceRequests.get();
+	}
+
+	/**
+	 * The number of messages produced, counting each message inside a
+	 * compressed wrapper message.
+	 */
+	public int messages() {
+		return messages.get();
+	}
+
+	/**
+	 * The number of top-level messages produced, counting each compressed wrapper
+	 * message once.
+	 */
+	public int wrappers() {
+		return wrappers.get();
+	}
+
+	public int offsetsRequests() {
+		return offsetsRequests.get();
+	}
+
+	/**
+	 * The number of socket reads that returned data. Requests that are written
+	 * together tend to arrive together.
+	 */
+	public int reads() {
+		return reads.get();
+	}
+
+	public long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * The size of the log, which is the offset that the next produced message
+	 * will have.
+	 */
+	public long logSize() {
+		synchronized (log) {
+			return log.size();
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void countMessages(byte[] request) {
+		ByteBuffer buffer = ByteBuffer.wrap(request);
+		buffer.position(2);
+		int topicLength = buffer.getShort();
+		buffer.position(buffer.position() + topicLength + 4);
+		int size = buffer.getInt();
+		synchronized (log) {
+			log.write(request, buffer.position(), size);
+		}
+		buffer.limit(buffer.position() + size);
+		MessageSet set = MessageSet.createMessageSet(0, 0, buffer.slice());
+		for (Iterator<Message> i = set.iterator(false); i.hasNext(); i.next()) {
+			wrappers.incrementAndGet();
+		}
+		for (Iterator<Message> i = set.iterator(true); i.hasNext(); i.next()) {
+			messages.incrementAndGet();
+		}
+	}
+
+	private void fetch(byte[] request, DataOutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(request);
+		buffer.position(2);
+		int topicLength = buffer.getShort();
+		buffer.position(buffer.position() + topicLength + 4);
+		long offset = buffer.getLong();
+		int maxSize = buffer.getInt();
+
+		byte[] contents;
+		synchronized (log) {
+			contents = log.toByteArray();
+		}
+		if (offset < 0 || offset > contents.length) {
+			out.writeInt(2);
+			out.writeShort(1); // OffsetOutOfRange
+		} else {
+			int length = (int)Math.min(maxSize, contents.length - offset);
+			out.writeInt(2 + length);
+			out.writeShort(0);
+			out.write(contents, (int)offset, length);
+		}
+		out.flush();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			final InputStream raw = socket.getInputStream();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					int n = read(b, 0, 1);
+					return n < 0 ? -1 : (b[0] & 0xFF);
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = raw.read(b, off, len);
+					if (n > 0) {
+						reads.incrementAndGet();
+						bytes.addAndGet(n);
+					}
+					return n;
+				}
+			}, 1024*1024));
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			while (true) {
+				int size = in.readInt();
+				byte[] request = new byte[size];
+				in.readFully(request);
+				int type = ((request[0] & 0xFF) << 8) | (request[1] & 0xFF);
+				if (type == 0) {
+					countMessages(request);
+					produceRequests.incrementAndGet();
+				} else if (type == 1) {
+					fetch(request, out);
+				} else if (type == 4) {
+					offsetsRequests.incrementAndGet();
+					out.writeInt(2 + 4 + 8);
+					out.writeShort(0);
+					out.writeInt(1);
+					out.writeLong(produceRequests.get());
+					out.flush();
+				} else {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Connection closed
+		} finally {
+			try { socket.close(); } catch (IOException ignoreThis) {}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package kafka.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import kafka.async.client.BrokerHealth;
+
+import org.junit.Test;
+
+public class TestBrokerHealth {
+
+	private static final KafkaBrokerIdentity BROKER = new KafkaBrokerIdentity("b", 1);
+	private static final long RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(50);
+
+	@Test
+	public void testCircuitOpensBelowThreshold() {
+		BrokerHealth health = new BrokerHealth(BROKER, 0.5, RETRY_DELAY, 0);
+		// 0.8, 0.64, 0.512 are all above the threshold
+		for (int i=0; i<3; ++i) {
+			health.connectionFailed();
+			assertTrue(health.isAvailable());
+		}
+		health.connectionFailed();
+		assertFalse(health.isAvailable());
+		assertFalse(health.allowRequest());
+	}
+
+	@Test
+	public void testErrorResponsesOpenCircuit() {
+		BrokerHealth health = new BrokerHealth(BROKER, 0.5, RETRY_DELAY, 0);
+		for (int i=0; i<4; ++i) {
+			health.responseReceived(1000, 1);
+		}
+		assertEquals(4, health.getErrorResponses());
+		assertFalse(health.allowRequest());
+	}
+
+	@Test
+	public void testSlowResponsesOpenCircuit() {
+		BrokerHealth health = new BrokerHealth(BROKER, 0.5, RETRY_DELAY, TimeUnit.MILLISECONDS.toNanos(1));
+		health.responseReceived(TimeUnit.MICROSECONDS.toNanos(500), 0);
+		assertEquals(1.0, health.getScore(), 0.0);
+		for (int i=0; i<4; ++i) {
+			health.responseReceived(TimeUnit.MILLISECONDS.toNanos(10), 0);
+		}
+		assertTrue(health.getScore() < 0.5);
+		assertFalse(health.allowRequest());
+	}
+
+	@Test
+	public void testHalfOpenProbe() throws Exception {
+		BrokerHealth health = new BrokerHealth(BROKER, 0.5, RETRY_DELAY, 0);
+		for (int i=0; i<4; ++i) {
+			health.connectionFailed();
+		}
+		assertFalse(health.allowRequest());
+
+		// One probe is let through once the retry delay has passed
+		Thread.sleep(60);
+		assertTrue(health.isAvailable());
+		assertTrue(health.allowRequest());
+		assertFalse(health.allowRequest());
+
+		// A failed probe opens the circuit for another retry delay
+		health.connectionFailed();
+		assertFalse(health.isAvailable());
+		Thread.sleep(60);
+		assertTrue(health.allowRequest());
+
+		// A successful probe closes it
+		health.responseReceived(1000, 0);
+		assertEquals(1.0, health.getScore(), 0.0);
+		assertTrue(health.allowRequest());
+		assertTrue(health.allowRequest());
+	}
+
+	@Test
+	public void testDisabled() {
+		BrokerHealth health = new BrokerHealth(BROKER, 0, RETRY_DELAY, 0);
+		for (int i=0; i<20; ++i) {
+			health.connectionFailed();
+		}
+		assertTrue(health.getScore() < 0.1);
+		assertTrue(health.allowRequest());
+	}
+}
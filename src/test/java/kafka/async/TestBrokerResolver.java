@@ -0,0 +1,128 @@
+package kafka.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.async.futures.Wakeable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBrokerResolver {
+
+	private static final KafkaBrokerIdentity BROKER = new KafkaBrokerIdentity("broker", 9092);
+	private static final InetSocketAddress FIRST = new InetSocketAddress("127.0.0.1", 9092);
+	private static final InetSocketAddress SECOND = new InetSocketAddress("127.0.0.2", 9092);
+	private static final InetSocketAddress UNRESOLVED = InetSocketAddress.createUnresolved("broker", 9092);
+
+	private final Semaphore wakeups = new Semaphore(0);
+	private final BlockingQueue<InetSocketAddress> answers = new LinkedBlockingQueue<InetSocketAddress>();
+	private final AtomicInteger lookups = new AtomicInteger();
+	private volatile CountDownLatch release;
+	private BrokerResolver resolver;
+
+	@Before
+	public void start() {
+		release = new CountDownLatch(0);
+		// Resolved addresses live for 1s, failed lookups for 200ms
+		resolver = new BrokerResolver(new Wakeable() {
+			@Override
+			public void wakeup() {
+				wakeups.release();
+			}
+		}, 1, 1000, 200, TimeUnit.MILLISECONDS) {
+			@Override
+			InetSocketAddress lookup(KafkaBrokerIdentity broker) {
+				lookups.incrementAndGet();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return answers.remove();
+			}
+		};
+	}
+
+	@After
+	public void stop() {
+		resolver.close();
+	}
+
+	/**
+	 * Resolves the broker and waits for the lookup to complete and wake up the
+	 * listener.
+	 */
+	private void resolveAndWait() throws InterruptedException {
+		resolver.resolve(BROKER);
+		assertTrue("Listener was not woken up", wakeups.tryAcquire(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testListenerWokenUp() throws Exception {
+		answers.add(FIRST);
+		assertNull(resolver.resolve(BROKER));
+		assertTrue(wakeups.tryAcquire(5, TimeUnit.SECONDS));
+		assertSame(FIRST, resolver.resolve(BROKER));
+		assertEquals(1, lookups.get());
+	}
+
+	@Test
+	public void testStaleAddressDuringRefresh() throws Exception {
+		answers.add(FIRST);
+		resolveAndWait();
+		Thread.sleep(1100);
+
+		// The expired address is returned while the refresh is held up
+		answers.add(SECOND);
+		release = new CountDownLatch(1);
+		assertSame(FIRST, resolver.resolve(BROKER));
+		assertSame(FIRST, resolver.resolve(BROKER));
+		release.countDown();
+		assertTrue(wakeups.tryAcquire(5, TimeUnit.SECONDS));
+		assertSame(SECOND, resolver.resolve(BROKER));
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void testFailedLookupCached() throws Exception {
+		answers.add(UNRESOLVED);
+		resolveAndWait();
+		assertSame(UNRESOLVED, resolver.resolve(BROKER));
+		assertEquals(1, lookups.get());
+
+		// Looked up again once the shorter failure TTL has passed
+		Thread.sleep(250);
+		answers.add(FIRST);
+		assertSame(UNRESOLVED, resolver.resolve(BROKER));
+		assertTrue(wakeups.tryAcquire(5, TimeUnit.SECONDS));
+		assertSame(FIRST, resolver.resolve(BROKER));
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		answers.add(FIRST);
+		resolveAndWait();
+		resolver.invalidate(BROKER);
+		Thread.sleep(250);
+
+		// Looked up again after the failure TTL instead of the full TTL
+		answers.add(SECOND);
+		assertSame(FIRST, resolver.resolve(BROKER));
+		assertTrue(wakeups.tryAcquire(5, TimeUnit.SECONDS));
+		assertSame(SECOND, resolver.resolve(BROKER));
+		assertEquals(2, lookups.get());
+	}
+}
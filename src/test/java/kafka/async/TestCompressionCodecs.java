@@ -0,0 +1,119 @@
+package kafka.async;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import kafka.async.client.CompressionCodec;
+import kafka.async.client.CompressionCodecs;
+import kafka.async.client.CompressionStats;
+import kafka.async.client.GzipCodec;
+import kafka.async.client.Message;
+
+import org.junit.Test;
+
+public class TestCompressionCodecs {
+
+	private static byte[] text(int size) {
+		byte[] text = new byte[size];
+		for (int i=0; i<size; ++i) {
+			text[i] = (byte)('a' + (i * 7 + i / 13) % 26);
+		}
+		return text;
+	}
+
+	private static byte[] compress(CompressionCodec codec, byte[] input) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream stream = codec.compressingStream(out);
+		stream.write(input);
+		stream.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testGzipReadableByJdk() throws Exception {
+		byte[] input = text(100000);
+		byte[] compressed = compress(new GzipCodec(), input);
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] tmp = new byte[4096];
+		for (int n = in.read(tmp); n >= 0; n = in.read(tmp)) {
+			out.write(tmp, 0, n);
+		}
+		assertArrayEquals(input, out.toByteArray());
+	}
+
+	@Test
+	public void testGzipReadsJdkMembers() throws Exception {
+		// Two concatenated gzip members, as GZIPInputStream accepts
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i=0; i<2; ++i) {
+			GZIPOutputStream stream = new GZIPOutputStream(out) {
+				@Override
+				public void close() throws IOException {
+					finish();
+				}
+			};
+			stream.write(text(5000));
+			stream.close();
+		}
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(out.size());
+		direct.put(out.toByteArray());
+		direct.flip();
+		ByteBuffer result = new GzipCodec().uncompress(direct);
+		assertEquals(10000, result.remaining());
+		assertEquals(0, direct.position());
+	}
+
+	@Test
+	public void testStats() throws Exception {
+		GzipCodec codec = new GzipCodec();
+		byte[] input = text(50000);
+		byte[] compressed = compress(codec, input);
+		assertArrayEquals(input, toArray(codec.uncompress(ByteBuffer.wrap(compressed))));
+
+		CompressionStats stats = codec.getStats();
+		assertEquals(1, stats.getCompressCalls());
+		assertEquals(input.length, stats.getCompressBytesIn());
+		assertEquals(compressed.length, stats.getCompressBytesOut());
+		assertTrue(stats.getCompressionRatio() < 0.5);
+		assertEquals(1, stats.getUncompressCalls());
+		assertEquals(compressed.length, stats.getUncompressBytesIn());
+		assertEquals(input.length, stats.getUncompressBytesOut());
+	}
+
+	@Test
+	public void testRegisteredCodecs() throws Exception {
+		for (int id : new int[] { Message.COMPRESSION_GZIP, Message.COMPRESSION_SNAPPY }) {
+			CompressionCodec codec = CompressionCodecs.forId(id);
+			assertEquals(id, codec.id());
+			byte[] input = text(70000);
+			assertArrayEquals(input, toArray(codec.uncompress(ByteBuffer.wrap(compress(codec, input)))));
+		}
+		assertEquals(null, CompressionCodecs.forId(Message.COMPRESSION_NONE));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testOneStreamPerThread() throws Exception {
+		GzipCodec codec = new GzipCodec();
+		OutputStream first = codec.compressingStream(new ByteArrayOutputStream());
+		codec.compressingStream(new ByteArrayOutputStream());
+		first.write(1);
+	}
+}
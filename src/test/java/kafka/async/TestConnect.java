@@ -0,0 +1,68 @@
+package kafka.async;
+
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import kafka.async.client.KafkaAsyncClient;
+import kafka.async.client.StaticConfiguration;
+
+public class TestConnect extends TestWithLog4j {
+
+	@Test
+	public void testOpenWaitsForConnections() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		try {
+			Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+			hosts.add(new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", server.getLocalPort()), "topic".getBytes(), 0));
+			StaticConfiguration config = new StaticConfiguration(hosts);
+			KafkaAsyncClient client = new KafkaAsyncClient(config);
+			client.setConnectionsPerHost(2);
+
+			long start = System.currentTimeMillis();
+			client.open(5, TimeUnit.SECONDS);
+			long elapsed = System.currentTimeMillis() - start;
+			client.close();
+
+			// Connections should be started immediately rather than after
+			// the first reconnect interval
+			Assert.assertTrue("open() took "+elapsed+"ms", elapsed < 1000);
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testOpenTimeout() throws Exception {
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", 65432), "topic".getBytes(), 0));
+		StaticConfiguration config = new StaticConfiguration(hosts);
+		KafkaAsyncClient client = new KafkaAsyncClient(config);
+
+		try {
+			client.open(500, TimeUnit.MILLISECONDS);
+			Assert.fail("Client should not have been ready");
+		} catch (TimeoutException expected) {
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testReadyFraction() throws Exception {
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", 65432), "topic".getBytes(), 0));
+		StaticConfiguration config = new StaticConfiguration(hosts);
+		KafkaAsyncClient client = new KafkaAsyncClient(config);
+		client.setReadyFraction(0.0);
+
+		// No connections are required, so this should not time out
+		client.open(500, TimeUnit.MILLISECONDS);
+		client.close();
+	}
+}
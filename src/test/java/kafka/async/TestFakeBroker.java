@@ -0,0 +1,522 @@
+package kafka.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import kafka.async.client.AcknowledgmentListener;
+import kafka.async.client.BrokerHealth;
+import kafka.async.client.KafkaAsyncClient;
+import kafka.async.client.ManualPartitionManager;
+import kafka.async.client.Message;
+import kafka.async.client.PartitionProducer;
+import kafka.async.client.StaticConfiguration;
+import kafka.async.futures.SettableFuture;
+
+public class TestFakeBroker extends TestWithLog4j {
+
+	private FakeBroker broker;
+	private KafkaPartitionIdentity partition;
+	private StaticConfiguration config;
+	private KafkaAsyncClient client;
+	private PartitionProducer producer;
+
+	@Before
+	public void startBroker() throws Exception {
+		broker = new FakeBroker();
+		partition = new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), 0);
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(partition);
+		config = new StaticConfiguration(hosts);
+		client = new KafkaAsyncClient(config);
+		client.open(5, TimeUnit.SECONDS);
+		producer = new PartitionProducer(client);
+		producer.addPartition(partition);
+	}
+
+	@After
+	public void stopBroker() throws Exception {
+		client.close();
+		broker.close();
+	}
+
+	@Test
+	public void testOffsets() throws Exception {
+		List<Long> offsets = client.requestOffsets(partition, -1, 1).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, offsets.size());
+		Assert.assertEquals(1, broker.offsetsRequests());
+	}
+
+	@Test
+	public void testBatchOffsets() throws Exception {
+		List<KafkaPartitionIdentity> partitions = new ArrayList<KafkaPartitionIdentity>();
+		for (int i=0; i<50; ++i) {
+			partitions.add(new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), i));
+		}
+		long[][] offsets = client.requestOffsets(partitions, -1, 1).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(50, offsets.length);
+		for (long[] partitionOffsets : offsets) {
+			Assert.assertEquals(1, partitionOffsets.length);
+		}
+		Assert.assertEquals(50, broker.offsetsRequests());
+	}
+
+	@Test
+	public void testBatchOffsetsUnknownBroker() throws Exception {
+		KafkaPartitionIdentity unknown = new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", 65432), "topic".getBytes(), 0);
+		try {
+			client.requestOffsets(Arrays.asList(partition, unknown), -1, 1);
+			Assert.fail("Offsets were requested from an unknown broker");
+		} catch (NullPointerException e) {
+			// Expected
+		}
+		// Nothing was sent for the known broker either
+		client.requestOffsets(partition, -1, 1).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, broker.offsetsRequests());
+	}
+
+	@Test
+	public void testErrorResponseHealth() throws Exception {
+		// The log is empty, so the broker answers with OffsetOutOfRange
+		try {
+			client.fetch(partition, 1000, 1024).get(5, TimeUnit.SECONDS);
+			Assert.fail("Fetch beyond the log should have failed");
+		} catch (ExecutionException expected) {
+		}
+		BrokerHealth health = client.getBrokerHealth(broker.identity());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (health.getErrorResponses() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, health.getErrorResponses());
+		Assert.assertTrue(health.getScore() < 1.0);
+		Assert.assertTrue(client.isBrokerAvailable(broker.identity()));
+	}
+
+	@Test
+	public void testWriteLinger() throws Exception {
+		KafkaAsyncClient lingering = new KafkaAsyncClient(config);
+		lingering.setWriteLinger(50, TimeUnit.MILLISECONDS, 64*1024);
+		lingering.open(5, TimeUnit.SECONDS);
+		try {
+			List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+			for (int i=0; i<100; ++i) {
+				results.add(lingering.requestOffsets(partition, -1, 1));
+			}
+			for (Future<List<Long>> result : results) {
+				result.get(5, TimeUnit.SECONDS);
+			}
+			Assert.assertEquals(100, broker.offsetsRequests());
+
+			// The requests should have been combined into a small number of writes
+			Assert.assertTrue("Broker needed "+broker.reads()+" reads", broker.reads() <= 5);
+		} finally {
+			lingering.close();
+		}
+	}
+
+	@Test
+	public void testParallelCompression() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			producer.setCompression(Message.COMPRESSION_GZIP);
+			producer.setCompressionExecutor(executor);
+			producer.setMessagesPerWrapper(10);
+
+			List<byte[]> messages = new ArrayList<byte[]>();
+			for (int i=0; i<1000; ++i) {
+				messages.add(("message "+i).getBytes());
+			}
+			List<SettableFuture<Boolean>> confirmations = producer.produce(partition, messages);
+			for (SettableFuture<Boolean> confirmation : confirmations) {
+				Assert.assertTrue(confirmation.get(5, TimeUnit.SECONDS));
+			}
+			producer.waitForEmpty(5, TimeUnit.SECONDS);
+
+			Assert.assertEquals(1000, broker.messages());
+			// Every wrapper holds at most 10 messages
+			Assert.assertTrue("Broker received "+broker.wrappers()+" wrappers", broker.wrappers() >= 100);
+			Assert.assertTrue("Broker received "+broker.wrappers()+" wrappers", broker.wrappers() < 1000);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testPipelinedConfirmation() throws Exception {
+		Assert.assertEquals(1, produceBatches(PartitionProducer.Confirmation.PIPELINE));
+		Assert.assertEquals(4, broker.produceRequests());
+	}
+
+	@Test
+	public void testNoConfirmation() throws Exception {
+		Assert.assertEquals(0, produceBatches(PartitionProducer.Confirmation.NONE));
+		Assert.assertEquals(4, broker.produceRequests());
+	}
+
+	@Test
+	public void testBatchesFitRequestBuffer() throws Exception {
+		KafkaAsyncClient limited = new KafkaAsyncClient(config);
+		limited.setMaxRequestSize(64*1024);
+		limited.open(5, TimeUnit.SECONDS);
+		try {
+			PartitionProducer limitedProducer = new PartitionProducer(limited);
+			limitedProducer.addPartition(partition);
+
+			// 2MB of messages must be split into requests that fit the 64KB buffer
+			List<byte[]> messages = new ArrayList<byte[]>();
+			for (int i=0; i<200; ++i) {
+				messages.add(new byte[10*1024]);
+			}
+			List<SettableFuture<Boolean>> confirmations = limitedProducer.produce(partition, messages);
+			for (SettableFuture<Boolean> result : confirmations) {
+				Assert.assertTrue(result.get(5, TimeUnit.SECONDS));
+			}
+			Assert.assertEquals(200, broker.messages());
+			Assert.assertTrue("Broker received "+broker.produceRequests()+" requests", broker.produceRequests() >= 2*1024/64);
+
+			try {
+				limitedProducer.produce(partition, new byte[64*1024]);
+				Assert.fail("A message larger than the request buffer was accepted");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		} finally {
+			limited.close();
+		}
+	}
+
+	@Test
+	public void testBatchLinger() throws Exception {
+		producer.setBatchLinger(1, TimeUnit.SECONDS);
+
+		List<SettableFuture<Boolean>> confirmations = new ArrayList<SettableFuture<Boolean>>();
+		for (int i=0; i<100; ++i) {
+			confirmations.add(producer.produce(partition, ("message "+i).getBytes()));
+		}
+		producer.waitForEmpty(5, TimeUnit.SECONDS);
+		for (SettableFuture<Boolean> result : confirmations) {
+			Assert.assertTrue(result.get(5, TimeUnit.SECONDS));
+		}
+		// The messages should have waited to be sent in a single request
+		Assert.assertEquals(100, broker.messages());
+		Assert.assertEquals(1, broker.produceRequests());
+	}
+
+	@Test
+	public void testSequencedAcknowledgments() throws Exception {
+		producer.setMaxBatchBytes(6000);
+		final List<Long> watermarks = new CopyOnWriteArrayList<Long>();
+		producer.addAcknowledgmentListener(new AcknowledgmentListener() {
+			@Override
+			public void acknowledged(KafkaPartitionIdentity partition, long watermark) {
+				watermarks.add(watermark);
+			}
+
+			@Override
+			public void failed(KafkaPartitionIdentity partition, long firstSequence, long lastSequence, Exception reason) {
+				Assert.fail("Sequences "+firstSequence+"-"+lastSequence+" failed: "+reason);
+			}
+		});
+
+		for (int i=0; i<1000; ++i) {
+			Assert.assertEquals(i, producer.produceSequenced(partition, ("message "+i).getBytes()));
+		}
+		producer.waitForAcknowledged(partition, 999, 5, TimeUnit.SECONDS);
+		Assert.assertEquals(999, producer.getAcknowledged(partition));
+		Assert.assertEquals(1000, broker.messages());
+
+		// One advance per batch, in order
+		Assert.assertEquals(broker.produceRequests(), watermarks.size());
+		for (int i=1; i<watermarks.size(); ++i) {
+			Assert.assertTrue(watermarks.get(i) > watermarks.get(i-1));
+		}
+		Assert.assertEquals(999L, (long)watermarks.get(watermarks.size()-1));
+	}
+
+	@Test
+	public void testSequencedFailure() throws Exception {
+		producer.setBatchLinger(10, TimeUnit.SECONDS);
+		final List<Long> failed = new CopyOnWriteArrayList<Long>();
+		producer.addAcknowledgmentListener(new AcknowledgmentListener() {
+			@Override
+			public void acknowledged(KafkaPartitionIdentity partition, long watermark) {
+			}
+
+			@Override
+			public void failed(KafkaPartitionIdentity partition, long firstSequence, long lastSequence, Exception reason) {
+				failed.add(firstSequence);
+				failed.add(lastSequence);
+			}
+		});
+
+		PartitionProducer.PartitionState state = producer.getState(partition);
+		for (int i=0; i<10; ++i) {
+			state.produceSequenced(("message "+i).getBytes());
+		}
+		// The messages are still lingering when the partition is closed
+		state.close();
+		Assert.assertEquals(9, state.getAcknowledged());
+		Assert.assertEquals(2, failed.size());
+		Assert.assertEquals(0L, (long)failed.get(0));
+		Assert.assertEquals(9L, (long)failed.get(1));
+		try {
+			state.waitForAcknowledged(5, 5, TimeUnit.SECONDS);
+			Assert.fail("Failed sequence was reported as acknowledged");
+		} catch (ExecutionException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRerouteOnBrokerFailure() throws Exception {
+		KafkaPartitionIdentity unavailable = new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", 65432), "topic".getBytes(), 0);
+		KafkaAsyncClient rerouting = openWithUnavailableBroker(unavailable);
+		try {
+			PartitionProducer reroutingProducer = new PartitionProducer(rerouting);
+			reroutingProducer.addPartition(partition);
+			reroutingProducer.addPartition(unavailable);
+			reroutingProducer.setRerouteOnFailure(true);
+
+			// Queued on the unavailable partition, so the request fails fast
+			List<byte[]> messages = new ArrayList<byte[]>();
+			for (int i=0; i<10; ++i) {
+				messages.add(("message "+i).getBytes());
+			}
+			List<SettableFuture<Boolean>> confirmations = reroutingProducer.getState(unavailable).produce(messages);
+			for (SettableFuture<Boolean> result : confirmations) {
+				Assert.assertTrue(result.get(5, TimeUnit.SECONDS));
+			}
+			Assert.assertEquals(10, broker.messages());
+			reroutingProducer.waitForEmpty(5, TimeUnit.SECONDS);
+		} finally {
+			rerouting.close();
+		}
+	}
+
+	@Test
+	public void testSequencedReroute() throws Exception {
+		KafkaPartitionIdentity unavailable = new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", 65432), "topic".getBytes(), 0);
+		KafkaAsyncClient rerouting = openWithUnavailableBroker(unavailable);
+		try {
+			PartitionProducer reroutingProducer = new PartitionProducer(rerouting);
+			reroutingProducer.addPartition(partition);
+			reroutingProducer.addPartition(unavailable);
+			reroutingProducer.setRerouteOnFailure(true);
+
+			// The messages are sent to the other partition, but are still
+			// sequenced and acknowledged by the partition they were produced to
+			for (int i=0; i<10; ++i) {
+				Assert.assertEquals(i, reroutingProducer.produceSequenced(unavailable, ("message "+i).getBytes()));
+			}
+			reroutingProducer.waitForAcknowledged(unavailable, 9, 5, TimeUnit.SECONDS);
+			Assert.assertEquals(9, reroutingProducer.getAcknowledged(unavailable));
+			Assert.assertEquals(-1, reroutingProducer.getAcknowledged(partition));
+			Assert.assertEquals(10, broker.messages());
+
+			Assert.assertEquals(0, reroutingProducer.produceSequenced(partition, "message".getBytes()));
+			reroutingProducer.waitForAcknowledged(partition, 0, 5, TimeUnit.SECONDS);
+		} finally {
+			rerouting.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			// Small enough that producers regularly overflow the ring
+			final PartitionProducer small = new PartitionProducer(client);
+			small.setQueueCapacity(64);
+			small.addPartition(partition);
+
+			List<Future<List<SettableFuture<Boolean>>>> results = new ArrayList<Future<List<SettableFuture<Boolean>>>>();
+			for (int t=0; t<8; ++t) {
+				results.add(threads.submit(new Callable<List<SettableFuture<Boolean>>>() {
+					@Override
+					public List<SettableFuture<Boolean>> call() {
+						List<SettableFuture<Boolean>> confirmations = new ArrayList<SettableFuture<Boolean>>();
+						for (int i=0; i<2000; ++i) {
+							if (i % 2 == 0) {
+								confirmations.add(producer.produce(partition, ("message "+i).getBytes()));
+							} else {
+								producer.produceSequenced(partition, ("message "+i).getBytes());
+							}
+						}
+						return confirmations;
+					}
+				}));
+			}
+			for (Future<List<SettableFuture<Boolean>>> result : results) {
+				for (SettableFuture<Boolean> confirmation : result.get(10, TimeUnit.SECONDS)) {
+					Assert.assertTrue(confirmation.get(10, TimeUnit.SECONDS));
+				}
+			}
+			producer.waitForAcknowledged(partition, 8*1000 - 1, 10, TimeUnit.SECONDS);
+			producer.waitForEmpty(10, TimeUnit.SECONDS);
+			Assert.assertEquals(8*2000, broker.messages());
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	@Test
+	public void testUpdatePartitions() throws Exception {
+		KafkaPartitionIdentity second = new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), 1);
+		ManualPartitionManager manager = new ManualPartitionManager();
+		manager.addPartition(partition);
+		PartitionProducer managed = new PartitionProducer(client);
+		Assert.assertTrue(managed.updatePartitions(manager));
+		Assert.assertFalse(managed.updatePartitions(manager));
+		Assert.assertEquals(Collections.singletonList(partition), managed.getPartitions());
+
+		manager.addPartition(second);
+		Assert.assertTrue(managed.updatePartitions(manager));
+		Assert.assertEquals(Arrays.asList(partition, second), managed.getPartitions());
+
+		// Messages queued for a removed partition are still sent
+		managed.setBatchLinger(200, TimeUnit.MILLISECONDS);
+		PartitionProducer.PartitionState removed = managed.getState(second);
+		long sequence = managed.produceSequenced(second, "message".getBytes());
+		manager.removePartition(second);
+		Assert.assertTrue(managed.updatePartitions(manager));
+		Assert.assertEquals(Collections.singletonList(partition), managed.getPartitions());
+		try {
+			managed.produce(second, "message".getBytes());
+			Assert.fail("Produced to a removed partition");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			removed.produce("message".getBytes());
+			Assert.fail("Produced to the state of a removed partition");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		managed.waitForEmpty(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, broker.messages());
+		Assert.assertEquals(0, sequence);
+	}
+
+	@Test
+	public void testUpdatePartitionBrokers() throws Exception {
+		FakeBroker other = new FakeBroker();
+		try {
+			KafkaPartitionIdentity remote = new KafkaPartitionIdentity(other.identity(), "topic".getBytes(), 0);
+			ManualPartitionManager manager = new ManualPartitionManager();
+			manager.addPartition(partition);
+			PartitionProducer managed = new PartitionProducer(client);
+			producer.updatePartitions(manager);
+			Assert.assertFalse(client.hasBroker(other.identity()));
+
+			// The broker is added to the client along with its first partition
+			manager.addPartition(remote);
+			Assert.assertTrue(producer.updatePartitions(manager));
+			Assert.assertTrue(client.hasBroker(other.identity()));
+			Assert.assertTrue(producer.produce(remote, "message".getBytes()).get(5, TimeUnit.SECONDS));
+			Assert.assertEquals(1, other.messages());
+
+			// ...and is only removed once the partition has drained
+			producer.setBatchLinger(200, TimeUnit.MILLISECONDS);
+			SettableFuture<Boolean> lingering = producer.produce(remote, "message".getBytes());
+			manager.removePartition(remote);
+			Assert.assertTrue(producer.updatePartitions(manager));
+			Assert.assertTrue(client.hasBroker(other.identity()));
+			Assert.assertTrue(lingering.get(5, TimeUnit.SECONDS));
+			producer.waitForEmpty(5, TimeUnit.SECONDS);
+			Assert.assertFalse(producer.updatePartitions(manager));
+			Assert.assertFalse(client.hasBroker(other.identity()));
+			Assert.assertEquals(2, other.messages());
+			Assert.assertTrue(client.hasBroker(broker.identity()));
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testFollowPartitionManager() throws Exception {
+		KafkaPartitionIdentity second = new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), 1);
+		KafkaPartitionIdentity third = new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), 2);
+		ManualPartitionManager manager = new ManualPartitionManager();
+		manager.addPartition(partition);
+		PartitionProducer managed = new PartitionProducer(client);
+		managed.follow(manager, 20, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(Collections.singletonList(partition), managed.getPartitions());
+
+		manager.addPartition(second);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (managed.getPartitions().size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(Arrays.asList(partition, second), managed.getPartitions());
+
+		managed.stopFollowing();
+		manager.addPartition(third);
+		Thread.sleep(200);
+		Assert.assertEquals(Arrays.asList(partition, second), managed.getPartitions());
+	}
+
+	/**
+	 * Produces 1000 messages (20890 bytes, so 4 batches of at most 6000 bytes)
+	 * at once using the given confirmation mode, and returns the number of
+	 * offsets requests the broker received.
+	 */
+	private int produceBatches(PartitionProducer.Confirmation confirmation) throws Exception {
+		producer.setConfirmation(confirmation);
+		producer.setMaxBatchBytes(6000);
+
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i=0; i<1000; ++i) {
+			messages.add(("message "+i).getBytes());
+		}
+		List<SettableFuture<Boolean>> confirmations = producer.produce(partition, messages);
+		for (SettableFuture<Boolean> result : confirmations) {
+			Assert.assertTrue(result.get(5, TimeUnit.SECONDS));
+		}
+		producer.waitForEmpty(5, TimeUnit.SECONDS);
+
+		// Without confirmation, messages are confirmed before the broker reads them
+		long deadline = System.currentTimeMillis() + 5000;
+		while (broker.messages() < 1000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1000, broker.messages());
+		return broker.offsetsRequests();
+	}
+
+	/**
+	 * Opens a client for the fake broker's partition and the given partition,
+	 * whose broker is not listening, and waits for the circuit of the latter to
+	 * open.
+	 */
+	private KafkaAsyncClient openWithUnavailableBroker(KafkaPartitionIdentity unavailable) throws Exception {
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(partition);
+		hosts.add(unavailable);
+		KafkaAsyncClient client = new KafkaAsyncClient(new StaticConfiguration(hosts));
+		client.setCircuitBreakerThreshold(0.9);
+		client.setCircuitBreakerRetryDelay(1, TimeUnit.MINUTES);
+		client.open();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (client.isBrokerAvailable(unavailable.broker) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(client.isBrokerAvailable(unavailable.broker));
+		return client;
+	}
+}
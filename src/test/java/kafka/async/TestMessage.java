@@ -3,18 +3,28 @@ package kafka.async;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPOutputStream;
 
+import kafka.async.client.ChecksumVerification;
+import kafka.async.client.CompressionCodecs;
+import kafka.async.client.CompressionStats;
+import kafka.async.client.EncodedMessageSet;
 import kafka.async.client.Message;
 import kafka.async.client.Message.ByteBufferBackedMessageOutputStream;
 import kafka.async.client.Message.MessageStream;
+import kafka.async.client.MessageCursor;
 import kafka.async.client.MessageSet;
 
 import org.junit.Test;
@@ -236,6 +246,265 @@ public class TestMessage {
 	}
 	
 	
+	@Test
+	public void testByteBufferMessageContents() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(1024*1024);
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(16);
+		direct.put("xxabcdefg".getBytes(ASCII));
+		direct.flip();
+		direct.position(2);
+		ByteBuffer heap = ByteBuffer.wrap("2abcdefg".getBytes(ASCII));
+		
+		ByteBufferBackedMessageOutputStream out = new ByteBufferBackedMessageOutputStream(buffer);
+		out.startMessage(Message.COMPRESSION_NONE);
+		out.write(direct);
+		out.finishMessage();
+		out.startMessage(Message.COMPRESSION_NONE);
+		out.write(heap);
+		out.finishMessage();
+		
+		// Source buffers should be left untouched
+		assertEquals(2, direct.position());
+		assertEquals(0, heap.position());
+		
+		ByteBufferBackedMessageOutputStream wrapper = new ByteBufferBackedMessageOutputStream(buffer);
+		wrapper.startMessage(Message.COMPRESSION_GZIP);
+		MessageStream stream = new MessageStream(new GZIPOutputStream(wrapper));
+		stream.writeMessage(Message.COMPRESSION_NONE, direct);
+		stream.writeMessage(Message.COMPRESSION_NONE, heap);
+		stream.close();
+		wrapper.finishMessage();
+		buffer.flip();
+		
+		Iterator<Message> i = MessageSet.createMessageSet(0, 0, buffer).iterator();
+		String[] expected = new String[] { "abcdefg", "2abcdefg", "abcdefg", "2abcdefg" };
+		for (String e : expected) {
+			assertTrue(i.hasNext());
+			Message message = i.next();
+			message.validateChecksum();
+			assertEquals(e,byteBufferToString(message.getUncompressedContents(), ASCII));
+		}
+		assertFalse(i.hasNext());
+	}
+	
+	@Test
+	public void testDirectBufferChecksums() throws Exception {
+		byte[] payload = new byte[20000];
+		for (int i=0; i<payload.length; ++i) {
+			payload[i] = (byte)(i * 31);
+		}
+		CRC32 expected = new CRC32();
+		expected.update(payload);
+		
+		// Write into a direct buffer, so the checksum is computed over direct memory
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+		buffer.put((byte)0x55);
+		ByteBufferBackedMessageOutputStream out = new ByteBufferBackedMessageOutputStream(buffer);
+		out.startMessage(Message.COMPRESSION_NONE);
+		out.write(payload[0]);
+		out.write(payload, 1, payload.length - 1);
+		out.finishMessage();
+		buffer.flip();
+		buffer.position(1);
+		
+		Message message = MessageSet.createMessageSet(0, 0, buffer.slice()).iterator().next();
+		assertEquals((int)expected.getValue(), message.checksum);
+		message.validateChecksum();
+		
+		// Corrupt the last byte of the payload
+		buffer.put(buffer.limit() - 1, (byte)(payload[payload.length - 1] + 1));
+		message = MessageSet.createMessageSet(0, 0, buffer.slice()).iterator().next();
+		try {
+			message.validateChecksum();
+			fail("Corruption was not detected");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void testChecksumVerification() throws Exception {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i=0; i<2000; ++i) {
+			byte[] payload = new byte[1000];
+			Arrays.fill(payload, (byte)i);
+			messages.add(payload);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4*1024*1024);
+		writeMessagesToBuffer(messages, buffer);
+		buffer.flip();
+		MessageSet messageSet = MessageSet.createMessageSet(0, 0, buffer);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// Every mode accepts valid messages
+			assertEquals(2000, countContents(messageSet.withVerification(ChecksumVerification.LAZY)));
+			assertEquals(2000, countContents(messageSet.withVerification(ChecksumVerification.eager(executor))));
+			assertEquals(2000, countContents(messageSet.withVerification(ChecksumVerification.sample(0.1))));
+			
+			// Corrupt the payload of the last message
+			buffer.put(buffer.limit() - 1, (byte)0x7F);
+			assertEquals(2000, countContents(messageSet));
+			try {
+				countContents(messageSet.withVerification(ChecksumVerification.eager(executor)));
+				fail("Corruption was not detected");
+			} catch (RuntimeException e) {
+				// Expected
+			}
+			
+			// Lazy verification only fails when the corrupt message is accessed
+			Iterator<Message> i = messageSet.withVerification(ChecksumVerification.LAZY).iterator();
+			Message last = null;
+			while (i.hasNext()) {
+				last = i.next();
+			}
+			try {
+				last.getContents();
+				fail("Corruption was not detected");
+			} catch (RuntimeException e) {
+				// Expected
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private static int countContents(MessageSet messageSet) {
+		int count = 0;
+		for (Message message : messageSet) {
+			message.getUncompressedContents();
+			count++;
+		}
+		return count;
+	}
+	
+	@Test
+	public void testMessageCursor() throws Exception {
+		List<byte[]> messages = Arrays.asList(new byte[][] {
+			"abcdefg".getBytes(ASCII),	
+			"2abcdefg".getBytes(ASCII),
+			"3abcdefg".getBytes(ASCII),
+		});
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		writeMessagesToBuffer(messages, buffer);
+		// A partial message at the end is not returned
+		buffer.putInt(100);
+		buffer.flip();
+		MessageSet messageSet = MessageSet.createMessageSet(1000, 0, buffer.asReadOnlyBuffer());
+		
+		MessageCursor cursor = messageSet.cursor();
+		byte[] payload = new byte[16];
+		for (Message message : messageSet) {
+			assertTrue(cursor.next());
+			assertEquals(message.offset, cursor.offset());
+			assertEquals(message.nextOffset, cursor.nextOffset());
+			assertEquals(message.compression, cursor.compression());
+			assertEquals(message.checksum, cursor.checksum());
+			assertEquals(message.contents.remaining(), cursor.payloadLength());
+			assertEquals(message.contents.get(0), cursor.buffer().get(cursor.payloadPosition()));
+			int length = cursor.getPayload(payload, 0);
+			assertEquals(byteBufferToString(message.contents, ASCII), new String(payload, 0, length, ASCII));
+			cursor.validateChecksum();
+		}
+		assertFalse(cursor.next());
+		
+		// The cursor can be reused
+		cursor.reset(messageSet);
+		assertTrue(cursor.next());
+		assertEquals(1000, cursor.offset());
+	}
+	
+	@Test
+	public void testNestedMessagesUncompressedOnce() throws Exception {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i=0; i<5000; ++i) {
+			messages.add(("message "+i).getBytes(ASCII));
+		}
+		ByteBuffer buffer = EncodedMessageSet.encode(Message.COMPRESSION_GZIP, true, messages).contents();
+		MessageSet messageSet = MessageSet.createMessageSet(0, 0, buffer);
+		CompressionStats stats = CompressionCodecs.forId(Message.COMPRESSION_GZIP).getStats();
+		
+		// Reading the first nested message only uncompresses part of the wrapper
+		long calls = stats.getUncompressCalls();
+		Iterator<Message> i = messageSet.iterator();
+		assertEquals("message 0", byteBufferToString(i.next().getUncompressedContents(), ASCII));
+		assertEquals(calls, stats.getUncompressCalls());
+		
+		for (int pass=0; pass<2; ++pass) {
+			int count = 0;
+			for (Message message : messageSet) {
+				assertEquals("message "+count, byteBufferToString(message.getUncompressedContents(), ASCII));
+				count++;
+			}
+			assertEquals(5000, count);
+		}
+		// The wrapper was only uncompressed once
+		assertEquals(calls + 1, stats.getUncompressCalls());
+		
+		Message wrapper = messageSet.iterator(false).next();
+		assertEquals(5000, countContents(wrapper.asMessageSet()));
+		assertEquals(calls + 1, stats.getUncompressCalls());
+	}
+	
+	@Test
+	public void testEncodedMessageSet() throws Exception {
+		List<byte[]> messages = Arrays.asList(new byte[][] {
+			"abcdefg".getBytes(ASCII),	
+			"2abcdefg".getBytes(ASCII),
+			"3abcdefg".getBytes(ASCII),
+		});
+		
+		EncodedMessageSet plain = EncodedMessageSet.encode(Message.COMPRESSION_NONE, false, messages);
+		ByteBuffer expected = ByteBuffer.allocate(1024);
+		writeMessagesToBuffer(messages, expected);
+		expected.flip();
+		assertEquals(expected, plain.contents());
+		assertEquals(3, plain.messageCount());
+		
+		EncodedMessageSet gzip = EncodedMessageSet.encode(Message.COMPRESSION_GZIP, true, messages);
+		
+		// The same encoded set can be written any number of times
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		gzip.writeTo(buffer);
+		gzip.writeTo(buffer);
+		buffer.flip();
+		assertEquals(2*gzip.size(), buffer.remaining());
+		
+		Iterator<Message> i = MessageSet.createMessageSet(0, 0, buffer).iterator();
+		for (int copy=0; copy<2; ++copy) {
+			for (byte[] m : messages) {
+				assertTrue(i.hasNext());
+				assertEquals(new String(m, ASCII),byteBufferToString(i.next().getUncompressedContents(), ASCII));
+			}
+		}
+		assertFalse(i.hasNext());
+	}
+	
+	
+	@Test
+	public void testSnappyMessageContents() throws Exception {
+		List<byte[]> messages = Arrays.asList(new byte[][] {
+			"abcdefg".getBytes(ASCII),	
+			"2abcdefg".getBytes(ASCII),
+			"3abcdefg".getBytes(ASCII),
+		});
+		
+		ByteBuffer buffer = EncodedMessageSet.encode(Message.COMPRESSION_SNAPPY, true, messages).contents();
+		Iterator<Message> shallow = MessageSet.createMessageSet(0, 0, buffer).iterator(false);
+		assertTrue(shallow.hasNext());
+		assertEquals(Message.COMPRESSION_SNAPPY, shallow.next().compression);
+		assertFalse(shallow.hasNext());
+		
+		Iterator<Message> i = MessageSet.createMessageSet(0, 0, buffer).iterator();
+		for (byte[] m : messages) {
+			assertTrue(i.hasNext());
+			assertEquals(new String(m, ASCII),byteBufferToString(i.next().getUncompressedContents(), ASCII));
+		}
+		assertFalse(i.hasNext());
+	}
+	
+	
 	public static void writeCompoundMessageToBufferGzip(List<byte[]> messages, ByteBuffer buffer) throws IOException {
 		
 		ByteBufferBackedMessageOutputStream wrapper = new ByteBufferBackedMessageOutputStream(buffer);
@@ -2,12 +2,16 @@ package kafka.async;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import kafka.async.client.KafkaAsyncClient;
+import kafka.async.client.MessageSet;
 import kafka.async.client.StaticConfiguration;
 
 public class TestNoConnect extends TestWithLog4j {
@@ -75,4 +79,91 @@ public class TestNoConnect extends TestWithLog4j {
 		
 	}
 	
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		
+		KafkaBrokerIdentity broker = new KafkaBrokerIdentity("127.0.0.1", 65432);
+		KafkaPartitionIdentity partition = new KafkaPartitionIdentity(broker, "topic".getBytes(), 0);
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(partition);
+		StaticConfiguration config = new StaticConfiguration(hosts);
+		KafkaAsyncClient client = new KafkaAsyncClient(config);
+		client.setCircuitBreakerThreshold(0.9);
+		client.setCircuitBreakerRetryDelay(1, TimeUnit.MINUTES);
+		
+		client.open();
+		try {
+			long endTime = System.currentTimeMillis() + 5000;
+			while (client.isBrokerAvailable(broker) && System.currentTimeMillis() < endTime) {
+				Thread.sleep(50);
+			}
+			Assert.assertFalse(client.isBrokerAvailable(broker));
+			Assert.assertTrue(client.getBrokerHealth(broker).getScore() < 1.0);
+			
+			// The circuit is open, so the fetch should fail (on the processing
+			// thread) without waiting for a connection
+			Future<MessageSet> fetch = client.fetch(partition, 0, 1024);
+			try {
+				fetch.get(1, TimeUnit.SECONDS);
+				Assert.fail("Fetch should have failed");
+			} catch (ExecutionException expected) {
+			}
+		} finally {
+			client.close();
+		}
+	}
+	
+	@Test
+	public void testSharedProcessor() throws Exception {
+		
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(new KafkaPartitionIdentity(new KafkaBrokerIdentity("127.0.0.1", 65432), "topic".getBytes(), 0));
+		StaticConfiguration config = new StaticConfiguration(hosts);
+		
+		KafkaAsyncProcessor processor = new KafkaAsyncProcessor();
+		processor.open();
+		
+		final AtomicInteger counter1 = new AtomicInteger();
+		KafkaAsyncClient client1 = new KafkaAsyncClient(config, processor) {
+			@Override
+			public synchronized void connectionClosed(ChannelContext connection, Exception reason) {
+				counter1.incrementAndGet();
+				super.connectionClosed(connection, reason);
+			}
+		};
+		final AtomicInteger counter2 = new AtomicInteger();
+		KafkaAsyncClient client2 = new KafkaAsyncClient(config, processor) {
+			@Override
+			public synchronized void connectionClosed(ChannelContext connection, Exception reason) {
+				counter2.incrementAndGet();
+				super.connectionClosed(connection, reason);
+			}
+		};
+		
+		try {
+			client1.open();
+			client2.open();
+			Thread.sleep(2000);
+			
+			client1.close();
+			Assert.assertTrue(processor.isOpen());
+			
+			// Allow the processor to detach the first client
+			Thread.sleep(1000);
+			int client1Failures = counter1.get();
+			int client2Failures = counter2.get();
+			Thread.sleep(2000);
+			
+			// The first client should no longer be reconnecting, while
+			// the second client continues on the same processor
+			Assert.assertEquals(client1Failures, counter1.get());
+			Assert.assertTrue(counter2.get() > client2Failures);
+			
+			client2.close();
+			Assert.assertTrue(processor.isOpen());
+		} finally {
+			processor.close();
+		}
+	}
+	
 }
@@ -0,0 +1,79 @@
+package kafka.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import kafka.async.ops.FetchRequest;
+
+import org.junit.Test;
+
+public class TestOperationQueue {
+
+	private KafkaPartitionIdentity partition = new KafkaPartitionIdentity(new KafkaBrokerIdentity("b", 1), "topic".getBytes(), 0);
+
+	@Test
+	public void testOrder() {
+		OperationQueue queue = new OperationQueue();
+		FetchRequest a = new FetchRequest(partition, 0, 1024);
+		FetchRequest b = new FetchRequest(partition, 1, 1024);
+		FetchRequest c = new FetchRequest(partition, 2, 1024);
+
+		queue.add(a);
+		queue.add(b);
+		queue.add(c);
+
+		assertEquals(3, queue.size());
+		assertSame(a, queue.poll());
+		assertSame(b, queue.poll());
+		assertSame(c, queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testCancelRemovesFromQueue() {
+		OperationQueue queue = new OperationQueue();
+		FetchRequest a = new FetchRequest(partition, 0, 1024);
+		FetchRequest b = new FetchRequest(partition, 1, 1024);
+		FetchRequest c = new FetchRequest(partition, 2, 1024);
+
+		a.enqueued(queue.add(a));
+		b.enqueued(queue.add(b));
+		c.enqueued(queue.add(c));
+
+		assertTrue(b.getResult().cancel(false));
+		assertEquals(2, queue.size());
+
+		assertTrue(c.getResult().cancel(false));
+		assertEquals(1, queue.size());
+
+		assertSame(a, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testCancelAfterStart() {
+		OperationQueue queue = new OperationQueue();
+		FetchRequest a = new FetchRequest(partition, 0, 1024);
+		OperationQueue.Node node = queue.add(a);
+		a.enqueued(node);
+
+		assertSame(a, queue.poll());
+		assertTrue(a.start());
+		assertFalse(a.getResult().cancel(false));
+		assertFalse(queue.remove(node));
+	}
+
+	@Test
+	public void testCancelBeforeEnqueued() {
+		OperationQueue queue = new OperationQueue();
+		FetchRequest a = new FetchRequest(partition, 0, 1024);
+		a.getResult().cancel(false);
+
+		a.enqueued(queue.add(a));
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,141 @@
+package kafka.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import kafka.async.client.KafkaAsyncClient;
+import kafka.async.client.Message;
+import kafka.async.client.MessageSet;
+import kafka.async.client.PartitionConsumer;
+import kafka.async.client.PartitionProducer;
+import kafka.async.client.StaticConfiguration;
+
+public class TestPartitionConsumer extends TestWithLog4j {
+
+	private FakeBroker broker;
+	private KafkaPartitionIdentity partition;
+	private KafkaAsyncClient client;
+
+	@Before
+	public void startBroker() throws Exception {
+		broker = new FakeBroker();
+		partition = new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), 0);
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>();
+		hosts.add(partition);
+		client = new KafkaAsyncClient(new StaticConfiguration(hosts));
+		client.open(5, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void stopBroker() throws Exception {
+		client.close();
+		broker.close();
+	}
+
+	private void produce(int count) throws Exception {
+		produce(count, Message.COMPRESSION_NONE);
+	}
+
+	private void produce(int count, int compression) throws Exception {
+		PartitionProducer producer = new PartitionProducer(client);
+		producer.addPartition(partition);
+		producer.setCompression(compression);
+		for (int i=0; i<count; ++i) {
+			producer.produce(partition, ("message "+i).getBytes("ASCII"));
+		}
+		producer.waitForEmpty(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testConsumeAll() throws Exception {
+		produce(200);
+
+		PartitionConsumer consumer = new PartitionConsumer(client, partition, 0);
+		consumer.setFetchSize(256);
+		consumer.setQueueCapacity(3);
+
+		List<String> received = new ArrayList<String>();
+		while (consumer.getPosition() < broker.logSize()) {
+			MessageSet messages = consumer.poll(5, TimeUnit.SECONDS);
+			Assert.assertNotNull(messages);
+			for (Message m : messages) {
+				received.add(TestMessage.byteBufferToString(m.getUncompressedContents(), TestMessage.ASCII));
+			}
+		}
+		consumer.close();
+
+		Assert.assertEquals(200, received.size());
+		for (int i=0; i<200; ++i) {
+			Assert.assertEquals("message "+i, received.get(i));
+		}
+		Assert.assertEquals(broker.logSize(), consumer.getPosition());
+	}
+
+	@Test
+	public void testDecodeExecutor() throws Exception {
+		produce(200, Message.COMPRESSION_GZIP);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		PartitionConsumer consumer = new PartitionConsumer(client, partition, 0);
+		consumer.setQueueCapacity(3);
+		consumer.setDecodeExecutor(executor);
+		try {
+			List<String> received = new ArrayList<String>();
+			while (consumer.getPosition() < broker.logSize()) {
+				MessageSet messages = consumer.poll(5, TimeUnit.SECONDS);
+				Assert.assertNotNull(messages);
+				Assert.assertTrue(messages.isDecoded());
+				for (Message m : messages) {
+					received.add(TestMessage.byteBufferToString(m.getUncompressedContents(), TestMessage.ASCII));
+				}
+			}
+			Assert.assertEquals(200, received.size());
+			for (int i=0; i<200; ++i) {
+				Assert.assertEquals("message "+i, received.get(i));
+			}
+		} finally {
+			consumer.close();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testWaitsForNewMessages() throws Exception {
+		PartitionConsumer consumer = new PartitionConsumer(client, partition, 0);
+		consumer.setPollInterval(10, TimeUnit.MILLISECONDS);
+		Assert.assertNull(consumer.poll(100, TimeUnit.MILLISECONDS));
+
+		produce(1);
+		MessageSet messages = consumer.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(messages);
+		Assert.assertEquals(broker.logSize(), consumer.getPosition());
+		consumer.close();
+	}
+
+	@Test
+	public void testMessageLargerThanFetchSize() throws Exception {
+		produce(1);
+		PartitionConsumer consumer = new PartitionConsumer(client, partition, 0);
+		consumer.setFetchSize(8);
+		try {
+			consumer.poll(5, TimeUnit.SECONDS);
+			Assert.fail("Message should not have fit");
+		} catch (ExecutionException expected) {
+		}
+
+		consumer.setFetchSize(1024);
+		Assert.assertNotNull(consumer.poll(5, TimeUnit.SECONDS));
+		consumer.close();
+	}
+}
@@ -0,0 +1,123 @@
+package kafka.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import kafka.async.client.KafkaAsyncClient;
+import kafka.async.client.PartitionProducer;
+import kafka.async.client.Partitioner;
+import kafka.async.client.Partitioners;
+import kafka.async.client.StaticConfiguration;
+import kafka.async.futures.SettableFuture;
+
+public class TestPartitioners extends TestWithLog4j {
+
+	private FakeBroker broker;
+	private List<KafkaPartitionIdentity> partitions;
+	private KafkaAsyncClient client;
+	private PartitionProducer producer;
+
+	@Before
+	public void start() throws Exception {
+		broker = new FakeBroker();
+		partitions = new ArrayList<KafkaPartitionIdentity>();
+		for (int i=0; i<4; ++i) {
+			partitions.add(new KafkaPartitionIdentity(broker.identity(), "topic".getBytes(), i));
+		}
+		Set<KafkaPartitionIdentity> hosts = new HashSet<KafkaPartitionIdentity>(partitions);
+		client = new KafkaAsyncClient(new StaticConfiguration(hosts));
+		client.open(5, TimeUnit.SECONDS);
+		producer = new PartitionProducer(client);
+		for (KafkaPartitionIdentity partition : partitions) {
+			producer.addPartition(partition);
+		}
+	}
+
+	@After
+	public void stop() throws Exception {
+		client.close();
+		broker.close();
+	}
+
+	private List<PartitionProducer.PartitionState> states() {
+		List<PartitionProducer.PartitionState> states = new ArrayList<PartitionProducer.PartitionState>();
+		for (KafkaPartitionIdentity partition : producer.getPartitions()) {
+			states.add(producer.getState(partition));
+		}
+		return states;
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		List<PartitionProducer.PartitionState> states = states();
+		Assert.assertEquals(4, states.size());
+		for (int i=0; i<4; ++i) {
+			Assert.assertEquals(partitions.get(i), states.get(i).getPartition());
+		}
+		Partitioner partitioner = Partitioners.roundRobin();
+		for (int i=0; i<8; ++i) {
+			Assert.assertSame(states.get(i % 4), partitioner.partition(null, states));
+		}
+	}
+
+	@Test
+	public void testKeyHash() throws Exception {
+		List<PartitionProducer.PartitionState> states = states();
+		Partitioner partitioner = Partitioners.keyHash(Partitioners.roundRobin());
+		Set<PartitionProducer.PartitionState> used = new HashSet<PartitionProducer.PartitionState>();
+		for (int i=0; i<100; ++i) {
+			byte[] key = ("key "+i).getBytes();
+			PartitionProducer.PartitionState state = partitioner.partition(key, states);
+			Assert.assertSame(state, partitioner.partition(key, states));
+			used.add(state);
+		}
+		Assert.assertEquals(4, used.size());
+
+		// Messages without a key use the fallback
+		Assert.assertSame(states.get(0), partitioner.partition(null, states));
+		Assert.assertSame(states.get(1), partitioner.partition(null, states));
+	}
+
+	@Test
+	public void testSticky() throws Exception {
+		producer.setPartitioner(Partitioners.sticky());
+		producer.setBatchLinger(1, TimeUnit.SECONDS);
+
+		List<SettableFuture<Boolean>> confirmations = new ArrayList<SettableFuture<Boolean>>();
+		for (int round=0; round<2; ++round) {
+			for (int i=0; i<50; ++i) {
+				confirmations.add(producer.produce(("message "+i).getBytes()));
+			}
+			producer.waitForEmpty(5, TimeUnit.SECONDS);
+		}
+		for (SettableFuture<Boolean> result : confirmations) {
+			Assert.assertTrue(result.get(5, TimeUnit.SECONDS));
+		}
+		// Each round should have filled a single batch
+		Assert.assertEquals(2, broker.produceRequests());
+	}
+
+	@Test
+	public void testLoadAware() throws Exception {
+		List<PartitionProducer.PartitionState> states = states();
+		producer.setBatchLinger(1, TimeUnit.SECONDS);
+
+		// Messages waiting on the first three partitions make the last the least loaded
+		for (int i=0; i<3; ++i) {
+			producer.produce(partitions.get(i), new byte[1000]);
+		}
+		Partitioner partitioner = Partitioners.loadAware(client);
+		for (int i=0; i<10; ++i) {
+			Assert.assertSame(states.get(3), partitioner.partition(null, states));
+		}
+		producer.waitForEmpty(5, TimeUnit.SECONDS);
+	}
+}
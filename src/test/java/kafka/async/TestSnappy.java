@@ -0,0 +1,110 @@
+package kafka.async;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import kafka.async.client.Snappy;
+
+import org.junit.Test;
+
+public class TestSnappy {
+
+	private static final byte[] STREAM_HEADER = new byte[] {
+		(byte)0x82, 'S', 'N', 'A', 'P', 'P', 'Y', 0,
+		0, 0, 0, 1,
+		0, 0, 0, 1,
+	};
+
+	@Test
+	public void testUncompressRawBlock() throws Exception {
+		// "hello " as a literal, followed by an 11 byte copy from 6 bytes back
+		byte[] block = new byte[] { 17, 0x14, 'h', 'e', 'l', 'l', 'o', ' ', 0x1D, 6 };
+		ByteBuffer result = Snappy.uncompressStream(ByteBuffer.wrap(block));
+		assertEquals("hello hello hello", new String(result.array(), 0, result.remaining(), "ASCII"));
+	}
+
+	@Test
+	public void testUncompressStream() throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(STREAM_HEADER);
+		byte[] first = new byte[] { 17, 0x14, 'h', 'e', 'l', 'l', 'o', ' ', 0x1D, 6 };
+		byte[] second = new byte[] { 3, 0x08, 'a', 'b', 'c' };
+		stream.write(new byte[] { 0, 0, 0, (byte)first.length });
+		stream.write(first);
+		stream.write(new byte[] { 0, 0, 0, (byte)second.length });
+		stream.write(second);
+
+		ByteBuffer result = Snappy.uncompressStream(ByteBuffer.wrap(stream.toByteArray()));
+		assertEquals("hello hello helloabc", new String(result.array(), 0, result.remaining(), "ASCII"));
+	}
+
+	@Test
+	public void testStreamHeader() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Snappy.SnappyOutputStream stream = new Snappy.SnappyOutputStream(out);
+		stream.write("hello hello hello".getBytes("ASCII"));
+		stream.close();
+
+		byte[] bytes = out.toByteArray();
+		byte[] header = new byte[STREAM_HEADER.length];
+		System.arraycopy(bytes, 0, header, 0, header.length);
+		assertArrayEquals(STREAM_HEADER, header);
+		ByteBuffer block = ByteBuffer.wrap(bytes, STREAM_HEADER.length, bytes.length - STREAM_HEADER.length);
+		assertEquals(block.remaining() - 4, block.getInt());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Random random = new Random(42);
+		int[] sizes = new int[] { 0, 1, 14, 15, 100, 32*1024, 32*1024+1, 70000, 300000 };
+		for (int size : sizes) {
+			byte[] text = new byte[size];
+			for (int i=0; i<size; ++i) {
+				// Short runs of a small alphabet, so that there is plenty to match
+				text[i] = (byte)('a' + (random.nextInt(8) == 0 ? random.nextInt(26) : (i / 7) % 4));
+			}
+			assertRoundTrip(text);
+
+			byte[] noise = new byte[size];
+			random.nextBytes(noise);
+			assertRoundTrip(noise);
+		}
+	}
+
+	@Test
+	public void testCompressesRepetitiveData() throws Exception {
+		byte[] input = new byte[100000];
+		byte[] output = new byte[Snappy.maxCompressedLength(input.length)];
+		int length = Snappy.compress(input, 0, input.length, output, 0);
+		assertTrue("Compressed to "+length+" bytes", length < input.length / 10);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCorruptCopy() throws Exception {
+		// A copy whose offset points before the start of the output
+		byte[] block = new byte[] { 10, 0x14, 'h', 'e', 'l', 'l', 'o', ' ', 0x01, 7 };
+		Snappy.uncompressStream(ByteBuffer.wrap(block));
+	}
+
+	private void assertRoundTrip(byte[] input) throws Exception {
+		byte[] raw = new byte[Snappy.maxCompressedLength(input.length)];
+		int length = Snappy.compress(input, 0, input.length, raw, 0);
+		byte[] output = new byte[Snappy.uncompressedLength(raw, 0, length)];
+		assertEquals(input.length, Snappy.uncompress(raw, 0, length, output, 0));
+		assertArrayEquals(input, output);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Snappy.SnappyOutputStream stream = new Snappy.SnappyOutputStream(out);
+		stream.write(input);
+		stream.close();
+		ByteBuffer result = Snappy.uncompressStream(ByteBuffer.wrap(out.toByteArray()));
+		byte[] framed = new byte[result.remaining()];
+		result.get(framed);
+		assertArrayEquals(input, framed);
+	}
+}